@@ -0,0 +1,85 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.adaptris.core.AdaptrisMessage;
+import com.adaptris.core.AdaptrisMessageListener;
+
+/**
+ * Cost of {@link MqttConsumer#messageArrived(String, MqttMessage)} decoding a message and handing it
+ * to the workflow.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MqttConsumerBenchmark {
+
+  private static final String TOPIC = "mqtt/benchmark/consumer";
+
+  @Param({"100", "10240", "1048576"})
+  public int payloadSize;
+
+  private MqttConsumer consumer;
+  private MqttMessage message;
+
+  @Setup(Level.Trial)
+  public void setUp(Blackhole blackhole) throws Exception {
+    consumer = new MqttConsumer().withTopic(TOPIC);
+    consumer.registerAdaptrisMessageListener(new BlackholeListener(blackhole));
+    message = new MqttMessage(new byte[payloadSize]);
+  }
+
+  @Benchmark
+  public void messageArrived() throws Exception {
+    consumer.messageArrived(TOPIC, message);
+  }
+
+  private static class BlackholeListener implements AdaptrisMessageListener {
+    private final Blackhole blackhole;
+
+    BlackholeListener(Blackhole blackhole) {
+      this.blackhole = blackhole;
+    }
+
+    @Override
+    public void onAdaptrisMessage(AdaptrisMessage msg, Consumer<AdaptrisMessage> onSuccess,
+        Consumer<AdaptrisMessage> onFailure) {
+      blackhole.consume(msg);
+      onSuccess.accept(msg);
+    }
+
+    @Override
+    public String friendlyName() {
+      return getClass().getSimpleName();
+    }
+  }
+}
@@ -0,0 +1,81 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.adaptris.core.AdaptrisMessage;
+import com.adaptris.core.AdaptrisMessageFactory;
+import com.adaptris.core.StandaloneProducer;
+import com.adaptris.core.util.LifecycleHelper;
+
+/**
+ * Throughput of {@link MqttProducer#doProduce(AdaptrisMessage, String)} against an embedded broker.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MqttProducerBenchmark {
+
+  @Param({"0", "1", "2"})
+  public int qos;
+
+  @Param({"false", "true"})
+  public boolean retained;
+
+  @Param({"100", "10240", "1048576"})
+  public int payloadSize;
+
+  private EmbeddedActiveMqMqtt broker;
+  private StandaloneProducer producer;
+  private AdaptrisMessage message;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    broker = new EmbeddedActiveMqMqtt();
+    broker.start();
+    MqttProducer mqttProducer = new MqttProducer().withTopic("mqtt/benchmark/producer");
+    mqttProducer.setQos(qos);
+    mqttProducer.setRetained(retained);
+    MqttConnection connection = broker.getMqttConnection();
+    connection.setPersistence(new MqttMemoryPersistence());
+    producer = LifecycleHelper.initAndStart(new StandaloneProducer(connection, mqttProducer));
+    message = AdaptrisMessageFactory.getDefaultInstance().newMessage(new byte[payloadSize]);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    LifecycleHelper.stopAndClose(producer);
+    broker.stop();
+  }
+
+  @Benchmark
+  public void produce() throws Exception {
+    producer.produce(message);
+  }
+}
@@ -0,0 +1,61 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.adaptris.util.KeyValuePair;
+import com.adaptris.util.KeyValuePairSet;
+
+/**
+ * Cost of {@link MqttConnection#createSslContextProperties(KeyValuePairSet)}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MqttSslBenchmark {
+
+  private MqttConnection connection;
+  private KeyValuePairSet sslProperties;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    connection = new MqttConnection();
+    sslProperties = new KeyValuePairSet();
+    sslProperties.add(new KeyValuePair("protocol", "TLSv1.2"));
+    sslProperties.add(new KeyValuePair("keyStore", "/path/to/keystore.p12"));
+    sslProperties.add(new KeyValuePair("keyStorePassword", "password"));
+    sslProperties.add(new KeyValuePair("keyStoreType", "PKCS12"));
+    sslProperties.add(new KeyValuePair("trustStore", "/path/to/truststore.jks"));
+    sslProperties.add(new KeyValuePair("trustStorePassword", "password"));
+  }
+
+  @Benchmark
+  public Properties createSslContextProperties() throws Exception {
+    return connection.createSslContextProperties(sslProperties);
+  }
+}
@@ -0,0 +1,76 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.adaptris.core.AdaptrisMessage;
+import com.adaptris.core.AdaptrisMessageFactory;
+
+/**
+ * Cost of working out the topic for a message in {@link MqttProducerImp}.
+ * <p>
+ * {@link #resolveExpression()} is what {@link MqttProducerImp#endpoint(AdaptrisMessage)} did before
+ * topics were compiled into a {@link TopicTemplate}; compare its {@code gc.alloc.rate.norm} with
+ * {@link #endpoint()}.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MqttTopicBenchmark {
+
+  @Param({"mqtt/benchmark/static/topic", "mqtt/benchmark/%message{site}/%message{device}/telemetry"})
+  public String topic;
+
+  private MqttProducer producer;
+  private AdaptrisMessage message;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    producer = new MqttProducer().withTopic(topic);
+    producer.prepare();
+    message = AdaptrisMessageFactory.getDefaultInstance().newMessage();
+    message.addMetadata("site", "site-0001");
+    message.addMetadata("device", "device-0000000001");
+  }
+
+  @Benchmark
+  public String resolveTopic() throws Exception {
+    return producer.resolveTopic(producer.endpoint(message));
+  }
+
+  @Benchmark
+  public String endpoint() throws Exception {
+    return producer.endpoint(message);
+  }
+
+  @Benchmark
+  public String resolveExpression() throws Exception {
+    return message.resolve(topic);
+  }
+}
@@ -0,0 +1,227 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.apache.commons.io.IOUtils;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adaptris.core.AdaptrisMessage;
+import com.adaptris.core.AdaptrisMessageFactory;
+import com.adaptris.core.CoreException;
+import com.adaptris.core.util.ManagedThreadFactory;
+
+/**
+ * Reassembles the chunks published by a chunking {@link MqttProducerImp} into a single message.
+ * <p>
+ * Each chunk is written to the output stream of the message as it arrives, so with a file backed
+ * message factory only the chunk currently being handled is held in memory. A chunk that has already
+ * been written (e.g. one the broker redelivered) is ignored. A transfer whose chunks arrive out of
+ * sequence is discarded, as is one that has had no chunks for longer than the timeout; the
+ * reassembler's own timer thread looks for those, so they don't wait for the next chunk to arrive.
+ * </p>
+ * <p>
+ * The MQTT messages a transfer was made from are kept with it, so that they can be acknowledged once
+ * the reassembled message has been processed; the messages of a discarded transfer are handed to
+ * the discard callback instead.
+ * </p>
+ */
+class ChunkReassembler {
+
+  private static final Logger log = LoggerFactory.getLogger(ChunkReassembler.class);
+
+  private static final long MAX_EXPIRY_CHECK_MILLIS = 1000L;
+
+  private final AdaptrisMessageFactory messageFactory;
+  private final long timeoutNanos;
+  private final Map<UUID, Transfer> transfers = new ConcurrentHashMap<>();
+  private final Consumer<List<MqttMessage>> discarded;
+  private final ScheduledExecutorService timer;
+
+  /**
+   * @param threadName the name of the timer thread that expires transfers.
+   * @param discarded given the MQTT messages of each transfer that is discarded.
+   */
+  ChunkReassembler(AdaptrisMessageFactory messageFactory, String threadName, long timeoutMillis,
+      Consumer<List<MqttMessage>> discarded) {
+    this.messageFactory = messageFactory;
+    this.discarded = discarded;
+    timeoutNanos = timeoutMillis * 1_000_000L;
+    long checkMillis = Math.max(1L, Math.min(timeoutMillis, MAX_EXPIRY_CHECK_MILLIS));
+    timer = Executors.newSingleThreadScheduledExecutor(new ManagedThreadFactory(threadName));
+    timer.scheduleWithFixedDelay(this::expire, checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Add a chunk to its transfer.
+   *
+   * @param message the MQTT message whose payload is the chunk.
+   * @return the reassembled transfer if this was the last chunk, null otherwise.
+   */
+  Reassembled add(MqttMessage message) throws CoreException {
+    byte[] chunk = message.getPayload();
+    UUID transferId = MqttChunks.transferId(chunk);
+    int sequence = MqttChunks.sequence(chunk);
+    Transfer transfer = sequence == 0
+        ? transfers.computeIfAbsent(transferId, id -> new Transfer(messageFactory.newMessage()))
+        : transfers.get(transferId);
+    if (transfer == null) {
+      log.warn("Discarding chunk {} of unknown or expired transfer [{}]", sequence, transferId);
+      discarded.accept(Collections.singletonList(message));
+      return null;
+    }
+    synchronized (transfer) {
+      if (transfer.discarded) {
+        log.warn("Discarding chunk {} of expired transfer [{}]", sequence, transferId);
+        discarded.accept(Collections.singletonList(message));
+        return null;
+      }
+      transfer.chunks.add(message);
+      if (sequence < transfer.nextSequence) {
+        log.debug("Ignoring duplicate chunk {} of transfer [{}]", sequence, transferId);
+        return null;
+      }
+      try {
+        if (sequence != transfer.nextSequence) {
+          log.warn("Discarding transfer [{}], expected chunk {} but got {}", transferId, transfer.nextSequence, sequence);
+          discard(transferId, transfer);
+          return null;
+        }
+        transfer.write(chunk);
+        if (MqttChunks.isLast(chunk)) {
+          transfers.remove(transferId, transfer);
+          transfer.out.close();
+          return new Reassembled(transfer.message, transfer.chunks);
+        }
+      } catch (IOException e) {
+        discard(transferId, transfer);
+        throw new CoreException("Failed to write chunk " + sequence + " of transfer [" + transferId + "]", e);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Forget all the incomplete transfers, without handing their MQTT messages to the discard callback.
+   */
+  void clear() {
+    for (Iterator<Map.Entry<UUID, Transfer>> i = transfers.entrySet().iterator(); i.hasNext();) {
+      Map.Entry<UUID, Transfer> entry = i.next();
+      i.remove();
+      synchronized (entry.getValue()) {
+        entry.getValue().discarded = true;
+        IOUtils.closeQuietly(entry.getValue().out, e -> log.trace("Failed to close transfer [{}]", entry.getKey(), e));
+      }
+    }
+  }
+
+  /**
+   * Stop the timer and forget all the incomplete transfers.
+   */
+  void shutdown() {
+    timer.shutdownNow();
+    clear();
+  }
+
+  int incompleteTransfers() {
+    return transfers.size();
+  }
+
+  private void expire() {
+    try {
+      long now = System.nanoTime();
+      for (Map.Entry<UUID, Transfer> entry : transfers.entrySet()) {
+        Transfer transfer = entry.getValue();
+        synchronized (transfer) {
+          if (!transfer.discarded && now - transfer.lastChunkNanos > timeoutNanos) {
+            log.warn("Discarding incomplete transfer [{}] after {} chunks", entry.getKey(), transfer.nextSequence);
+            discard(entry.getKey(), transfer);
+          }
+        }
+      }
+    } catch (RuntimeException e) {
+      // Keep the timer running.
+      log.error("Failed to expire incomplete transfers", e);
+    }
+  }
+
+  // Must hold the transfer's monitor.
+  private void discard(UUID transferId, Transfer transfer) {
+    transfers.remove(transferId, transfer);
+    transfer.discarded = true;
+    IOUtils.closeQuietly(transfer.out, e -> log.trace("Failed to close transfer [{}]", transferId, e));
+    discarded.accept(transfer.chunks);
+  }
+
+  /**
+   * A reassembled message, and the MQTT messages it was made from.
+   */
+  static final class Reassembled {
+    private final AdaptrisMessage message;
+    private final List<MqttMessage> chunks;
+
+    private Reassembled(AdaptrisMessage message, List<MqttMessage> chunks) {
+      this.message = message;
+      this.chunks = chunks;
+    }
+
+    AdaptrisMessage message() {
+      return message;
+    }
+
+    List<MqttMessage> chunks() {
+      return chunks;
+    }
+  }
+
+  private static class Transfer {
+    private final AdaptrisMessage message;
+    private final List<MqttMessage> chunks = new ArrayList<>();
+    private OutputStream out;
+    private int nextSequence;
+    private long lastChunkNanos = System.nanoTime();
+    private boolean discarded;
+
+    Transfer(AdaptrisMessage message) {
+      this.message = message;
+    }
+
+    void write(byte[] chunk) throws IOException {
+      if (out == null) {
+        out = message.getOutputStream();
+      }
+      out.write(chunk, MqttChunks.HEADER_LENGTH, chunk.length - MqttChunks.HEADER_LENGTH);
+      nextSequence++;
+      lastChunkNanos = System.nanoTime();
+    }
+  }
+}
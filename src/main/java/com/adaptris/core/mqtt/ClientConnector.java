@@ -0,0 +1,123 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.adaptris.core.CoreException;
+import com.adaptris.core.util.ManagedThreadFactory;
+
+/**
+ * Connects a connection's clients to the broker on a bounded number of threads.
+ * <p>
+ * Components start connecting their client when they are initialised and wait for it when they are
+ * started; as every component in a channel is initialised before any of them is started, the
+ * handshakes of many clients overlap rather than being done one after the other.
+ * </p>
+ */
+class ClientConnector {
+
+  @FunctionalInterface
+  interface Connect {
+    void connect() throws Exception;
+  }
+
+  private static final long IDLE_SECONDS = 60;
+
+  private final ThreadPoolExecutor executor;
+  private final Map<String, FutureTask<?>> pending = new ConcurrentHashMap<>();
+
+  ClientConnector(String threadName, int maxConcurrentConnects) {
+    executor = new ThreadPoolExecutor(maxConcurrentConnects, maxConcurrentConnects, IDLE_SECONDS, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(), new ManagedThreadFactory(threadName));
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Start connecting the client in the background, unless it is already being connected.
+   */
+  void connectInBackground(String clientId, Connect connect) {
+    pending.computeIfAbsent(clientId, id -> {
+      FutureTask<?> task = new FutureTask<>(() -> {
+        connect.connect();
+        return null;
+      });
+      executor.execute(task);
+      return task;
+    });
+  }
+
+  /**
+   * Wait for the client's background connect, if there is one, and then connect it if it still
+   * isn't; {@code connect} must do nothing if the client is already connected.
+   *
+   * @throws CoreException if the client could not be connected.
+   */
+  void connect(String clientId, Connect connect) throws CoreException {
+    Future<?> background = pending.remove(clientId);
+    try {
+      if (background != null) {
+        background.get();
+      }
+      connect.connect();
+    } catch (ExecutionException e) {
+      throw new CoreException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CoreException("Interrupted waiting for the client to connect", e);
+    } catch (Exception e) {
+      throw new CoreException(e);
+    }
+  }
+
+  /**
+   * Forget the client, e.g. because it is being closed.
+   * <p>
+   * A background connect that hasn't started is cancelled; one that is in progress is waited for
+   * (it is bounded by the connection timeout), so that the client can then be disconnected and closed
+   * rather than being left connected once it has been forgotten.
+   * </p>
+   */
+  void remove(String clientId) {
+    FutureTask<?> background = pending.remove(clientId);
+    // Cancelling doesn't tell a connect that is running from one that hasn't started.
+    if (background == null || executor.remove(background)) {
+      return;
+    }
+    try {
+      background.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException | CancellationException e) {
+      // Not connected, so there's nothing to undo.
+    }
+  }
+
+  void shutdown() {
+    pending.values().forEach(f -> f.cancel(false));
+    pending.clear();
+    executor.shutdown();
+  }
+}
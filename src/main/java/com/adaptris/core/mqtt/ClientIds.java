@@ -0,0 +1,135 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.adaptris.core.CoreException;
+
+/**
+ * Builds client ids from a template and makes sure no two clients in this JVM use the same id
+ * against the same broker.
+ * <p>
+ * A template is literal text with any of these placeholders:
+ * <ul>
+ * <li>{@code {connection}} - the unique-id of the connection.</li>
+ * <li>{@code {component}} - the unique-id of the producer or consumer; for a client that is shared
+ * between components it is {@code shared-<n>}, {@code n} being the client's slot in the pool.</li>
+ * <li>{@code {hostname}} - the name of the local host.</li>
+ * </ul>
+ * The same configuration therefore gets the same client ids each time it is started, so the broker
+ * can resume the clients' sessions when clean session is false.
+ * </p>
+ */
+final class ClientIds {
+
+  static final String CONNECTION = "connection";
+  static final String COMPONENT = "component";
+  static final String HOSTNAME = "hostname";
+
+  private static final Pattern PLACEHOLDER = Pattern.compile("\\{([^{}]+)\\}");
+
+  // serverUri + " " + clientId for every open client.
+  private static final Set<String> IN_USE = ConcurrentHashMap.newKeySet();
+
+  private ClientIds() {
+  }
+
+  /**
+   * Resolve the template.
+   *
+   * @param template the template.
+   * @param connectionId the unique-id of the connection.
+   * @param componentId the unique-id of the producer or consumer, or the shared client's name.
+   * @throws CoreException if a placeholder is unknown, or the id it refers to is blank.
+   */
+  static String resolve(String template, String connectionId, String componentId) throws CoreException {
+    Matcher matcher = PLACEHOLDER.matcher(template);
+    StringBuffer clientId = new StringBuffer();
+    while (matcher.find()) {
+      matcher.appendReplacement(clientId, Matcher.quoteReplacement(value(template, matcher.group(1), connectionId, componentId)));
+    }
+    matcher.appendTail(clientId);
+    if (StringUtils.isBlank(clientId)) {
+      throw new CoreException(String.format("Client id template [%s] resolves to a blank client id", template));
+    }
+    return clientId.toString();
+  }
+
+  /**
+   * Reserve the client id for the broker.
+   *
+   * @throws CoreException if another client in this JVM is already using the id with the broker.
+   */
+  static void reserve(String serverUri, String clientId) throws CoreException {
+    if (!IN_USE.add(key(serverUri, clientId))) {
+      throw new CoreException(String.format(
+          "Client id [%s] is already in use for [%s]; the broker would disconnect one client whenever the other connects",
+          clientId, serverUri));
+    }
+  }
+
+  static void release(String serverUri, String clientId) {
+    IN_USE.remove(key(serverUri, clientId));
+  }
+
+  private static String value(String template, String placeholder, String connectionId, String componentId)
+      throws CoreException {
+    switch (placeholder) {
+      case CONNECTION:
+        return notBlank(template, placeholder, connectionId);
+      case COMPONENT:
+        return notBlank(template, placeholder, componentId);
+      case HOSTNAME:
+        return Hostname.NAME;
+      default:
+        throw new CoreException(String.format("Unknown placeholder {%s} in client id template [%s]", placeholder, template));
+    }
+  }
+
+  private static String notBlank(String template, String placeholder, String value) throws CoreException {
+    if (StringUtils.isBlank(value)) {
+      throw new CoreException(
+          String.format("Client id template [%s] uses {%s}, which needs a unique-id to be configured", template, placeholder));
+    }
+    return value;
+  }
+
+  private static String key(String serverUri, String clientId) {
+    return serverUri + " " + clientId;
+  }
+
+  // Only looked up if a template uses it.
+  private static final class Hostname {
+    private static final String NAME = lookup();
+
+    private static String lookup() {
+      try {
+        return InetAddress.getLocalHost().getHostName();
+      } catch (UnknownHostException e) {
+        return "localhost";
+      }
+    }
+  }
+}
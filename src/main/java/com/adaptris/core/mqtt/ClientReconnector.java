@@ -0,0 +1,122 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adaptris.core.util.ManagedThreadFactory;
+
+/**
+ * Reconnects a connection's clients according to its {@link MqttReconnectPolicy}.
+ * <p>
+ * Attempts run on as many threads as the policy allows concurrent reconnects, so when many clients
+ * lose their connection at once the rest wait for a thread rather than all connecting together.
+ * </p>
+ */
+class ClientReconnector {
+
+  private static final Logger log = LoggerFactory.getLogger(ClientReconnector.class);
+
+  private final MqttReconnectPolicy policy;
+  private final ScheduledThreadPoolExecutor executor;
+  private final Map<String, ScheduledFuture<?>> scheduled = new ConcurrentHashMap<>();
+  // The attempt connecting each client; cancelling removes it so that a failure isn't retried.
+  private final Map<String, Object> connecting = new ConcurrentHashMap<>();
+
+  ClientReconnector(String threadName, MqttReconnectPolicy policy) {
+    this.policy = policy;
+    executor = new ScheduledThreadPoolExecutor(policy.maxConcurrentReconnects(), new ManagedThreadFactory(threadName));
+    executor.setRemoveOnCancelPolicy(true);
+  }
+
+  /**
+   * Start reconnecting the client, unless an attempt is already scheduled.
+   */
+  void reconnect(String clientId, ClientConnector.Connect connect) {
+    schedule(clientId, connect, 1);
+  }
+
+  /**
+   * Stop reconnecting the client, e.g. because it has been stopped.
+   */
+  void cancel(String clientId) {
+    connecting.remove(clientId);
+    ScheduledFuture<?> attempt = scheduled.remove(clientId);
+    if (attempt != null) {
+      attempt.cancel(false);
+    }
+  }
+
+  void shutdown() {
+    scheduled.values().forEach(f -> f.cancel(false));
+    scheduled.clear();
+    connecting.clear();
+    executor.shutdownNow();
+  }
+
+  // Does nothing if an attempt is already scheduled.
+  private void schedule(String clientId, ClientConnector.Connect connect, int attempt) {
+    AtomicReference<ScheduledFuture<?>> self = new AtomicReference<>();
+    try {
+      scheduled.computeIfAbsent(clientId, id -> {
+        long delay = policy.delayMillis(attempt);
+        log.debug("Reconnecting Mqtt Client [{}] in {}ms (attempt {})", clientId, delay, attempt);
+        self.set(executor.schedule(() -> attempt(clientId, connect, attempt, self), delay, TimeUnit.MILLISECONDS));
+        return self.get();
+      });
+    } catch (RejectedExecutionException e) {
+      // Shut down.
+    }
+  }
+
+  private void attempt(String clientId, ClientConnector.Connect connect, int attempt,
+      AtomicReference<ScheduledFuture<?>> self) {
+    // No longer scheduled before connecting, so losing the connection again as soon as it is made
+    // schedules a new attempt. Computing waits for schedule() to have set self.
+    boolean[] current = new boolean[1];
+    scheduled.computeIfPresent(clientId, (id, f) -> {
+      current[0] = f == self.get();
+      return current[0] ? null : f;
+    });
+    if (!current[0]) {
+      // Cancelled.
+      return;
+    }
+    Object token = new Object();
+    connecting.put(clientId, token);
+    try {
+      connect.connect();
+    } catch (Exception e) {
+      log.trace("Mqtt Client [{}] could not reconnect", clientId, e);
+      // Unless it was cancelled whilst connecting.
+      if (connecting.get(clientId) == token) {
+        schedule(clientId, connect, attempt + 1);
+      }
+    } finally {
+      connecting.remove(clientId, token);
+    }
+  }
+}
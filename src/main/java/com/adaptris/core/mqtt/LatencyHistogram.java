@@ -0,0 +1,113 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free latency histogram with log-linear buckets.
+ * <p>
+ * Like an HDR histogram each power of two range is split into 16 linear sub-buckets, so recorded
+ * values are accurate to within ~6% with a fixed memory footprint; recording is a single atomic
+ * increment.
+ * </p>
+ */
+class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  // Enough to cover 2^40 microseconds (~12 days).
+  private static final int MAX_EXPONENT = 40;
+  private static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder total = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  void record(long value) {
+    long v = Math.max(0, value);
+    counts.incrementAndGet(bucket(v));
+    count.increment();
+    total.add(v);
+    if (v > max.get()) {
+      max.accumulateAndGet(v, Math::max);
+    }
+  }
+
+  long count() {
+    return count.sum();
+  }
+
+  long max() {
+    return max.get();
+  }
+
+  long mean() {
+    long n = count.sum();
+    return n > 0 ? total.sum() / n : 0;
+  }
+
+  /**
+   * The (upper bound of the bucket containing the) value at the given percentile.
+   */
+  long percentile(double percentile) {
+    long n = count.sum();
+    if (n == 0) {
+      return 0;
+    }
+    long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts.get(i);
+      if (seen >= target) {
+        return Math.min(upperBound(i), max());
+      }
+    }
+    return max();
+  }
+
+  void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      counts.set(i, 0);
+    }
+    count.reset();
+    total.reset();
+    max.set(0);
+  }
+
+  static int bucket(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_EXPONENT);
+    int shift = exponent - SUB_BUCKET_BITS;
+    int subBucket = (int) Math.min((value >>> shift) - SUB_BUCKETS, SUB_BUCKETS - 1);
+    return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+  }
+
+  static long upperBound(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+    int subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+    return ((long) (SUB_BUCKETS + subBucket + 1) << shift) - 1;
+  }
+}
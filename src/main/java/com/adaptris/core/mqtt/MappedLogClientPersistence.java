@@ -0,0 +1,411 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+
+/**
+ * {@link MqttClientPersistence} that appends to a memory-mapped log file.
+ * <p>
+ * Each {@code put} appends the record to the log and each {@code remove} appends a tombstone; the
+ * live records are also held in memory so {@code get} never touches the file. Once there are no live
+ * records the log is rewound to the start, and if the log fills up the live records are rewritten
+ * to a new log (growing it if necessary). On {@code open} the log is replayed to recover the records
+ * that were in-flight when the client last stopped; on {@code close} a log without any live records
+ * is deleted, so clients with random ids don't leave a log behind each.
+ * </p>
+ */
+class MappedLogClientPersistence implements MqttClientPersistence {
+
+  private static final byte END = 0;
+  private static final byte PUT = 1;
+  private static final byte REMOVE = 2;
+  private static final MappedBufferCleaner CLEANER = MappedBufferCleaner.create();
+
+  private final File directory;
+  private final int initialSize;
+  private final int syncEvery;
+
+  private File logFile;
+  private FileChannel channel;
+  private MappedByteBuffer log;
+  private final Map<String, Record> records = new LinkedHashMap<>();
+  private int unsynced;
+
+  MappedLogClientPersistence(String directory, int initialSize, int syncEvery) {
+    this.directory = new File(directory);
+    this.initialSize = initialSize;
+    this.syncEvery = syncEvery;
+  }
+
+  @Override
+  public synchronized void open(String clientId, String serverURI) throws MqttPersistenceException {
+    try {
+      if (!directory.exists() && !directory.mkdirs()) {
+        throw new IOException("Could not create " + directory);
+      }
+      logFile = new File(directory, sanitize(clientId + "-" + serverURI) + ".log");
+      map(Math.max(initialSize, logFile.length()));
+      replay();
+    } catch (IOException e) {
+      throw new MqttPersistenceException(e);
+    }
+  }
+
+  @Override
+  public synchronized void close() throws MqttPersistenceException {
+    if (channel == null) {
+      return;
+    }
+    boolean empty = records.isEmpty();
+    try {
+      log.force();
+      unmap();
+      if (empty) {
+        Files.deleteIfExists(logFile.toPath());
+      }
+    } catch (IOException e) {
+      throw new MqttPersistenceException(e);
+    } finally {
+      records.clear();
+    }
+  }
+
+  @Override
+  public synchronized void put(String key, MqttPersistable persistable) throws MqttPersistenceException {
+    checkOpen();
+    Record record = new Record(persistable);
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    records.put(key, record);
+    try {
+      if (!fits(putSize(keyBytes, record))) {
+        compact();
+      } else {
+        appendPut(keyBytes, record);
+      }
+    } catch (IOException e) {
+      throw new MqttPersistenceException(e);
+    }
+    written();
+  }
+
+  @Override
+  public synchronized MqttPersistable get(String key) throws MqttPersistenceException {
+    checkOpen();
+    return records.get(key);
+  }
+
+  @Override
+  public synchronized void remove(String key) throws MqttPersistenceException {
+    checkOpen();
+    if (records.remove(key) == null) {
+      return;
+    }
+    try {
+      if (records.isEmpty()) {
+        rewind();
+      } else {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        if (!fits(1 + 4 + keyBytes.length)) {
+          compact();
+        } else {
+          log.put(REMOVE).putInt(keyBytes.length).put(keyBytes);
+          endLog();
+        }
+      }
+    } catch (IOException e) {
+      throw new MqttPersistenceException(e);
+    }
+    written();
+  }
+
+  @Override
+  public synchronized Enumeration<String> keys() throws MqttPersistenceException {
+    checkOpen();
+    return Collections.enumeration(new ArrayList<>(records.keySet()));
+  }
+
+  @Override
+  public synchronized void clear() throws MqttPersistenceException {
+    checkOpen();
+    records.clear();
+    rewind();
+    log.force();
+  }
+
+  @Override
+  public synchronized boolean containsKey(String key) throws MqttPersistenceException {
+    checkOpen();
+    return records.containsKey(key);
+  }
+
+  private void checkOpen() throws MqttPersistenceException {
+    if (channel == null) {
+      throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_CLIENT_EXCEPTION);
+    }
+  }
+
+  /**
+   * Close the channel and release the mapping, which (on Windows) stops the file being replaced or
+   * deleted whilst it exists.
+   */
+  private void unmap() throws IOException {
+    MappedByteBuffer mapped = log;
+    log = null;
+    try {
+      if (channel != null) {
+        channel.close();
+      }
+    } finally {
+      channel = null;
+      if (mapped != null) {
+        CLEANER.clean(mapped);
+      }
+    }
+  }
+
+  private void map(long size) throws IOException {
+    channel = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    log = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+  }
+
+  private void replay() {
+    log.position(0);
+    while (log.hasRemaining()) {
+      int start = log.position();
+      try {
+        byte op = log.get();
+        if (op == PUT) {
+          String key = new String(readBytes(), StandardCharsets.UTF_8);
+          byte[] header = readBytes();
+          byte[] payload = readBytes();
+          records.put(key, new Record(header, payload));
+        } else if (op == REMOVE) {
+          records.remove(new String(readBytes(), StandardCharsets.UTF_8));
+        } else {
+          log.position(start);
+          break;
+        }
+      } catch (BufferUnderflowException | IllegalArgumentException e) {
+        // A partially written record; treat it as the end of the log.
+        log.position(start);
+        break;
+      }
+    }
+    endLog();
+  }
+
+  private byte[] readBytes() {
+    int length = log.getInt();
+    // Only a torn write gives a length that doesn't fit in the rest of the log; don't allocate it.
+    if (length < 0 || length > log.remaining()) {
+      throw new BufferUnderflowException();
+    }
+    byte[] bytes = new byte[length];
+    log.get(bytes);
+    return bytes;
+  }
+
+  private static int putSize(byte[] keyBytes, Record record) {
+    return 1 + 4 + keyBytes.length + 4 + record.header.length + 4 + record.payload.length;
+  }
+
+  private boolean fits(int size) {
+    // leave room for the end marker.
+    return log.remaining() > size;
+  }
+
+  private void appendPut(byte[] keyBytes, Record record) {
+    log.put(PUT).putInt(keyBytes.length).put(keyBytes);
+    log.putInt(record.header.length).put(record.header);
+    log.putInt(record.payload.length).put(record.payload);
+    endLog();
+  }
+
+  private void endLog() {
+    if (log.hasRemaining()) {
+      log.put(log.position(), END);
+    }
+  }
+
+  private void rewind() {
+    log.position(0);
+    endLog();
+  }
+
+  /**
+   * Write the live records to a new log and swap it for the current one.
+   */
+  private void compact() throws IOException {
+    long required = 1;
+    Map<byte[], Record> live = new LinkedHashMap<>();
+    for (Map.Entry<String, Record> entry : records.entrySet()) {
+      byte[] keyBytes = entry.getKey().getBytes(StandardCharsets.UTF_8);
+      live.put(keyBytes, entry.getValue());
+      required += putSize(keyBytes, entry.getValue());
+    }
+    long size = Math.max(initialSize, log.capacity());
+    while (size <= required * 2) {
+      size *= 2;
+    }
+    File compacted = new File(logFile.getParentFile(), logFile.getName() + ".compact");
+    MappedByteBuffer current = log;
+    int position;
+    try (FileChannel out = FileChannel.open(compacted.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      MappedByteBuffer buffer = out.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      log = buffer;
+      try {
+        for (Map.Entry<byte[], Record> entry : live.entrySet()) {
+          appendPut(entry.getKey(), entry.getValue());
+        }
+        buffer.force();
+        position = buffer.position();
+      } finally {
+        log = current;
+        CLEANER.clean(buffer);
+      }
+    }
+    // Neither log may be mapped or open whilst one replaces the other.
+    unmap();
+    Files.move(compacted.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    map(size);
+    log.position(position);
+    unsynced = 0;
+  }
+
+  private void written() {
+    if (syncEvery > 0 && ++unsynced >= syncEvery) {
+      log.force();
+      unsynced = 0;
+    }
+  }
+
+  private static String sanitize(String s) {
+    return s.replaceAll("[^a-zA-Z0-9_.-]", "_");
+  }
+
+  /**
+   * Releases a mapping straight away rather than when the buffer is garbage collected, using
+   * {@code sun.misc.Unsafe#invokeCleaner} if it is available; the buffer must not be used again.
+   */
+  private static final class MappedBufferCleaner {
+    private final Object unsafe;
+    private final Method invokeCleaner;
+
+    private MappedBufferCleaner(Object unsafe, Method invokeCleaner) {
+      this.unsafe = unsafe;
+      this.invokeCleaner = invokeCleaner;
+    }
+
+    static MappedBufferCleaner create() {
+      try {
+        Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+        Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+        theUnsafe.setAccessible(true);
+        return new MappedBufferCleaner(theUnsafe.get(null), unsafeClass.getMethod("invokeCleaner", ByteBuffer.class));
+      } catch (ReflectiveOperationException | RuntimeException e) {
+        return new MappedBufferCleaner(null, null);
+      }
+    }
+
+    void clean(MappedByteBuffer buffer) {
+      if (invokeCleaner != null) {
+        try {
+          invokeCleaner.invoke(unsafe, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+          // Released when the buffer is garbage collected instead.
+        }
+      }
+    }
+  }
+
+  private static class Record implements MqttPersistable {
+    private final byte[] header;
+    private final byte[] payload;
+
+    Record(MqttPersistable p) throws MqttPersistenceException {
+      header = copy(p.getHeaderBytes(), p.getHeaderOffset(), p.getHeaderLength());
+      payload = copy(p.getPayloadBytes(), p.getPayloadOffset(), p.getPayloadLength());
+    }
+
+    Record(byte[] header, byte[] payload) {
+      this.header = header;
+      this.payload = payload;
+    }
+
+    private static byte[] copy(byte[] bytes, int offset, int length) {
+      byte[] result = new byte[length];
+      if (bytes != null && length > 0) {
+        System.arraycopy(bytes, offset, result, 0, length);
+      }
+      return result;
+    }
+
+    @Override
+    public byte[] getHeaderBytes() {
+      return header;
+    }
+
+    @Override
+    public int getHeaderLength() {
+      return header.length;
+    }
+
+    @Override
+    public int getHeaderOffset() {
+      return 0;
+    }
+
+    @Override
+    public byte[] getPayloadBytes() {
+      return payload;
+    }
+
+    @Override
+    public int getPayloadLength() {
+      return payload.length;
+    }
+
+    @Override
+    public int getPayloadOffset() {
+      return 0;
+    }
+  }
+}
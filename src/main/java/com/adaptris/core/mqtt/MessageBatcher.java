@@ -0,0 +1,224 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import com.adaptris.core.AdaptrisMessage;
+import com.adaptris.core.AdaptrisMessageFactory;
+import com.adaptris.core.util.ManagedThreadFactory;
+
+/**
+ * Collects arriving payloads into batches and hands each batch on as a single message.
+ * <p>
+ * A full batch is handed on, together with the MQTT messages it was made from, by the thread that
+ * filled it; a batch that is still open when its linger time is up is handed on by the batcher's
+ * own timer thread. Either way batches are handed on one at a time, in the order they were made.
+ * </p>
+ *
+ * @see MqttBatching
+ */
+class MessageBatcher {
+
+  private static final long SHUTDOWN_SECONDS = 60;
+
+  private final AdaptrisMessageFactory messageFactory;
+  private final BiConsumer<AdaptrisMessage, List<MqttMessage>> processor;
+  private final int maxMessages;
+  private final long maxBytes;
+  private final long lingerMillis;
+  private final byte[] separator;
+  private final ScheduledThreadPoolExecutor timer;
+
+  // Taken whilst still holding the monitor that drained the batch, so that batches are processed in
+  // the order they were drained.
+  private final ReentrantLock processing = new ReentrantLock();
+  private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+  private final List<String> topics = new ArrayList<>();
+  private List<MqttMessage> messages = new ArrayList<>();
+  private ScheduledFuture<?> lingerTask;
+  // Incremented whenever a batch is drained, so that a linger task that was already waiting for the
+  // monitor when its batch was drained doesn't flush the next one early.
+  private long generation;
+
+  MessageBatcher(AdaptrisMessageFactory messageFactory, String threadName,
+      BiConsumer<AdaptrisMessage, List<MqttMessage>> processor, int maxMessages, long maxBytes, long lingerMillis,
+      byte[] separator) {
+    this.messageFactory = messageFactory;
+    this.processor = processor;
+    this.maxMessages = maxMessages;
+    this.maxBytes = maxBytes;
+    this.lingerMillis = lingerMillis;
+    this.separator = separator;
+    timer = new ScheduledThreadPoolExecutor(1, new ManagedThreadFactory(threadName));
+    timer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+  }
+
+  /**
+   * Add a message to the current batch, processing the batch if this fills it.
+   */
+  void add(String topic, MqttMessage message) {
+    add(topic, message, message.getPayload());
+  }
+
+  /**
+   * Add a message to the current batch with the given payload (e.g. after it has been decompressed),
+   * processing the batch if this fills it.
+   */
+  void add(String topic, MqttMessage message, byte[] payload) {
+    Batch previous = null;
+    Batch full = null;
+    synchronized (this) {
+      if (!topics.isEmpty() && buffer.size() + separator.length + payload.length > maxBytes) {
+        previous = drain();
+      }
+      if (!topics.isEmpty()) {
+        buffer.write(separator, 0, separator.length);
+      }
+      buffer.write(payload, 0, payload.length);
+      topics.add(topic);
+      messages.add(message);
+      if (topics.size() >= maxMessages || buffer.size() >= maxBytes) {
+        full = drain();
+      } else if (topics.size() == 1) {
+        long lingeringGeneration = generation;
+        lingerTask = timer.schedule(() -> linger(lingeringGeneration), lingerMillis, TimeUnit.MILLISECONDS);
+      }
+      if (previous == null && full == null) {
+        return;
+      }
+      processing.lock();
+    }
+    try {
+      processIfNotNull(previous);
+      processIfNotNull(full);
+    } finally {
+      processing.unlock();
+    }
+  }
+
+  /**
+   * Process the current batch now, if there is one.
+   */
+  void flush() {
+    Batch batch;
+    synchronized (this) {
+      if (topics.isEmpty()) {
+        return;
+      }
+      batch = drain();
+      processing.lock();
+    }
+    try {
+      processIfNotNull(batch);
+    } finally {
+      processing.unlock();
+    }
+  }
+
+  private void linger(long lingeringGeneration) {
+    Batch batch;
+    synchronized (this) {
+      if (lingeringGeneration != generation || topics.isEmpty()) {
+        return;
+      }
+      batch = drain();
+      processing.lock();
+    }
+    try {
+      processIfNotNull(batch);
+    } finally {
+      processing.unlock();
+    }
+  }
+
+  /**
+   * Throw the current batch away without processing it, if there is one.
+   */
+  synchronized void discard() {
+    cancelLinger();
+    buffer.reset();
+    topics.clear();
+    messages = new ArrayList<>();
+  }
+
+  /**
+   * Stop the timer, letting a flush that is already running finish, and then process whatever is
+   * left.
+   */
+  void shutdown() {
+    timer.shutdown();
+    try {
+      if (!timer.awaitTermination(SHUTDOWN_SECONDS, TimeUnit.SECONDS)) {
+        timer.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      timer.shutdownNow();
+    }
+    flush();
+  }
+
+  // Must hold the lock.
+  private Batch drain() {
+    cancelLinger();
+    AdaptrisMessage batch = messageFactory.newMessage(buffer.toByteArray());
+    batch.addMetadata(MqttConstants.BATCH_SIZE_METADATA, String.valueOf(topics.size()));
+    for (int i = 0; i < topics.size(); i++) {
+      batch.addMetadata(MqttConstants.BATCH_TOPIC_METADATA_PREFIX + i, topics.get(i));
+    }
+    buffer.reset();
+    topics.clear();
+    List<MqttMessage> drained = messages;
+    messages = new ArrayList<>();
+    return new Batch(batch, drained);
+  }
+
+  // Must hold the lock.
+  private void cancelLinger() {
+    generation++;
+    if (lingerTask != null) {
+      lingerTask.cancel(false);
+      lingerTask = null;
+    }
+  }
+
+  private void processIfNotNull(Batch batch) {
+    if (batch != null) {
+      processor.accept(batch.message, batch.messages);
+    }
+  }
+
+  private static final class Batch {
+    private final AdaptrisMessage message;
+    private final List<MqttMessage> messages;
+
+    private Batch(AdaptrisMessage message, List<MqttMessage> messages) {
+      this.message = message;
+      this.messages = messages;
+    }
+  }
+}
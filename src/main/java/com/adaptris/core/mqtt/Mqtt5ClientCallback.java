@@ -0,0 +1,121 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttCallback;
+import org.eclipse.paho.mqttv5.client.MqttDisconnectResponse;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+
+/**
+ * The callback that {@link Mqtt5Connection} installs on each client it creates.
+ * <p>
+ * Records disconnects and reconnects against the connection's {@link MqttConnectionMetrics} and
+ * passes every event on to the component using the client, if it has registered for them.
+ * </p>
+ * <p>
+ * If the connection has a {@link MqttReconnectPolicy} then the client isn't reconnected by Paho, but
+ * by the connection when this is told the client was disconnected; the connect that follows is
+ * passed on as a reconnect, as it would have been by Paho.
+ * </p>
+ */
+class Mqtt5ClientCallback implements MqttCallback {
+
+  private final MqttConnectionMetrics metrics;
+  private final Runnable reconnect;
+  private volatile MqttCallback delegate;
+  private volatile boolean reconnecting;
+  private volatile long lostAt;
+
+  Mqtt5ClientCallback(MqttConnectionMetrics metrics) {
+    this(metrics, null);
+  }
+
+  /**
+   * @param metrics the connection's metrics.
+   * @param reconnect starts reconnecting the client, null if Paho reconnects it.
+   */
+  Mqtt5ClientCallback(MqttConnectionMetrics metrics, Runnable reconnect) {
+    this.metrics = metrics;
+    this.reconnect = reconnect;
+  }
+
+  void setDelegate(MqttCallback delegate) {
+    this.delegate = delegate;
+  }
+
+  @Override
+  public void disconnected(MqttDisconnectResponse disconnectResponse) {
+    lostAt = System.nanoTime();
+    metrics.connectionLost();
+    MqttCallback callback = delegate;
+    if (callback != null) {
+      callback.disconnected(disconnectResponse);
+    }
+    if (reconnect != null) {
+      reconnecting = true;
+      reconnect.run();
+    }
+  }
+
+  @Override
+  public void mqttErrorOccurred(MqttException exception) {
+    MqttCallback callback = delegate;
+    if (callback != null) {
+      callback.mqttErrorOccurred(exception);
+    }
+  }
+
+  @Override
+  public void messageArrived(String topic, MqttMessage message) throws Exception {
+    MqttCallback callback = delegate;
+    if (callback != null) {
+      callback.messageArrived(topic, message);
+    }
+  }
+
+  @Override
+  public void deliveryComplete(IMqttToken token) {
+    MqttCallback callback = delegate;
+    if (callback != null) {
+      callback.deliveryComplete(token);
+    }
+  }
+
+  @Override
+  public void connectComplete(boolean reconnect, String serverURI) {
+    boolean reconnected = reconnect || reconnecting;
+    reconnecting = false;
+    if (reconnected) {
+      metrics.reconnected(lostAt);
+    }
+    MqttCallback callback = delegate;
+    if (callback != null) {
+      callback.connectComplete(reconnected, serverURI);
+    }
+  }
+
+  @Override
+  public void authPacketArrived(int reasonCode, MqttProperties properties) {
+    MqttCallback callback = delegate;
+    if (callback != null) {
+      callback.authPacketArrived(reasonCode, properties);
+    }
+  }
+}
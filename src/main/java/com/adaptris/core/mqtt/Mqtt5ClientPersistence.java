@@ -0,0 +1,258 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import java.util.Enumeration;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.mqttv5.common.MqttPersistable;
+import org.eclipse.paho.mqttv5.common.MqttPersistenceException;
+
+/**
+ * Lets an MQTT 5.0 client store its in-flight messages in the store created by a
+ * {@link MqttPersistence}.
+ * <p>
+ * Paho's MQTT 3 and 5 clients persist the same header and payload bytes, only through different
+ * interfaces, so any of the stores can be used by either.
+ * </p>
+ */
+class Mqtt5ClientPersistence implements org.eclipse.paho.mqttv5.client.MqttClientPersistence {
+
+  private final MqttClientPersistence store;
+  private final String serverUri;
+
+  /**
+   * @param store the store.
+   * @param serverUri the server the client connects to, which the store may use to keep each
+   *        client's messages apart.
+   */
+  Mqtt5ClientPersistence(MqttClientPersistence store, String serverUri) {
+    this.store = store;
+    this.serverUri = serverUri;
+  }
+
+  @Override
+  public void open(String clientId) throws MqttPersistenceException {
+    try {
+      store.open(clientId, serverUri);
+    } catch (org.eclipse.paho.client.mqttv3.MqttPersistenceException e) {
+      throw wrap(e);
+    }
+  }
+
+  @Override
+  public void close() throws MqttPersistenceException {
+    try {
+      store.close();
+    } catch (org.eclipse.paho.client.mqttv3.MqttPersistenceException e) {
+      throw wrap(e);
+    }
+  }
+
+  @Override
+  public void put(String key, MqttPersistable persistable) throws MqttPersistenceException {
+    try {
+      store.put(key, new Mqtt3Persistable(persistable));
+    } catch (org.eclipse.paho.client.mqttv3.MqttPersistenceException e) {
+      throw wrap(e);
+    }
+  }
+
+  @Override
+  public MqttPersistable get(String key) throws MqttPersistenceException {
+    try {
+      org.eclipse.paho.client.mqttv3.MqttPersistable persistable = store.get(key);
+      if (persistable instanceof Mqtt3Persistable) {
+        return ((Mqtt3Persistable) persistable).persistable;
+      }
+      return persistable != null ? new Mqtt5Persistable(persistable) : null;
+    } catch (org.eclipse.paho.client.mqttv3.MqttPersistenceException e) {
+      throw wrap(e);
+    }
+  }
+
+  @Override
+  public void remove(String key) throws MqttPersistenceException {
+    try {
+      store.remove(key);
+    } catch (org.eclipse.paho.client.mqttv3.MqttPersistenceException e) {
+      throw wrap(e);
+    }
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public Enumeration<String> keys() throws MqttPersistenceException {
+    try {
+      return store.keys();
+    } catch (org.eclipse.paho.client.mqttv3.MqttPersistenceException e) {
+      throw wrap(e);
+    }
+  }
+
+  @Override
+  public void clear() throws MqttPersistenceException {
+    try {
+      store.clear();
+    } catch (org.eclipse.paho.client.mqttv3.MqttPersistenceException e) {
+      throw wrap(e);
+    }
+  }
+
+  @Override
+  public boolean containsKey(String key) throws MqttPersistenceException {
+    try {
+      return store.containsKey(key);
+    } catch (org.eclipse.paho.client.mqttv3.MqttPersistenceException e) {
+      throw wrap(e);
+    }
+  }
+
+  private static MqttPersistenceException wrap(org.eclipse.paho.client.mqttv3.MqttPersistenceException e) {
+    return new MqttPersistenceException(e.getReasonCode(), e);
+  }
+
+  /**
+   * An MQTT 5.0 record, as the store sees it.
+   */
+  private static class Mqtt3Persistable implements org.eclipse.paho.client.mqttv3.MqttPersistable {
+    private final MqttPersistable persistable;
+
+    Mqtt3Persistable(MqttPersistable persistable) {
+      this.persistable = persistable;
+    }
+
+    @Override
+    public byte[] getHeaderBytes() throws org.eclipse.paho.client.mqttv3.MqttPersistenceException {
+      try {
+        return persistable.getHeaderBytes();
+      } catch (MqttPersistenceException e) {
+        throw new org.eclipse.paho.client.mqttv3.MqttPersistenceException(e.getReasonCode(), e);
+      }
+    }
+
+    @Override
+    public int getHeaderLength() throws org.eclipse.paho.client.mqttv3.MqttPersistenceException {
+      try {
+        return persistable.getHeaderLength();
+      } catch (MqttPersistenceException e) {
+        throw new org.eclipse.paho.client.mqttv3.MqttPersistenceException(e.getReasonCode(), e);
+      }
+    }
+
+    @Override
+    public int getHeaderOffset() throws org.eclipse.paho.client.mqttv3.MqttPersistenceException {
+      try {
+        return persistable.getHeaderOffset();
+      } catch (MqttPersistenceException e) {
+        throw new org.eclipse.paho.client.mqttv3.MqttPersistenceException(e.getReasonCode(), e);
+      }
+    }
+
+    @Override
+    public byte[] getPayloadBytes() throws org.eclipse.paho.client.mqttv3.MqttPersistenceException {
+      try {
+        return persistable.getPayloadBytes();
+      } catch (MqttPersistenceException e) {
+        throw new org.eclipse.paho.client.mqttv3.MqttPersistenceException(e.getReasonCode(), e);
+      }
+    }
+
+    @Override
+    public int getPayloadLength() throws org.eclipse.paho.client.mqttv3.MqttPersistenceException {
+      try {
+        return persistable.getPayloadLength();
+      } catch (MqttPersistenceException e) {
+        throw new org.eclipse.paho.client.mqttv3.MqttPersistenceException(e.getReasonCode(), e);
+      }
+    }
+
+    @Override
+    public int getPayloadOffset() throws org.eclipse.paho.client.mqttv3.MqttPersistenceException {
+      try {
+        return persistable.getPayloadOffset();
+      } catch (MqttPersistenceException e) {
+        throw new org.eclipse.paho.client.mqttv3.MqttPersistenceException(e.getReasonCode(), e);
+      }
+    }
+  }
+
+  /**
+   * A record read back from the store, as the MQTT 5.0 client sees it.
+   */
+  private static class Mqtt5Persistable implements MqttPersistable {
+    private final org.eclipse.paho.client.mqttv3.MqttPersistable persistable;
+
+    Mqtt5Persistable(org.eclipse.paho.client.mqttv3.MqttPersistable persistable) {
+      this.persistable = persistable;
+    }
+
+    @Override
+    public byte[] getHeaderBytes() throws MqttPersistenceException {
+      try {
+        return persistable.getHeaderBytes();
+      } catch (org.eclipse.paho.client.mqttv3.MqttPersistenceException e) {
+        throw wrap(e);
+      }
+    }
+
+    @Override
+    public int getHeaderLength() throws MqttPersistenceException {
+      try {
+        return persistable.getHeaderLength();
+      } catch (org.eclipse.paho.client.mqttv3.MqttPersistenceException e) {
+        throw wrap(e);
+      }
+    }
+
+    @Override
+    public int getHeaderOffset() throws MqttPersistenceException {
+      try {
+        return persistable.getHeaderOffset();
+      } catch (org.eclipse.paho.client.mqttv3.MqttPersistenceException e) {
+        throw wrap(e);
+      }
+    }
+
+    @Override
+    public byte[] getPayloadBytes() throws MqttPersistenceException {
+      try {
+        return persistable.getPayloadBytes();
+      } catch (org.eclipse.paho.client.mqttv3.MqttPersistenceException e) {
+        throw wrap(e);
+      }
+    }
+
+    @Override
+    public int getPayloadLength() throws MqttPersistenceException {
+      try {
+        return persistable.getPayloadLength();
+      } catch (org.eclipse.paho.client.mqttv3.MqttPersistenceException e) {
+        throw wrap(e);
+      }
+    }
+
+    @Override
+    public int getPayloadOffset() throws MqttPersistenceException {
+      try {
+        return persistable.getPayloadOffset();
+      } catch (org.eclipse.paho.client.mqttv3.MqttPersistenceException e) {
+        throw wrap(e);
+      }
+    }
+  }
+}
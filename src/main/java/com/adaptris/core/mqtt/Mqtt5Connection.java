@@ -0,0 +1,401 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+import javax.validation.Valid;
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
+
+import org.apache.commons.lang3.BooleanUtils;
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttCallback;
+import org.eclipse.paho.mqttv5.client.MqttClient;
+import org.eclipse.paho.mqttv5.client.MqttClientException;
+import org.eclipse.paho.mqttv5.client.MqttClientPersistence;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+
+import com.adaptris.annotation.AdapterComponent;
+import com.adaptris.annotation.AdvancedConfig;
+import com.adaptris.annotation.ComponentProfile;
+import com.adaptris.annotation.DisplayOrder;
+import com.adaptris.annotation.InputFieldDefault;
+import com.adaptris.core.AdaptrisConnection;
+import com.adaptris.core.CoreException;
+import com.adaptris.security.exc.PasswordException;
+import com.adaptris.util.TimeInterval;
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * {@linkplain AdaptrisConnection} implementation for MQTT 5.0 using the Paho mqttv5 client.
+ * <p>
+ * Use this with {@link Mqtt5Producer} and {@link Mqtt5Consumer} when the broker supports MQTT 5.0.
+ * Compared to {@link MqttConnection} it adds session expiry, receive maximum flow control, topic
+ * aliases and a maximum packet size; shared subscriptions ({@code $share/<group>/<filter>}) can be
+ * used as the consumer's topic.
+ * </p>
+ * <p>
+ * Unlike {@link MqttConnection} there is no client pool or disconnected buffer: every producer and
+ * consumer has its own client, and publishing fails whilst its client is reconnecting. Clients are
+ * reconnected by Paho unless a {@link #getReconnectPolicy()} is set.
+ * </p>
+ *
+ * @config mqtt5-connection
+ * @license STANDARD
+ * @since 4.5.0
+ */
+@XStreamAlias("mqtt5-connection")
+@AdapterComponent
+@ComponentProfile(summary = "Connect to a MQTT 5.0 broker", tag = "connections,mqtt", since = "4.5.0")
+@DisplayOrder(order = {"username", "password", "serverUri", "cleanStart", "sessionExpiryInterval",
+    "receiveMaximum", "topicAliasMaximum", "maximumPacketSize"})
+public class Mqtt5Connection extends MqttConnectionImp {
+
+  /**
+   * Whether to discard any existing session when connecting.
+   * <p>
+   * The default is true; set to false together with {@link #getSessionExpiryInterval()} to resume
+   * the session (subscriptions and undelivered QoS 1 and 2 messages) after a reconnect or restart.
+   * </p>
+   */
+  @AdvancedConfig
+  @InputFieldDefault(value = "true")
+  @Getter
+  @Setter
+  private Boolean cleanStart;
+
+  /**
+   * How long the broker keeps the session after the client disconnects.
+   * <p>
+   * If not specified then the session ends when the client disconnects.
+   * </p>
+   */
+  @Valid
+  @AdvancedConfig
+  @Getter
+  @Setter
+  private TimeInterval sessionExpiryInterval;
+
+  /**
+   * The maximum number of unacknowledged QoS 1 and 2 messages the broker may send to the client.
+   * <p>
+   * Lets a consumer limit how far the broker gets ahead of it. If not specified then the broker's
+   * default (65535) applies.
+   * </p>
+   */
+  @AdvancedConfig
+  @Min(1)
+  @Max(65535)
+  @Getter
+  @Setter
+  private Integer receiveMaximum;
+
+  /**
+   * The maximum number of topic aliases the broker may use when sending messages to the client.
+   * <p>
+   * Topic aliases replace the topic name with a 2 byte number after the first message on a topic,
+   * which shrinks every PUBLISH on long topic names. If not specified then the broker won't use
+   * topic aliases.
+   * </p>
+   * <p>
+   * This only covers messages the broker sends; the aliases used by {@link Mqtt5Producer} are
+   * limited by the maximum the broker sends back when the client connects.
+   * </p>
+   */
+  @AdvancedConfig
+  @Min(0)
+  @Max(65535)
+  @Getter
+  @Setter
+  private Integer topicAliasMaximum;
+
+  /**
+   * The maximum packet size, in bytes, the client is willing to accept.
+   */
+  @AdvancedConfig
+  @Min(1)
+  @Getter
+  @Setter
+  private Long maximumPacketSize;
+
+  private transient MqttConnectionOptions options;
+  private transient Map<String, MqttClient> mqttClients = new ConcurrentHashMap<>();
+  private transient Map<String, Mqtt5ClientCallback> callbacks = new ConcurrentHashMap<>();
+
+  @Override
+  protected void prepareConnection() throws CoreException {
+  }
+
+  @Override
+  protected synchronized void initConnection() throws CoreException {
+    log.debug("Init Mqtt5 Connection");
+    super.initConnection();
+  }
+
+  @Override
+  protected void initOptions() throws Exception {
+    initMqttConnectionOptions();
+  }
+
+  @Override
+  protected void startConnection() throws CoreException {
+    log.debug("Start Mqtt5 Connection");
+  }
+
+  @Override
+  protected void stopConnection() {
+    log.debug("Disconnect All Mqtt5 Clients");
+    for (MqttClient mqttClient : mqttClients.values()) {
+      stopClientConnection(mqttClient);
+    }
+  }
+
+  @Override
+  protected void closeClients() {
+    log.debug("Close All Mqtt5 Clients");
+    for (MqttClient mqttClient : mqttClients.values()) {
+      closeClientConnection(mqttClient);
+    }
+  }
+
+  /**
+   * Access method for getting a new MqttClient for producer/consumer
+   */
+  MqttClient newClient() throws CoreException {
+    return newClient(null);
+  }
+
+  /**
+   * Access method for getting a new MqttClient for producer/consumer
+   *
+   * @param clientId the client id, null to generate one.
+   */
+  MqttClient newClient(String clientId) throws CoreException {
+    String id = reserveClientId(clientId, () -> UUID.randomUUID().toString().replace("-", ""));
+    try {
+      MqttClient mqttClient = new MqttClient(getServerUri(), id, createMqttClientPersistence());
+      Mqtt5ClientCallback callback = new Mqtt5ClientCallback(metrics(),
+          getReconnectPolicy() != null ? () -> reconnect(id, () -> connectClient(mqttClient)) : null);
+      mqttClient.setCallback(callback);
+      callbacks.put(id, callback);
+      mqttClients.put(id, mqttClient);
+      return mqttClient;
+    } catch (MqttException mqtte) {
+      releaseClientId(id);
+      throw new CoreException("Mqtt5 Client could not be initialized", mqtte);
+    }
+  }
+
+  /**
+   * Register a component to receive the events for the given client.
+   */
+  void registerCallback(MqttClient mqttClient, MqttCallback callback) {
+    Mqtt5ClientCallback clientCallback = callbacks.get(mqttClient.getClientId());
+    if (clientCallback != null) {
+      clientCallback.setDelegate(callback);
+    }
+  }
+
+  /**
+   * Connect the client, waiting for the connect started by {@link #connectClientInBackground(MqttClient)}
+   * if there is one.
+   */
+  public void startClientConnection(MqttClient mqttClient) throws CoreException {
+    log.debug("Connect Mqtt5 Client");
+    connector().connect(mqttClient.getClientId(), () -> connectClient(mqttClient));
+  }
+
+  /**
+   * Start connecting the client on one of this connection's connect threads.
+   *
+   * @see MqttConnection#connectSyncClientInBackground(org.eclipse.paho.client.mqttv3.MqttClient)
+   */
+  void connectClientInBackground(MqttClient mqttClient) {
+    connector().connectInBackground(mqttClient.getClientId(), () -> connectClient(mqttClient));
+  }
+
+  private void connectClient(MqttClient mqttClient)
+      throws MqttException, PasswordException, UnsupportedEncodingException {
+    synchronized (mqttClient) {
+      if (!mqttClient.isConnected()) {
+        long start = System.nanoTime();
+        IMqttToken token = mqttClient.connectWithResult(initMqttConnectionOptions());
+        metrics().connected(start);
+        logTopicAliasMaximum(mqttClient, token.getResponseProperties());
+      }
+    }
+  }
+
+  // Paho assigns topic aliases on publish by itself, up to the maximum the broker sent back.
+  private void logTopicAliasMaximum(MqttClient mqttClient, MqttProperties connAckProperties) {
+    Integer brokerMaximum = connAckProperties != null ? connAckProperties.getTopicAliasMaximum() : null;
+    log.debug("Broker allows Mqtt5 Client [{}] {} topic aliases", mqttClient.getClientId(),
+        brokerMaximum != null ? brokerMaximum : 0);
+  }
+
+  public void stopClientConnection(MqttClient mqttClient) {
+    if (mqttClient != null) {
+      cancelReconnect(mqttClient.getClientId());
+    }
+    try {
+      if (mqttClient != null && mqttClient.isConnected()) {
+        log.debug("Disconnect Mqtt5 Client [{}]", mqttClient.getClientId());
+        mqttClient.disconnect();
+      }
+    } catch (MqttException mqtte) {
+      log.error("Could not stop connection", mqtte);
+    }
+  }
+
+  public void closeClientConnection(MqttClient mqttClient) {
+    try {
+      if (mqttClient != null) {
+        log.debug("Close Mqtt5 Client [{}]", mqttClient.getClientId());
+        // A connect still in progress would leave the client connected after it had been closed.
+        forgetPendingConnect(mqttClient.getClientId());
+        if (mqttClient.isConnected()) {
+          mqttClient.disconnect();
+        }
+        doClientClose(mqttClient);
+      }
+    } catch (MqttException mqtte) {
+      log.error("Could not close connection", mqtte);
+      forceCloseClientConnection(mqttClient);
+    }
+  }
+
+  public void forceCloseClientConnection(MqttClient mqttClient) {
+    log.debug("Force Close Mqtt5 Client");
+    try {
+      if (mqttClient != null) {
+        forgetPendingConnect(mqttClient.getClientId());
+        if (mqttClient.isConnected()) {
+          mqttClient.disconnectForcibly();
+        }
+        doClientClose(mqttClient);
+      }
+    } catch (Exception expt) {
+      log.trace("Could not force close connection", expt);
+    }
+  }
+
+  private void doClientClose(MqttClient mqttClient) throws MqttException {
+    try {
+      mqttClient.setCallback(null);
+      mqttClient.close();
+    } finally {
+      mqttClients.remove(mqttClient.getClientId());
+      callbacks.remove(mqttClient.getClientId());
+      forgetPendingConnect(mqttClient.getClientId());
+      cancelReconnect(mqttClient.getClientId());
+      releaseClientId(mqttClient.getClientId());
+    }
+  }
+
+  MqttClient getClient(String clientId) {
+    return mqttClients.get(clientId);
+  }
+
+  private MqttConnectionOptions initMqttConnectionOptions()
+      throws PasswordException, UnsupportedEncodingException, MqttException {
+    if (options == null) {
+      options = new MqttConnectionOptions();
+      String password = decodedPassword();
+      if (password != null) {
+        options.setUserName(getUsername());
+        options.setPassword(password.getBytes(StandardCharsets.UTF_8));
+      }
+      options.setCleanStart(BooleanUtils.toBooleanDefaultIfNull(getCleanStart(), true));
+      if (sessionExpiryInterval != null) {
+        options.setSessionExpiryInterval(TimeUnit.MILLISECONDS.toSeconds(sessionExpiryInterval.toMilliseconds()));
+      }
+      if (receiveMaximum != null) {
+        options.setReceiveMaximum(receiveMaximum);
+      }
+      if (topicAliasMaximum != null) {
+        options.setTopicAliasMaximum(topicAliasMaximum);
+      }
+      if (maximumPacketSize != null) {
+        options.setMaximumPacketSize(maximumPacketSize);
+      }
+      int connectionTimeoutSeconds = timeIntervalToSecond(getConnectionTimeout());
+      if (connectionTimeoutSeconds > -1) {
+        options.setConnectionTimeout(connectionTimeoutSeconds);
+      }
+      int keepAliveIntervalSeconds = timeIntervalToSecond(getKeepAliveInterval());
+      if (keepAliveIntervalSeconds > -1) {
+        options.setKeepAliveInterval(keepAliveIntervalSeconds);
+      }
+      Properties sslContextProperties = createSslContextProperties(getSslProperties());
+      if (sslContextProperties.size() > 0) {
+        SocketFactory socketFactory;
+        try {
+          socketFactory = sslSocketFactory(sslContextProperties);
+        } catch (GeneralSecurityException | IOException e) {
+          throw new MqttException(MqttClientException.REASON_CODE_SSL_CONFIG_ERROR, e);
+        }
+        if (socketFactory != null) {
+          options.setSocketFactory(socketFactory);
+        } else {
+          options.setSSLProperties(sslContextProperties);
+        }
+      }
+      MqttLastWill lastWill = getLastWill();
+      if (lastWill != null) {
+        MqttMessage will = new MqttMessage(lastWill.payloadBytes());
+        will.setQos(lastWill.getQos());
+        will.setRetained(lastWill.getRetained());
+        options.setWill(lastWill.getTopic(), will);
+      }
+      options.setAutomaticReconnect(getReconnectPolicy() == null);
+    }
+    return options;
+  }
+
+  private MqttClientPersistence createMqttClientPersistence() {
+    return new Mqtt5ClientPersistence(persistence().create(), getServerUri());
+  }
+
+  @Override
+  protected int inFlightMessageCount() {
+    int count = 0;
+    for (MqttClient mqttClient : mqttClients.values()) {
+      count += mqttClient.getPendingTokens().length;
+    }
+    return count;
+  }
+
+  MqttConnectionOptions retrieveOptions() {
+    return options;
+  }
+}
@@ -0,0 +1,328 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.validation.Valid;
+
+import org.apache.commons.lang3.BooleanUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttCallback;
+import org.eclipse.paho.mqttv5.client.MqttClient;
+import org.eclipse.paho.mqttv5.client.MqttDisconnectResponse;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.MqttSubscription;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+
+import com.adaptris.annotation.AdapterComponent;
+import com.adaptris.annotation.AdvancedConfig;
+import com.adaptris.annotation.ComponentProfile;
+import com.adaptris.annotation.DisplayOrder;
+import com.adaptris.annotation.InputFieldDefault;
+import com.adaptris.core.AdaptrisMessage;
+import com.adaptris.core.AdaptrisMessageConsumerImp;
+import com.adaptris.core.CoreException;
+import com.adaptris.core.util.DestinationHelper;
+import com.adaptris.interlok.util.Args;
+import com.adaptris.util.TimeInterval;
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * Paho MQTT 5.0 implementation of <code>AdaptrisMessageConsumer</code>.
+ * <p>
+ * Requires a {@link Mqtt5Connection}. The topic (and topic filters) may be shared subscriptions, e.g.
+ * {@code $share/workers/sensors/#}, in which case the broker load balances the messages between all
+ * the consumers subscribed with the same group name.
+ * </p>
+ *
+ * @config mqtt5-consumer
+ * @license STANDARD
+ * @since 4.5.0
+ */
+@XStreamAlias("mqtt5-consumer")
+@AdapterComponent
+@ComponentProfile(summary = "Listen for MQTT 5.0 messages on the specified topic", tag = "consumer,mqtt",
+    recommended = {Mqtt5Connection.class}, since = "4.5.0")
+@DisplayOrder(order = {"topic", "topicFilters", "timeToWait", "noLocal", "shareGroup", "addMqttMetadata", "compression"})
+@NoArgsConstructor
+public class Mqtt5Consumer extends AdaptrisMessageConsumerImp implements MqttCallback {
+
+  /**
+   * The MQTT Topic
+   */
+  @Getter
+  @Setter
+  private String topic;
+
+  /**
+   * Additional topic filters to subscribe to, each with its own QoS.
+   */
+  @Valid
+  @Getter
+  @Setter
+  private List<MqttTopicFilter> topicFilters;
+
+  /**
+   * The maximum time to wait for an action to complete.
+   */
+  @Valid
+  @AdvancedConfig
+  @Getter
+  @Setter
+  private TimeInterval timeToWait;
+
+  /**
+   * Whether to ignore messages published on the same connection.
+   * <p>
+   * The default is false.
+   * </p>
+   */
+  @AdvancedConfig
+  @InputFieldDefault(value = "false")
+  @Getter
+  @Setter
+  private Boolean noLocal;
+
+  /**
+   * Subscribe to the topic and topic filters as a shared subscription in this group.
+   *
+   * @see MqttConsumer#setShareGroup(String)
+   */
+  @AdvancedConfig
+  @Getter
+  @Setter
+  private String shareGroup;
+
+  /**
+   * Whether to add the topic, QoS, retained and duplicate flags and message id of each consumed
+   * message as metadata.
+   * <p>
+   * The keys are {@value MqttConstants#TOPIC_METADATA}, {@value MqttConstants#QOS_METADATA},
+   * {@value MqttConstants#RETAINED_METADATA}, {@value MqttConstants#DUPLICATE_METADATA} and
+   * {@value MqttConstants#MESSAGE_ID_METADATA} (and {@value MqttConstants#CONTENT_TYPE_METADATA} if the
+   * message has a content type), so that messages can be routed by topic without looking at the
+   * payload. The default is false, which adds nothing to the message.
+   * </p>
+   */
+  @AdvancedConfig
+  @InputFieldDefault(value = "false")
+  @Getter
+  @Setter
+  private Boolean addMqttMetadata;
+
+  /**
+   * The client id to connect to the broker with.
+   * <p>
+   * May use the placeholders described in {@link MqttConnection#setClientIdTemplate(String)}, e.g.
+   * {@code {connection}-{component}}; overrides the connection's template for this consumer. If neither is
+   * specified then a random client id is used, so the broker can't resume the client's session
+   * after a restart.
+   * </p>
+   */
+  @AdvancedConfig
+  @Getter
+  @Setter
+  private String clientId;
+
+  /**
+   * Decompress payloads that the producer compressed.
+   * <p>
+   * Must be the same compression as the producer's (see {@link MqttProducerImp#getCompression()});
+   * payloads that are not marked as compressed are processed as they are. The payload is
+   * decompressed before it is decoded. Not set by default, which means that payloads are processed
+   * as they are.
+   * </p>
+   */
+  @Valid
+  @AdvancedConfig
+  @Getter
+  @Setter
+  private MqttCompression compression;
+
+  private transient MqttClient mqttClient;
+  private transient MqttSubscription[] subscriptions;
+  private transient volatile boolean subscribed;
+
+  @Override
+  public void init() throws CoreException {
+    Args.notNull(retrieveConnection(Mqtt5Connection.class), "mqtt5-connection");
+    Mqtt5Connection connection = retrieveConnection(Mqtt5Connection.class);
+    mqttClient = connection.newClient(connection.clientId(getClientId(), getUniqueId()));
+    subscriptions = resolveSubscriptions();
+    retrieveConnection(Mqtt5Connection.class).registerCallback(mqttClient, this);
+    if (timeToWait != null) {
+      mqttClient.setTimeToWait(timeToWait.toMilliseconds());
+    }
+    connection.connectClientInBackground(mqttClient);
+  }
+
+  @Override
+  public void prepare() throws CoreException {
+    if (getTopicFilters() == null || getTopicFilters().isEmpty()) {
+      Args.notNull(getTopic(), "topic");
+    }
+  }
+
+  private MqttSubscription[] resolveSubscriptions() {
+    List<MqttSubscription> result = new ArrayList<>();
+    if (getTopic() != null) {
+      result.add(newSubscription(getTopic(), MqttConstants.QOS_DEFAULT));
+    }
+    if (getTopicFilters() != null) {
+      for (MqttTopicFilter filter : getTopicFilters()) {
+        result.add(newSubscription(filter.getFilter(), filter.getQos()));
+      }
+    }
+    return result.toArray(new MqttSubscription[0]);
+  }
+
+  private MqttSubscription newSubscription(String filter, int qos) {
+    String topicFilter = StringUtils.isBlank(getShareGroup()) || MqttClientCallback.isShared(filter) ? filter
+        : MqttClientCallback.SHARE_PREFIX + getShareGroup() + "/" + filter;
+    MqttSubscription subscription = new MqttSubscription(topicFilter, qos);
+    // No local isn't allowed on a shared subscription.
+    subscription.setNoLocal(BooleanUtils.toBooleanDefaultIfNull(getNoLocal(), false)
+        && !MqttClientCallback.isShared(topicFilter));
+    return subscription;
+  }
+
+  @Override
+  public void start() throws CoreException {
+    startConnection();
+    subscribed = true;
+    subscribeToTopic();
+  }
+
+  private void startConnection() throws CoreException {
+    if (!mqttClient.isConnected()) {
+      log.debug("Connection is not started so we start it");
+      retrieveConnection(Mqtt5Connection.class).startClientConnection(mqttClient);
+    }
+  }
+
+  @Override
+  public void stop() {
+    subscribed = false;
+    unsubscribe();
+    retrieveConnection(Mqtt5Connection.class).stopClientConnection(mqttClient);
+  }
+
+  @Override
+  public void close() {
+    subscribed = false;
+    if (mqttClient.isConnected()) {
+      unsubscribe();
+    }
+    retrieveConnection(Mqtt5Connection.class).closeClientConnection(mqttClient);
+    mqttClient = null;
+  }
+
+  private void unsubscribe() {
+    try {
+      mqttClient.unsubscribe(topicNames());
+    } catch (MqttException mqtte) {
+      log.error("Could not unsuscribe from topics {}", Arrays.toString(topicNames()), mqtte);
+    }
+  }
+
+  private void subscribeToTopic() {
+    try {
+      log.debug("Subscribe to topics {}", Arrays.toString(topicNames()));
+      mqttClient.subscribe(subscriptions);
+    } catch (MqttException mqtte) {
+      log.error("Failed to subscribe to topics {}", Arrays.toString(topicNames()), mqtte);
+    }
+  }
+
+  private String[] topicNames() {
+    return Arrays.stream(subscriptions).map(MqttSubscription::getTopic).toArray(String[]::new);
+  }
+
+  @Override
+  public void connectComplete(boolean reconnect, String serverURI) {
+    log.debug("Connection to server [{}] complete", serverURI);
+    if (reconnect && subscribed) {
+      subscribeToTopic();
+    }
+  }
+
+  @Override
+  public void disconnected(MqttDisconnectResponse disconnectResponse) {
+    log.debug("Disconnected [{}]", disconnectResponse);
+  }
+
+  @Override
+  public void mqttErrorOccurred(MqttException exception) {
+    log.warn("Mqtt error", exception);
+  }
+
+  @Override
+  public void deliveryComplete(IMqttToken token) {
+    log.debug("Message Delivery Complete");
+  }
+
+  @Override
+  public void authPacketArrived(int reasonCode, MqttProperties properties) {
+    log.debug("Auth packet arrived [{}]", reasonCode);
+  }
+
+  @Override
+  public void messageArrived(String topic, MqttMessage message) throws Exception {
+    log.debug("Message Arrived");
+    Mqtt5Connection connection = retrieveConnection(Mqtt5Connection.class);
+    connection.metrics().received();
+    long start = System.nanoTime();
+    try {
+      AdaptrisMessage adaptrisMessage = decode(payload(message));
+      if (BooleanUtils.toBooleanDefaultIfNull(getAddMqttMetadata(), false)) {
+        MqttMetadata.addTo(adaptrisMessage, topic, message);
+      }
+      retrieveAdaptrisMessageListener().onAdaptrisMessage(adaptrisMessage);
+    } finally {
+      connection.metrics().processed(start);
+    }
+  }
+
+  private byte[] payload(MqttMessage message) throws CoreException {
+    MqttCompression c = getCompression();
+    return c == null ? message.getPayload() : MqttCompressed.decompress(c, message.getPayload());
+  }
+
+  @Override
+  protected String newThreadName() {
+    return DestinationHelper.threadName(retrieveAdaptrisMessageListener());
+  }
+
+  public Mqtt5Consumer withTopic(String s) {
+    setTopic(s);
+    return this;
+  }
+
+  public Mqtt5Consumer withTopicFilters(MqttTopicFilter... filters) {
+    setTopicFilters(new ArrayList<>(Arrays.asList(filters)));
+    return this;
+  }
+}
@@ -0,0 +1,154 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.validation.Valid;
+
+import org.eclipse.paho.mqttv5.client.MqttClient;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+
+import com.adaptris.annotation.AdapterComponent;
+import com.adaptris.annotation.AdvancedConfig;
+import com.adaptris.annotation.ComponentProfile;
+import com.adaptris.annotation.DisplayOrder;
+import com.adaptris.core.AdaptrisMessageProducer;
+import com.adaptris.core.CoreException;
+import com.adaptris.interlok.util.Args;
+import com.adaptris.util.TimeInterval;
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * {@link AdaptrisMessageProducer} implementation that sends messages to a MQTT 5.0 topic.
+ * <p>
+ * Requires a {@link Mqtt5Connection}; each publish waits for the broker's acknowledgement in the
+ * same way as {@link MqttProducer}.
+ * </p>
+ * <p>
+ * If the broker allows topic aliases (its Topic Alias Maximum is greater than 0) then the client
+ * gives each new topic an alias until they run out, and later messages to that topic are sent with
+ * the alias instead of the topic name. Aliases are handed out first come, first served and are only
+ * reset when the client reconnects, so a producer with many dynamic topics only saves bytes on the
+ * first topics it publishes to.
+ * </p>
+ *
+ * @config mqtt5-producer
+ * @license STANDARD
+ * @since 4.5.0
+ */
+@XStreamAlias("mqtt5-producer")
+@AdapterComponent
+@ComponentProfile(summary = "Place message on a MQTT 5.0 topic", tag = "producer,mqtt",
+    recommended = {Mqtt5Connection.class}, since = "4.5.0")
+@DisplayOrder(order = {"topic", "qos", "retained", "timeToWait", "messageExpiryInterval", "contentType",
+    "chunkSize"})
+@NoArgsConstructor
+public class Mqtt5Producer extends MqttProducerImp {
+
+  /**
+   * How long the broker should keep the message for subscribers that have not yet received it.
+   * <p>
+   * If not specified then the message does not expire.
+   * </p>
+   */
+  @Valid
+  @AdvancedConfig
+  @Getter
+  @Setter
+  private TimeInterval messageExpiryInterval;
+
+  /**
+   * The content type (e.g. a MIME type) to send with each message.
+   */
+  @AdvancedConfig
+  @Getter
+  @Setter
+  private String contentType;
+
+  private transient MqttClient mqttClient;
+
+  @Override
+  public void init() throws CoreException {
+    Args.notNull(retrieveConnection(Mqtt5Connection.class), "mqtt5-connection");
+    Mqtt5Connection connection = retrieveConnection(Mqtt5Connection.class);
+    mqttClient = connection.newClient(connection.clientId(getClientId(), getUniqueId()));
+    if (getTimeToWait() != null) {
+      mqttClient.setTimeToWait(getTimeToWait().toMilliseconds());
+    }
+    connection.connectClientInBackground(mqttClient);
+  }
+
+  @Override
+  public void start() throws CoreException {
+    startConnection();
+  }
+
+  private void startConnection() throws CoreException {
+    if (!mqttClient.isConnected()) {
+      log.debug("Connection is not started so we start it");
+      retrieveConnection(Mqtt5Connection.class).startClientConnection(mqttClient);
+    }
+  }
+
+  @Override
+  public void stop() {
+    retrieveConnection(Mqtt5Connection.class).stopClientConnection(mqttClient);
+  }
+
+  @Override
+  public void close() {
+    retrieveConnection(Mqtt5Connection.class).closeClientConnection(mqttClient);
+    mqttClient = null;
+  }
+
+  @Override
+  protected void publish(String topic, org.eclipse.paho.client.mqttv3.MqttMessage message) throws Exception {
+    MqttMessage mqtt5Message = new MqttMessage(message.getPayload(), message.getQos(), message.isRetained(),
+        newProperties());
+    long start = System.nanoTime();
+    mqttClient.publish(topic, mqtt5Message);
+    metrics().delivered(start);
+  }
+
+  // Paho adds to the properties whilst sending, so each message needs its own.
+  private MqttProperties newProperties() {
+    MqttProperties properties = new MqttProperties();
+    if (messageExpiryInterval != null) {
+      properties.setMessageExpiryInterval(TimeUnit.MILLISECONDS.toSeconds(messageExpiryInterval.toMilliseconds()));
+    }
+    if (contentType != null) {
+      properties.setContentType(contentType);
+    }
+    return properties;
+  }
+
+  @Override
+  MqttConnectionMetrics metrics() {
+    return retrieveConnection(Mqtt5Connection.class).metrics();
+  }
+
+  public Mqtt5Producer withTopic(String s) {
+    setTopic(s);
+    return this;
+  }
+}
@@ -0,0 +1,495 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+
+package com.adaptris.core.mqtt;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.validation.Valid;
+import javax.validation.constraints.Min;
+
+import org.apache.commons.lang3.ObjectUtils;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import com.adaptris.annotation.AdapterComponent;
+import com.adaptris.annotation.AdvancedConfig;
+import com.adaptris.annotation.ComponentProfile;
+import com.adaptris.annotation.DisplayOrder;
+import com.adaptris.core.AdaptrisMessage;
+import com.adaptris.core.AdaptrisMessageProducer;
+import com.adaptris.core.CoreConstants;
+import com.adaptris.core.CoreException;
+import com.adaptris.core.ProcessingExceptionHandler;
+import com.adaptris.core.ProduceException;
+import com.adaptris.core.services.splitter.MessageSplitter;
+import com.adaptris.core.util.LifecycleHelper;
+import com.adaptris.interlok.util.Args;
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * {@link AdaptrisMessageProducer} implementation that sends messages to a MQTT topic without waiting
+ * for each message to be acknowledged.
+ * <p>
+ * Messages are published using a Paho {@code MqttAsyncClient}; up to {@link #getMaxInFlight()}
+ * deliveries can be outstanding at any one time and the producer only blocks once that window is
+ * full, at which point it waits for the oldest delivery to complete. Each delivery is tracked
+ * against the message that was published, so a delivery that fails once {@code produce} has
+ * returned is logged and passed with its exception to the {@link #getDeliveryErrorHandler()}, rather
+ * than failing whichever message happens to be produced next. Failures are noticed as later messages
+ * are published, or when the producer is stopped.
+ * </p>
+ * <p>
+ * A delivery that isn't acknowledged within {@link #getTimeToWait()} is not treated as a failure, as
+ * the broker may still acknowledge it; it leaves the window with a warning, and is only reported if
+ * it goes on to fail.
+ * </p>
+ * <p>
+ * If the connection has a {@link MqttConnection#getDisconnectedBuffer()} configured then messages
+ * published while the client is reconnecting are buffered rather than failing, and are not held up
+ * by the in-flight window; they are sent as soon as the client has reconnected.
+ * </p>
+ * <p>
+ * If a {@link #getSplitter()} is configured then each message is split and all the parts are
+ * published in one go (see {@link #produceAll(Iterable)}); produce only returns once every part has
+ * been acknowledged, and fails if any of them could not be published.
+ * </p>
+ *
+ * @config mqtt-async-producer
+ * @license STANDARD
+ * @since 4.5.0
+ */
+@XStreamAlias("mqtt-async-producer")
+@AdapterComponent
+@ComponentProfile(summary = "Place message on a MQTT topic without waiting for each acknowledgement",
+    tag = "producer,mqtt", recommended = {MqttConnection.class}, since = "4.5.0")
+@DisplayOrder(order = {"topic", "qos", "retained", "timeToWait", "maxInFlight", "splitter", "chunkSize",
+    "deliveryErrorHandler"})
+@NoArgsConstructor
+public class MqttAsyncProducer extends MqttProducerImp {
+
+  private static final long MAX_IN_FLIGHT_RETRY_MILLIS = 10L;
+
+  /**
+   * The maximum number of deliveries that can be outstanding before publishing blocks.
+   * <p>
+   * The default, and the maximum, is the connection's {@link MqttConnection#getMaxInFlight()}.
+   * </p>
+   */
+  @AdvancedConfig
+  @Min(1)
+  @Getter
+  @Setter
+  private Integer maxInFlight;
+
+  /**
+   * Split each message and publish the parts as a batch.
+   * <p>
+   * The topic is resolved against each part, so it can use metadata that the splitter adds. If not
+   * specified then each message is published as it is.
+   * </p>
+   */
+  @Valid
+  @AdvancedConfig
+  @Getter
+  @Setter
+  private MessageSplitter splitter;
+
+  /**
+   * Handles the messages whose delivery failed after they were produced.
+   * <p>
+   * The message is passed to the handler with the exception as its
+   * {@link CoreConstants#OBJ_METADATA_EXCEPTION} object metadata. If not specified then the failure
+   * is only logged. Not used for messages published with a {@link #getSplitter()}, as produce waits
+   * for all their parts and fails if any of them could not be delivered.
+   * </p>
+   */
+  @Valid
+  @AdvancedConfig
+  @Getter
+  @Setter
+  private ProcessingExceptionHandler deliveryErrorHandler;
+
+  private transient MqttAsyncClient mqttClient;
+  private transient Deque<Delivery> inFlight = new ArrayDeque<>();
+  // Deliveries that weren't acknowledged within the time to wait, but may still complete.
+  private transient List<Delivery> overdue = new ArrayList<>();
+  private transient int window;
+  // The message whose deliveries are being published.
+  private transient Publish publishing;
+  // Not null whilst a batch is being published; delivery failures are collected rather than handled.
+  private transient List<Exception> batchFailures;
+  private transient boolean buffering;
+  private transient IMqttActionListener deliveryListener;
+
+  @Override
+  public void init() throws CoreException {
+    Args.notNull(retrieveConnection(MqttConnection.class), "mqtt-connection");
+    MqttConnection connection = retrieveConnection(MqttConnection.class);
+    mqttClient = connection.newAsyncClient(connection.clientId(getClientId(), getUniqueId()));
+    buffering = retrieveConnection(MqttConnection.class).buffersWhileDisconnected();
+    window = maxInFlight(retrieveConnection(MqttConnection.class).maxInFlight());
+    deliveryListener = new DeliveryListener(metrics());
+    LifecycleHelper.init(getDeliveryErrorHandler());
+    connection.connectAsyncClientInBackground(mqttClient);
+  }
+
+  @Override
+  public void prepare() throws CoreException {
+    super.prepare();
+    LifecycleHelper.prepare(getDeliveryErrorHandler());
+  }
+
+  @Override
+  public void start() throws CoreException {
+    LifecycleHelper.start(getDeliveryErrorHandler());
+    startConnection();
+  }
+
+  private void startConnection() throws CoreException {
+    if (!mqttClient.isConnected()) {
+      log.debug("Connection is not started so we start it");
+      retrieveConnection(MqttConnection.class).startAsyncClientConnection(mqttClient);
+    }
+  }
+
+  @Override
+  public void stop() {
+    synchronized (inFlight) {
+      if (mqttClient.isConnected()) {
+        awaitDeliveries(0);
+        if (!overdue.isEmpty()) {
+          log.warn("Stopping with {} deliveries still unacknowledged", overdue.size());
+        }
+      } else if (buffering) {
+        if (mqttClient.getBufferedMessageCount() > 0) {
+          log.warn("Stopping with {} messages buffered until the client reconnects",
+              mqttClient.getBufferedMessageCount());
+        }
+      } else {
+        abandonDeliveries();
+      }
+      inFlight.clear();
+      overdue.clear();
+    }
+    retrieveConnection(MqttConnection.class).stopAsyncClientConnection(mqttClient);
+    LifecycleHelper.stop(getDeliveryErrorHandler());
+  }
+
+  @Override
+  public void close() {
+    retrieveConnection(MqttConnection.class).closeAsyncClientConnection(mqttClient);
+    mqttClient = null;
+    LifecycleHelper.close(getDeliveryErrorHandler());
+  }
+
+  @Override
+  protected void doProduce(AdaptrisMessage msg, String endpoint) throws ProduceException {
+    if (getSplitter() == null) {
+      publishMessage(msg, endpoint);
+      return;
+    }
+    Iterable<AdaptrisMessage> parts;
+    try {
+      parts = getSplitter().splitMessage(msg);
+    } catch (CoreException e) {
+      throw new ProduceException(e);
+    }
+    try {
+      produceAll(parts);
+    } finally {
+      if (parts instanceof AutoCloseable) {
+        closeQuietly((AutoCloseable) parts);
+      }
+    }
+  }
+
+  /**
+   * Publish all the messages, each to the topic resolved from that message, and wait for them all to
+   * be acknowledged.
+   * <p>
+   * Publishing doesn't stop at the first failure; every message is attempted and a single
+   * {@link ProduceException} reports how many failed, with the first failure as its cause and the
+   * others suppressed. Deliveries are still limited to {@link #getMaxInFlight()} at a time.
+   * </p>
+   *
+   * @param messages the messages to publish.
+   * @throws ProduceException if any of the messages could not be published.
+   */
+  public void produceAll(Iterable<AdaptrisMessage> messages) throws ProduceException {
+    int count = 0;
+    List<Exception> failures = new ArrayList<>();
+    synchronized (inFlight) {
+      // Anything published before the batch isn't part of it.
+      awaitDeliveries(0);
+      batchFailures = failures;
+      try {
+        for (AdaptrisMessage part : messages) {
+          count++;
+          try {
+            publishMessage(part, endpoint(part));
+          } catch (ProduceException e) {
+            log.debug("Failed to publish message [{}]", part.getUniqueId(), e);
+            failures.add(new ProduceException("Failed to publish message [" + part.getUniqueId() + "]", e));
+          }
+        }
+        awaitDeliveries(0);
+      } finally {
+        batchFailures = null;
+      }
+    }
+    log.trace("Published batch of {} messages", count);
+    if (!failures.isEmpty()) {
+      ProduceException e = new ProduceException(
+          String.format("%d of %d messages could not be published", failures.size(), count), failures.get(0));
+      failures.stream().skip(1).forEach(e::addSuppressed);
+      throw e;
+    }
+  }
+
+  private void publishMessage(AdaptrisMessage msg, String endpoint) throws ProduceException {
+    synchronized (inFlight) {
+      publishing = new Publish(msg);
+      try {
+        super.doProduce(msg, endpoint);
+      } finally {
+        publishing = null;
+      }
+    }
+  }
+
+  private void closeQuietly(AutoCloseable closeable) {
+    try {
+      closeable.close();
+    } catch (Exception e) {
+      log.trace("Could not close split messages", e);
+    }
+  }
+
+  @Override
+  protected void publish(String topic, MqttMessage message) throws Exception {
+    synchronized (inFlight) {
+      // Whilst reconnecting messages are buffered by the client, so don't wait for the window.
+      if (mqttClient.isConnected() || !buffering) {
+        awaitDeliveries(window - 1);
+      }
+      inFlight.add(new Delivery(publishWhenClientHasRoom(topic, message), publishing));
+    }
+  }
+
+  /**
+   * Publish the message, waiting for deliveries to complete whilst the client has as many messages
+   * in flight as it allows.
+   * <p>
+   * The window is no bigger than the client's limit, but overdue deliveries still count against the
+   * client until the broker acknowledges them.
+   * </p>
+   */
+  private IMqttDeliveryToken publishWhenClientHasRoom(String topic, MqttMessage message) throws Exception {
+    long deadline = timeToWaitMillis() > 0 ? System.currentTimeMillis() + timeToWaitMillis() : Long.MAX_VALUE;
+    while (true) {
+      try {
+        return mqttClient.publish(topic, message, System.nanoTime(), deliveryListener);
+      } catch (MqttException e) {
+        if (e.getReasonCode() != MqttException.REASON_CODE_MAX_INFLIGHT || System.currentTimeMillis() >= deadline) {
+          throw e;
+        }
+        if (!inFlight.isEmpty()) {
+          awaitDeliveries(inFlight.size() - 1);
+        } else {
+          // Only overdue deliveries are filling the client.
+          pauseBeforeRetry(MAX_IN_FLIGHT_RETRY_MILLIS);
+          checkOverdue();
+        }
+      }
+    }
+  }
+
+  /**
+   * Remove completed deliveries from the window, waiting for the oldest ones until no more than
+   * {@code limit} are outstanding.
+   */
+  private void awaitDeliveries(int limit) {
+    checkOverdue();
+    Delivery oldest;
+    while ((oldest = inFlight.peek()) != null && (inFlight.size() > limit || oldest.token.isComplete())) {
+      inFlight.poll();
+      try {
+        oldest.token.waitForCompletion(timeToWaitMillis());
+      } catch (MqttException e) {
+        if (e.getReasonCode() == MqttException.REASON_CODE_CLIENT_TIMEOUT) {
+          deliveryOverdue(oldest, e);
+        } else {
+          deliveryFailed(oldest.publish, e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Stop waiting for a delivery that wasn't acknowledged in time; it is reported if it later fails.
+   * <p>
+   * A batch can't wait for it, so it counts against the batch.
+   * </p>
+   */
+  private void deliveryOverdue(Delivery delivery, MqttException e) {
+    AdaptrisMessage msg = delivery.publish.msg;
+    if (batchFailures != null) {
+      batchFailures.add(new ProduceException(
+          "Message [" + msg.getUniqueId() + "] was not acknowledged in time, but may still be delivered", e));
+      return;
+    }
+    log.warn("Message [{}] was not acknowledged within {}ms, but may still be delivered", msg.getUniqueId(),
+        timeToWaitMillis());
+    overdue.add(delivery);
+  }
+
+  /**
+   * Forget the overdue deliveries that have since completed, reporting those that failed.
+   */
+  private void checkOverdue() {
+    for (Iterator<Delivery> i = overdue.iterator(); i.hasNext();) {
+      Delivery delivery = i.next();
+      if (delivery.token.isComplete()) {
+        i.remove();
+        if (delivery.token.getException() != null) {
+          deliveryFailed(delivery.publish, delivery.token.getException());
+        }
+      }
+    }
+  }
+
+  /**
+   * Report every delivery that hasn't succeeded as failed; without a buffer the client won't send
+   * them once it has been stopped.
+   */
+  private void abandonDeliveries() {
+    List<Delivery> outstanding = new ArrayList<>(inFlight);
+    outstanding.addAll(overdue);
+    for (Delivery delivery : outstanding) {
+      MqttException e = delivery.token.isComplete() ? delivery.token.getException()
+          : new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+      if (e != null) {
+        deliveryFailed(delivery.publish, e);
+      }
+    }
+  }
+
+  /**
+   * Report a failed delivery against the message that was published; a message published in
+   * several chunks is only reported once.
+   */
+  private void deliveryFailed(Publish publish, MqttException e) {
+    if (publish.failed) {
+      return;
+    }
+    publish.failed = true;
+    AdaptrisMessage msg = publish.msg;
+    metrics().publishFailed();
+    if (batchFailures != null) {
+      batchFailures.add(new ProduceException("Failed to deliver message [" + msg.getUniqueId() + "]", e));
+      return;
+    }
+    log.error("Failed to deliver message [{}]", msg.getUniqueId(), e);
+    if (getDeliveryErrorHandler() != null) {
+      msg.addObjectHeader(CoreConstants.OBJ_METADATA_EXCEPTION, e);
+      getDeliveryErrorHandler().handleProcessingException(msg);
+    }
+  }
+
+  /**
+   * One publish of a message, which may have been sent as several deliveries.
+   */
+  private static class Publish {
+    private final AdaptrisMessage msg;
+    private boolean failed;
+
+    Publish(AdaptrisMessage msg) {
+      this.msg = msg;
+    }
+  }
+
+  /**
+   * A delivery in the window, and the publish it belongs to.
+   */
+  private static class Delivery {
+    private final IMqttDeliveryToken token;
+    private final Publish publish;
+
+    Delivery(IMqttDeliveryToken token, Publish publish) {
+      this.token = token;
+      this.publish = publish;
+    }
+  }
+
+  /**
+   * Records the time taken for the broker to acknowledge each delivery; the publish time is the
+   * token's user context.
+   */
+  private static class DeliveryListener implements IMqttActionListener {
+    private final MqttConnectionMetrics metrics;
+
+    DeliveryListener(MqttConnectionMetrics metrics) {
+      this.metrics = metrics;
+    }
+
+    @Override
+    public void onSuccess(IMqttToken token) {
+      metrics.delivered((Long) token.getUserContext());
+    }
+
+    @Override
+    public void onFailure(IMqttToken token, Throwable exception) {
+      // Reported when the token is waited for.
+    }
+  }
+
+  int maxInFlight(int connectionMaxInFlight) {
+    return Math.min(ObjectUtils.defaultIfNull(getMaxInFlight(), connectionMaxInFlight), connectionMaxInFlight);
+  }
+
+  public MqttAsyncProducer withTopic(String s) {
+    setTopic(s);
+    return this;
+  }
+
+  public MqttAsyncProducer withMaxInFlight(Integer i) {
+    setMaxInFlight(i);
+    return this;
+  }
+
+  public MqttAsyncProducer withSplitter(MessageSplitter s) {
+    setSplitter(s);
+    return this;
+  }
+
+  public MqttAsyncProducer withDeliveryErrorHandler(ProcessingExceptionHandler h) {
+    setDeliveryErrorHandler(h);
+    return this;
+  }
+}
@@ -0,0 +1,150 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import javax.validation.Valid;
+import javax.validation.constraints.Min;
+
+import org.apache.commons.lang3.ObjectUtils;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import com.adaptris.annotation.AdvancedConfig;
+import com.adaptris.annotation.ComponentProfile;
+import com.adaptris.annotation.DisplayOrder;
+import com.adaptris.annotation.InputFieldDefault;
+import com.adaptris.core.AdaptrisMessage;
+import com.adaptris.core.AdaptrisMessageFactory;
+import com.adaptris.util.TimeInterval;
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * Combine the messages that arrive at a {@link MqttConsumer} into batches.
+ * <p>
+ * Each batch is processed as a single message, whose payload is the payloads of the MQTT messages in
+ * the order they arrived, separated by {@link #getSeparator()}. The number of messages is stored as
+ * the {@value MqttConstants#BATCH_SIZE_METADATA} metadata and the topic of each message as
+ * {@value MqttConstants#BATCH_TOPIC_METADATA_PREFIX}{@code <n>}, counting from 0.
+ * </p>
+ * <p>
+ * A batch is processed once it has {@link #getMaxMessages()} messages or {@link #getMaxBytes()}
+ * bytes, or {@link #getMaxLinger()} after its first message arrived, whichever comes first.
+ * </p>
+ *
+ * @config mqtt-batching
+ * @since 4.5.0
+ */
+@XStreamAlias("mqtt-batching")
+@ComponentProfile(summary = "Process arriving MQTT messages in batches", tag = "consumer,mqtt", since = "4.5.0")
+@DisplayOrder(order = {"maxMessages", "maxBytes", "maxLinger", "separator"})
+@NoArgsConstructor
+public class MqttBatching {
+
+  private static final int DEFAULT_MAX_MESSAGES = 1000;
+  private static final long DEFAULT_MAX_BYTES = 1024L * 1024L;
+  private static final TimeInterval DEFAULT_MAX_LINGER = new TimeInterval(1L, TimeUnit.SECONDS);
+  private static final String DEFAULT_SEPARATOR = "\n";
+
+  /**
+   * The maximum number of messages in a batch.
+   * <p>
+   * Defaults to 1000.
+   * </p>
+   * <p>
+   * If the consumer uses {@link MqttConsumer#getManualAcks()}, the messages in a batch are only
+   * acknowledged once it has been processed, and brokers stop sending QoS 1 and 2 messages to a
+   * client that already has their limit of unacknowledged messages (e.g. Mosquitto's
+   * {@code max_inflight_messages}, 20 by default; the receive maximum for MQTT 5.0). A batch can
+   * then never have more messages than that limit, and each one waits for {@link #getMaxLinger()},
+   * so set this to no more than the broker's limit.
+   * </p>
+   */
+  @InputFieldDefault(value = "1000")
+  @Min(1)
+  @Getter
+  @Setter
+  private Integer maxMessages;
+
+  /**
+   * The maximum size of a batch's payload in bytes.
+   * <p>
+   * A message that would take the batch over this size starts a new batch; a single message that is
+   * bigger than this is a batch on its own. Defaults to 1MB.
+   * </p>
+   */
+  @InputFieldDefault(value = "1048576")
+  @Min(1)
+  @Getter
+  @Setter
+  private Long maxBytes;
+
+  /**
+   * The maximum time to wait for a batch to fill up.
+   * <p>
+   * Defaults to 1 second.
+   * </p>
+   */
+  @Valid
+  @InputFieldDefault(value = "1 second")
+  @Getter
+  @Setter
+  private TimeInterval maxLinger;
+
+  /**
+   * The bytes (as UTF-8) written between the payloads of the messages in a batch.
+   * <p>
+   * Defaults to a newline; set to the empty string to simply concatenate the payloads.
+   * </p>
+   */
+  @AdvancedConfig
+  @InputFieldDefault(value = "\\n")
+  @Getter
+  @Setter
+  private String separator;
+
+  public MqttBatching(Integer maxMessages, Long maxBytes, TimeInterval maxLinger) {
+    setMaxMessages(maxMessages);
+    setMaxBytes(maxBytes);
+    setMaxLinger(maxLinger);
+  }
+
+  MessageBatcher createBatcher(AdaptrisMessageFactory messageFactory, String threadName,
+      BiConsumer<AdaptrisMessage, List<MqttMessage>> processor) {
+    return new MessageBatcher(messageFactory, threadName, processor, maxMessages(), maxBytes(), maxLingerMillis(),
+        ObjectUtils.defaultIfNull(getSeparator(), DEFAULT_SEPARATOR).getBytes(StandardCharsets.UTF_8));
+  }
+
+  int maxMessages() {
+    return ObjectUtils.defaultIfNull(getMaxMessages(), DEFAULT_MAX_MESSAGES);
+  }
+
+  long maxBytes() {
+    return ObjectUtils.defaultIfNull(getMaxBytes(), DEFAULT_MAX_BYTES);
+  }
+
+  long maxLingerMillis() {
+    return ObjectUtils.defaultIfNull(getMaxLinger(), DEFAULT_MAX_LINGER).toMilliseconds();
+  }
+}
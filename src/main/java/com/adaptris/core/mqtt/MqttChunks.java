@@ -0,0 +1,85 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.UUID;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * The format of the MQTT messages a chunked transfer is split into.
+ * <p>
+ * Each chunk starts with a fixed size header: the magic {@code IMCK}, a version byte, a flags byte
+ * (bit 0 set on the last chunk), the 16 byte transfer id and the 4 byte sequence number of the chunk
+ * within the transfer; the rest of the MQTT payload is the chunk's data.
+ * </p>
+ */
+final class MqttChunks {
+
+  static final int HEADER_LENGTH = 26;
+
+  private static final int MAGIC = 0x494d434b;
+  private static final byte VERSION = 1;
+  private static final byte LAST = 1;
+
+  private static final int VERSION_OFFSET = 4;
+  private static final int FLAGS_OFFSET = 5;
+  private static final int TRANSFER_ID_OFFSET = 6;
+  private static final int SEQUENCE_OFFSET = 22;
+
+  private MqttChunks() {
+  }
+
+  /**
+   * Read up to {@code chunkSize} bytes into a new chunk, leaving space for the header.
+   *
+   * @return the chunk, whose length is {@link #HEADER_LENGTH} if the stream was exhausted.
+   */
+  static byte[] read(InputStream in, int chunkSize) throws IOException {
+    byte[] chunk = new byte[HEADER_LENGTH + chunkSize];
+    int read = IOUtils.read(in, chunk, HEADER_LENGTH, chunkSize);
+    return read == chunkSize ? chunk : Arrays.copyOf(chunk, HEADER_LENGTH + read);
+  }
+
+  static void writeHeader(byte[] chunk, UUID transferId, int sequence, boolean last) {
+    ByteBuffer.wrap(chunk).putInt(MAGIC).put(VERSION).put(last ? LAST : 0)
+        .putLong(transferId.getMostSignificantBits()).putLong(transferId.getLeastSignificantBits())
+        .putInt(sequence);
+  }
+
+  static boolean isChunk(byte[] payload) {
+    return payload.length >= HEADER_LENGTH && ByteBuffer.wrap(payload).getInt(0) == MAGIC
+        && payload[VERSION_OFFSET] == VERSION;
+  }
+
+  static boolean isLast(byte[] chunk) {
+    return (chunk[FLAGS_OFFSET] & LAST) != 0;
+  }
+
+  static UUID transferId(byte[] chunk) {
+    ByteBuffer buffer = ByteBuffer.wrap(chunk);
+    return new UUID(buffer.getLong(TRANSFER_ID_OFFSET), buffer.getLong(TRANSFER_ID_OFFSET + Long.BYTES));
+  }
+
+  static int sequence(byte[] chunk) {
+    return ByteBuffer.wrap(chunk).getInt(SEQUENCE_OFFSET);
+  }
+}
@@ -0,0 +1,181 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+
+/**
+ * The callback that {@link MqttConnection} installs on each client it creates.
+ * <p>
+ * A Paho client only has a single callback; this fans the events out to every component that has
+ * registered with it, and routes arriving messages to the components whose topic filters match
+ * when the client is shared. Shared subscriptions ({@code $share/<group>/<filter>} or
+ * {@code $queue/<filter>}) are matched against their topic filter. Connection losses and reconnects are also recorded against the
+ * connection's {@link MqttConnectionMetrics}.
+ * </p>
+ * <p>
+ * If the connection has a {@link MqttReconnectPolicy} then the client isn't reconnected by Paho, but
+ * by the connection when this is told the connection was lost; the connect that follows is passed
+ * on as a reconnect, as it would have been by Paho.
+ * </p>
+ */
+class MqttClientCallback implements MqttCallbackExtended {
+
+  static final String SHARE_PREFIX = "$share/";
+  static final String QUEUE_PREFIX = "$queue/";
+
+  private final Map<MqttCallbackExtended, String[]> callbacks = new ConcurrentHashMap<>();
+  // The number of components using each subscription; guarded by this.
+  private final Map<String, Integer> subscriptions = new HashMap<>();
+  private final MqttConnectionMetrics metrics;
+  private final Runnable reconnect;
+  private volatile boolean reconnecting;
+  private volatile long lostAt;
+
+  MqttClientCallback(MqttConnectionMetrics metrics) {
+    this(metrics, null);
+  }
+
+  /**
+   * @param metrics the connection's metrics.
+   * @param reconnect starts reconnecting the client, null if Paho reconnects it.
+   */
+  MqttClientCallback(MqttConnectionMetrics metrics, Runnable reconnect) {
+    this.metrics = metrics;
+    this.reconnect = reconnect;
+  }
+
+  void register(MqttCallbackExtended callback, String... topicFilters) {
+    String[] filters = new String[topicFilters.length];
+    for (int i = 0; i < topicFilters.length; i++) {
+      filters[i] = topicFilter(topicFilters[i]);
+    }
+    callbacks.put(callback, filters);
+  }
+
+  void unregister(MqttCallbackExtended callback) {
+    callbacks.remove(callback);
+  }
+
+  /**
+   * Record that another component is using the subscription.
+   *
+   * @return true if no other component was using it, so the client must subscribe.
+   */
+  synchronized boolean acquire(String subscription) {
+    return subscriptions.merge(subscription, 1, Integer::sum) == 1;
+  }
+
+  /**
+   * Record that a component has stopped using the subscription.
+   *
+   * @return true if no other component is using it, so the client should unsubscribe.
+   */
+  synchronized boolean release(String subscription) {
+    Integer users = subscriptions.computeIfPresent(subscription, (k, v) -> v > 1 ? v - 1 : null);
+    return users == null;
+  }
+
+  @Override
+  public void connectionLost(Throwable cause) {
+    lostAt = System.nanoTime();
+    metrics.connectionLost();
+    for (MqttCallbackExtended callback : callbacks.keySet()) {
+      callback.connectionLost(cause);
+    }
+    if (reconnect != null) {
+      reconnecting = true;
+      reconnect.run();
+    }
+  }
+
+  /**
+   * The connection was dropped on purpose, so the next connection is a reconnect however it is made.
+   */
+  void connectionDropped(Throwable cause) {
+    reconnecting = true;
+    connectionLost(cause);
+  }
+
+  @Override
+  public void messageArrived(String topic, MqttMessage message) throws Exception {
+    if (callbacks.size() == 1) {
+      for (MqttCallbackExtended callback : callbacks.keySet()) {
+        callback.messageArrived(topic, message);
+      }
+      return;
+    }
+    for (Map.Entry<MqttCallbackExtended, String[]> entry : callbacks.entrySet()) {
+      if (matches(entry.getValue(), topic)) {
+        entry.getKey().messageArrived(topic, message);
+      }
+    }
+  }
+
+  @Override
+  public void deliveryComplete(IMqttDeliveryToken token) {
+    for (MqttCallbackExtended callback : callbacks.keySet()) {
+      callback.deliveryComplete(token);
+    }
+  }
+
+  @Override
+  public void connectComplete(boolean reconnect, String serverURI) {
+    boolean reconnected = reconnect || reconnecting;
+    reconnecting = false;
+    if (reconnected) {
+      metrics.reconnected(lostAt);
+    }
+    for (MqttCallbackExtended callback : callbacks.keySet()) {
+      callback.connectComplete(reconnected, serverURI);
+    }
+  }
+
+  static boolean isShared(String subscription) {
+    return subscription.startsWith(SHARE_PREFIX) || subscription.startsWith(QUEUE_PREFIX);
+  }
+
+  /**
+   * The topic filter of a subscription, without any shared subscription prefix.
+   */
+  static String topicFilter(String subscription) {
+    if (subscription.startsWith(SHARE_PREFIX)) {
+      int groupEnd = subscription.indexOf('/', SHARE_PREFIX.length());
+      return groupEnd > 0 ? subscription.substring(groupEnd + 1) : subscription;
+    }
+    if (subscription.startsWith(QUEUE_PREFIX)) {
+      return subscription.substring(QUEUE_PREFIX.length());
+    }
+    return subscription;
+  }
+
+  private static boolean matches(String[] topicFilters, String topic) {
+    for (String filter : topicFilters) {
+      if (MqttTopic.isMatched(filter, topic)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,86 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.adaptris.core.CoreException;
+
+/**
+ * The format of a compressed MQTT payload.
+ * <p>
+ * A compressed payload starts with a fixed size header: the magic {@code IMCZ}, a version byte and
+ * the 4 byte length of the payload before it was compressed; the rest is the output of the
+ * {@link MqttCompression}.
+ * </p>
+ */
+final class MqttCompressed {
+
+  static final int HEADER_LENGTH = 9;
+
+  private static final int MAGIC = 0x494d435a;
+  private static final byte VERSION = 1;
+
+  private static final int VERSION_OFFSET = 4;
+  private static final int LENGTH_OFFSET = 5;
+
+  private MqttCompressed() {
+  }
+
+  /**
+   * Compress the payload, if that makes it smaller.
+   *
+   * @return the compressed payload with its header, or the payload itself if compressing it saved
+   *         nothing (as is usual for very small or already compressed payloads).
+   */
+  static byte[] compress(MqttCompression compression, byte[] payload) throws IOException {
+    byte[] compressed = compression.compress(payload, HEADER_LENGTH);
+    if (compressed.length >= payload.length) {
+      return payload;
+    }
+    ByteBuffer.wrap(compressed).putInt(MAGIC).put(VERSION).putInt(payload.length);
+    return compressed;
+  }
+
+  /**
+   * Decompress the payload if it is compressed.
+   *
+   * @return the decompressed payload, or the payload itself if it isn't compressed.
+   * @throws CoreException if the payload can't be decompressed, e.g. because its header claims a
+   *         length that the compression won't allocate.
+   */
+  static byte[] decompress(MqttCompression compression, byte[] payload) throws CoreException {
+    if (!isCompressed(payload)) {
+      return payload;
+    }
+    int length = ByteBuffer.wrap(payload).getInt(LENGTH_OFFSET);
+    if (length < 0) {
+      throw new CoreException("Compressed payload has a negative length");
+    }
+    try {
+      return compression.decompress(payload, HEADER_LENGTH, length);
+    } catch (IOException e) {
+      throw new CoreException("Could not decompress payload", e);
+    }
+  }
+
+  static boolean isCompressed(byte[] payload) {
+    return payload.length >= HEADER_LENGTH && ByteBuffer.wrap(payload).getInt(0) == MAGIC
+        && payload[VERSION_OFFSET] == VERSION;
+  }
+}
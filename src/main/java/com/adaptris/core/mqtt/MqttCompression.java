@@ -0,0 +1,56 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import java.io.IOException;
+
+/**
+ * Compresses the payloads that a producer publishes, and decompresses them again in the consumer.
+ * <p>
+ * Compressed payloads are marked as such, so a consumer configured with the same compression
+ * decompresses them and passes any other payload on as it is. Implementations are called by many
+ * threads at once.
+ * </p>
+ *
+ * @see MqttProducerImp#setCompression(MqttCompression)
+ * @see MqttConsumer#setCompression(MqttCompression)
+ * @see Mqtt5Consumer#setCompression(MqttCompression)
+ */
+public interface MqttCompression {
+
+  /**
+   * Compress a payload.
+   *
+   * @param payload the payload.
+   * @param offset the number of bytes to leave at the start of the returned array for the marker.
+   * @return an array whose bytes from {@code offset} onwards are the compressed payload; the first
+   *         {@code offset} bytes are overwritten by the caller.
+   */
+  byte[] compress(byte[] payload, int offset) throws IOException;
+
+  /**
+   * Decompress a payload.
+   *
+   * @param compressed an array whose bytes from {@code offset} onwards are a compressed payload.
+   * @param offset where the compressed payload starts.
+   * @param length the length of the payload before it was compressed, as claimed by the message;
+   *        implementations should reject lengths they aren't prepared to allocate.
+   * @return the payload.
+   * @throws IOException if the payload is corrupt, too large, or was not compressed the same way.
+   */
+  byte[] decompress(byte[] compressed, int offset, int length) throws IOException;
+}
@@ -16,38 +16,37 @@
 
 package com.adaptris.core.mqtt;
 
-import java.io.File;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.SocketFactory;
 import javax.validation.Valid;
-import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Min;
 
 import org.apache.commons.lang3.StringUtils;
 import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
 import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
-import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
 
 import com.adaptris.annotation.AdapterComponent;
 import com.adaptris.annotation.AdvancedConfig;
-import com.adaptris.annotation.AutoPopulated;
 import com.adaptris.annotation.ComponentProfile;
 import com.adaptris.annotation.DisplayOrder;
-import com.adaptris.annotation.InputFieldHint;
+import com.adaptris.annotation.InputFieldDefault;
 import com.adaptris.core.AdaptrisConnection;
-import com.adaptris.core.AdaptrisConnectionImp;
 import com.adaptris.core.CoreException;
 import com.adaptris.security.exc.PasswordException;
-import com.adaptris.security.password.Password;
-import com.adaptris.util.KeyValuePair;
-import com.adaptris.util.KeyValuePairSet;
 import com.adaptris.util.TimeInterval;
 import com.thoughtworks.xstream.annotations.XStreamAlias;
 
@@ -62,9 +61,7 @@ import com.thoughtworks.xstream.annotations.XStreamAlias;
 @AdapterComponent
 @ComponentProfile(summary = "Connect to a MQTT broker", tag = "connections,mqtt", since = "3.5.0")
 @DisplayOrder(order = {"username", "password", "serverUri"})
-public class MqttConnection extends AdaptrisConnectionImp /*implements LicensedComponent*/ {
-
-  private static final String PERSISTENCE_LOCATION = ".interlok-mqtt";
+public class MqttConnection extends MqttConnectionImp /*implements LicensedComponent*/ {
 
   public enum MqttProtocolVersion {
     V_3_1(MqttConnectOptions.MQTT_VERSION_3_1),
@@ -81,40 +78,28 @@ public class MqttConnection extends AdaptrisConnectionImp /*implements LicensedC
     }
   }
 
-  @NotNull
-  private String serverUri;
-  private String username;
-  @InputFieldHint(style="PASSWORD")
-  private String password;
   @AdvancedConfig
   private MqttProtocolVersion protocolVersion = MqttProtocolVersion.DEFAULT;
   @AdvancedConfig
   private boolean cleanSession = MqttConnectOptions.CLEAN_SESSION_DEFAULT;
-  @Valid
   @AdvancedConfig
-  private TimeInterval connectionTimeout;
-  @Valid
+  @Min(0)
+  private Integer clientPoolSize;
   @AdvancedConfig
-  private TimeInterval keepAliveInterval;
-  @NotNull
+  @InputFieldDefault(value = "10")
+  @Min(1)
+  private Integer maxInFlight;
   @Valid
-  @AutoPopulated
   @AdvancedConfig
-  private KeyValuePairSet sslProperties;
-  @Valid
-  @AdvancedConfig
-  private MqttLastWill lastWill;
+  private MqttDisconnectedBuffer disconnectedBuffer;
 
   private transient MqttConnectOptions options;
-  // TODO
-  // private transient DisconnectedBufferOptions disconnectedBufferOptions;
 
   private transient Map<String, MqttClient> mqttClients = new ConcurrentHashMap<>();
   private transient Map<String, MqttAsyncClient> mqttAsyncClients = new ConcurrentHashMap<>();
-
-  public MqttConnection() {
-    setSslProperties(new KeyValuePairSet());
-  }
+  private transient Map<String, MqttClientCallback> callbacks = new ConcurrentHashMap<>();
+  private transient Map<String, AtomicInteger> sharedClientUsers = new ConcurrentHashMap<>();
+  private transient Map<String, Long> sharedClientTimeToWait = new ConcurrentHashMap<>();
 
   /*@Override
   public boolean isEnabled(License license) {
@@ -129,30 +114,31 @@ public class MqttConnection extends AdaptrisConnectionImp /*implements LicensedC
   @Override
   protected synchronized void initConnection() throws CoreException {
     log.debug("Init Mqtt Connection");
-    try {
-      initMqttConnectOptions();
-    } catch (Exception e) {
-      throw new CoreException(e);
+    if (getReconnectPolicy() != null && disconnectedBuffer != null) {
+      throw new CoreException("disconnected-buffer only works with Paho's own reconnect; remove the reconnect-policy");
+    }
+    if (disconnectedBuffer != null && disconnectedBuffer.deletesOldestMessages()) {
+      // Paho never completes the token of a message it discards, so the producer would wait for it forever.
+      throw new CoreException("delete-oldest-messages is not supported; publishing must fail when the buffer is full");
     }
+    super.initConnection();
   }
 
   @Override
-  protected void startConnection() throws CoreException {
-    log.debug("Start Mqtt Connection");
+  protected void initOptions() throws Exception {
+    initMqttConnectOptions();
   }
 
-  protected int timeIntervalToSecond(TimeInterval timeInteval) {
-    if (timeInteval != null) {
-      return Long.valueOf(TimeUnit.MILLISECONDS.toSeconds(timeInteval.toMilliseconds())).intValue();
-    }
-    return -1;
+  @Override
+  protected void startConnection() throws CoreException {
+    log.debug("Start Mqtt Connection");
   }
 
   @Override
   protected void stopConnection() {
     log.debug("Disconnect All Mqtt Clients");
     for (MqttClient mqttClient : mqttClients.values()) {
-      stopSyncClientConnection(mqttClient);
+      disconnectSyncClient(mqttClient);
     }
     for (MqttAsyncClient mqttAsyncClient : mqttAsyncClients.values()) {
       stopAsyncClientConnection(mqttAsyncClient);
@@ -160,10 +146,10 @@ public class MqttConnection extends AdaptrisConnectionImp /*implements LicensedC
   }
 
   @Override
-  protected void closeConnection() {
+  protected void closeClients() {
     log.debug("Close All Mqtt Clients");
     for (MqttClient mqttClient : mqttClients.values()) {
-      closeSyncClientConnection(mqttClient);
+      closeSyncClient(mqttClient);
     }
     for (MqttAsyncClient mqttAsyncClient : mqttAsyncClients.values()) {
       closeAsyncClientConnection(mqttAsyncClient);
@@ -172,30 +158,227 @@ public class MqttConnection extends AdaptrisConnectionImp /*implements LicensedC
 
   /**
    * Access method for getting a new synchronous MqttClient for producer/consumer
+   *
+   * @param clientId the client id, null to generate one.
    */
-  private MqttClient newSyncClient() throws CoreException {
+  MqttClient newSyncClient(String clientId) throws CoreException {
+    String id = reserveClientId(clientId, MqttClient::generateClientId);
     try {
-      String clientId = getUniqueId() + "-" + MqttClient.generateClientId();
-      MqttClient mqttClient = new MqttClient(serverUri, clientId, createMqttClientPersistence());
-      mqttClients.put(clientId, mqttClient);
+      MqttClient mqttClient = new MqttClient(getServerUri(), id, createMqttClientPersistence());
+      MqttClientCallback callback = new MqttClientCallback(metrics(),
+          getReconnectPolicy() != null ? () -> reconnect(id, () -> connectSyncClient(mqttClient)) : null);
+      mqttClient.setCallback(callback);
+      callbacks.put(id, callback);
+      mqttClients.put(id, mqttClient);
       return mqttClient;
     } catch (MqttException mqtte) {
+      releaseClientId(id);
       throw new CoreException("Mqtt Client could not be initialized", mqtte);
     }
   }
 
+  /**
+   * Access method for getting one of the pooled synchronous MqttClients that are shared between
+   * producers/consumers.
+   * <p>
+   * If {@link #getClientPoolSize()} is not configured then this is the same as a new unshared client.
+   * Otherwise the least used client from the pool is returned, creating a new one if the pool is not
+   * yet full. Each call must be matched by a call to {@link #closeSyncClientConnection(MqttClient)}.
+   * </p>
+   *
+   * @param clientId the client id to use if clients are not shared, null to generate one.
+   */
+  synchronized MqttClient getSharedSyncClient(String clientId) throws CoreException {
+    if (clientPoolSize() == 0) {
+      return newSyncClient(clientId);
+    }
+    MqttClient leastUsed = null;
+    int leastUsers = Integer.MAX_VALUE;
+    for (Map.Entry<String, AtomicInteger> entry : sharedClientUsers.entrySet()) {
+      if (entry.getValue().get() < leastUsers) {
+        leastUsers = entry.getValue().get();
+        leastUsed = mqttClients.get(entry.getKey());
+      }
+    }
+    if (leastUsed == null || (leastUsers > 0 && sharedClientUsers.size() < clientPoolSize())) {
+      leastUsed = newSyncClient(sharedClientId());
+      sharedClientUsers.put(leastUsed.getClientId(), new AtomicInteger());
+    }
+    sharedClientUsers.get(leastUsed.getClientId()).incrementAndGet();
+    return leastUsed;
+  }
+
+  // The first free slot in the pool, so that a restarted adapter gets the same ids.
+  private String sharedClientId() throws CoreException {
+    if (StringUtils.isBlank(getClientIdTemplate())) {
+      return null;
+    }
+    for (int slot = 0;; slot++) {
+      String clientId = ClientIds.resolve(getClientIdTemplate(), getUniqueId(), "shared-" + slot);
+      if (!mqttClients.containsKey(clientId)) {
+        return clientId;
+      }
+    }
+  }
+
+  /**
+   * Register a component to receive the events for the given client.
+   *
+   * @param mqttClient the client.
+   * @param callback the component's callback.
+   * @param topicFilters the topic filters for which the component should receive messages.
+   */
+  void registerCallback(MqttClient mqttClient, MqttCallbackExtended callback, String... topicFilters) {
+    MqttClientCallback clientCallback = callbacks.get(mqttClient.getClientId());
+    if (clientCallback != null) {
+      clientCallback.register(callback, topicFilters);
+    }
+  }
+
+  void unregisterCallback(MqttClient mqttClient, MqttCallbackExtended callback) {
+    MqttClientCallback clientCallback = callbacks.get(mqttClient.getClientId());
+    if (clientCallback != null) {
+      clientCallback.unregister(callback);
+    }
+  }
+
+  /**
+   * Subscribe the client to the subscriptions that no other component using it has subscribed to.
+   * <p>
+   * A pooled client has a single subscription per topic filter at the broker, however many components
+   * use it; the first component to subscribe sets the QoS.
+   * </p>
+   *
+   * @param mqttClient the client.
+   * @param subscriptions the component's subscriptions.
+   * @param qos the QoS of each subscription.
+   */
+  void subscribe(MqttClient mqttClient, String[] subscriptions, int[] qos) throws MqttException {
+    MqttClientCallback callback = callbacks.get(mqttClient.getClientId());
+    if (callback == null) {
+      mqttClient.subscribe(subscriptions, qos);
+      return;
+    }
+    synchronized (callback) {
+      List<String> filters = new ArrayList<>();
+      List<Integer> filterQos = new ArrayList<>();
+      for (int i = 0; i < subscriptions.length; i++) {
+        if (callback.acquire(subscriptions[i])) {
+          filters.add(subscriptions[i]);
+          filterQos.add(qos[i]);
+        }
+      }
+      if (!filters.isEmpty()) {
+        mqttClient.subscribe(filters.toArray(new String[0]), filterQos.stream().mapToInt(Integer::intValue).toArray());
+      }
+    }
+  }
+
+  /**
+   * Unsubscribe the client from the subscriptions that no other component using it still needs.
+   *
+   * @param mqttClient the client.
+   * @param subscriptions the component's subscriptions, as passed to
+   *        {@link #subscribe(MqttClient, String[], int[])}.
+   */
+  void unsubscribe(MqttClient mqttClient, String[] subscriptions) throws MqttException {
+    MqttClientCallback callback = callbacks.get(mqttClient.getClientId());
+    List<String> filters = new ArrayList<>();
+    if (callback == null) {
+      filters.addAll(Arrays.asList(subscriptions));
+    } else {
+      synchronized (callback) {
+        for (String subscription : subscriptions) {
+          if (callback.release(subscription)) {
+            filters.add(subscription);
+          }
+        }
+      }
+    }
+    if (!filters.isEmpty() && mqttClient.isConnected()) {
+      mqttClient.unsubscribe(filters.toArray(new String[0]));
+    }
+  }
+
+  /**
+   * Set how long the client waits for an action to complete, if {@code timeToWait} is specified.
+   * <p>
+   * A pooled client is shared by several components, so they must agree; the first to specify a
+   * time to wait sets it, and components that don't specify one use it.
+   * </p>
+   *
+   * @throws CoreException if another component sharing the client has specified a different time.
+   */
+  synchronized void setTimeToWait(MqttClient mqttClient, TimeInterval timeToWait) throws CoreException {
+    if (timeToWait == null) {
+      return;
+    }
+    long millis = timeToWait.toMilliseconds();
+    if (isShared(mqttClient)) {
+      Long agreed = sharedClientTimeToWait.putIfAbsent(mqttClient.getClientId(), millis);
+      if (agreed != null && agreed != millis) {
+        throw new CoreException("Mqtt Client [" + mqttClient.getClientId() + "] is shared with a time to wait of "
+            + agreed + "ms; can't use it with " + millis + "ms");
+      }
+    }
+    mqttClient.setTimeToWait(millis);
+  }
+
+  private boolean isShared(MqttClient mqttClient) {
+    return sharedClientUsers.containsKey(mqttClient.getClientId());
+  }
+
+  /**
+   * Connect the client, waiting for the connect started by
+   * {@link #connectSyncClientInBackground(MqttClient)} if there is one.
+   */
   public void startSyncClientConnection(MqttClient mqttClient) throws CoreException {
     log.debug("Connect Mqtt Client");
-    try {
+    connector().connect(mqttClient.getClientId(), () -> connectSyncClient(mqttClient));
+  }
+
+  /**
+   * Start connecting the client on one of this connection's connect threads.
+   * <p>
+   * Components call this when they are initialised and {@link #startSyncClientConnection(MqttClient)}
+   * when they are started, so that up to {@link #getMaxConcurrentConnects()} clients connect at the
+   * same time.
+   * </p>
+   */
+  void connectSyncClientInBackground(MqttClient mqttClient) {
+    connector().connectInBackground(mqttClient.getClientId(), () -> connectSyncClient(mqttClient));
+  }
+
+  private void connectSyncClient(MqttClient mqttClient)
+      throws MqttException, PasswordException, UnsupportedEncodingException {
+    // Shared clients could be started by several components at the same time.
+    synchronized (mqttClient) {
       if (!mqttClient.isConnected()) {
+        long start = System.nanoTime();
         mqttClient.connect(initMqttConnectOptions());
+        metrics().connected(start);
       }
-    } catch (MqttException | PasswordException | UnsupportedEncodingException mqtte) {
-      throw new CoreException(mqtte);
     }
   }
 
+  /**
+   * Disconnect the client.
+   * <p>
+   * A shared client stays connected as other components may still be using it; it will be
+   * disconnected when this connection is stopped.
+   * </p>
+   */
   public void stopSyncClientConnection(MqttClient mqttClient) {
+    if (mqttClient != null && isShared(mqttClient)) {
+      return;
+    }
+    disconnectSyncClient(mqttClient);
+  }
+
+  private void disconnectSyncClient(MqttClient mqttClient) {
+    if (mqttClient != null) {
+      cancelReconnect(mqttClient.getClientId());
+    }
     try {
       if (mqttClient != null && mqttClient.isConnected()) {
         log.debug("Disconnect Mqtt Client [{}]", mqttClient.getClientId());
@@ -206,10 +389,71 @@ public class MqttConnection extends AdaptrisConnectionImp /*implements LicensedC
     }
   }
 
+  /**
+   * Drop the client's connection and reconnect it, as Paho does when a callback throws an exception.
+   * <p>
+   * Once the client reconnects, the broker redelivers the QoS 1 and 2 messages that it hadn't
+   * acknowledged, provided the session was kept ({@link #getCleanSession()} is false).
+   * </p>
+   *
+   * @param mqttClient the client.
+   * @param cause why the connection is being dropped.
+   */
+  void dropSyncClientConnection(MqttClient mqttClient, Throwable cause) {
+    synchronized (mqttClient) {
+      // Otherwise the connection has already been lost, which has the same effect.
+      if (!mqttClient.isConnected()) {
+        return;
+      }
+      try {
+        log.warn("Dropping connection of Mqtt Client [{}] so that unacknowledged messages are redelivered",
+            mqttClient.getClientId());
+        mqttClient.disconnectForcibly(0, 0, false);
+      } catch (MqttException mqtte) {
+        log.error("Could not drop connection", mqtte);
+        return;
+      }
+    }
+    MqttClientCallback callback = callbacks.get(mqttClient.getClientId());
+    if (callback != null) {
+      callback.connectionDropped(cause);
+    }
+    if (getReconnectPolicy() == null) {
+      try {
+        mqttClient.reconnect();
+      } catch (MqttException mqtte) {
+        log.error("Could not reconnect Mqtt Client [{}]", mqttClient.getClientId(), mqtte);
+      }
+    }
+  }
+
+  /**
+   * Close the client.
+   * <p>
+   * A shared client is only closed once the last component using it has closed it.
+   * </p>
+   */
   public void closeSyncClientConnection(MqttClient mqttClient) {
+    if (mqttClient != null) {
+      synchronized (this) {
+        AtomicInteger users = sharedClientUsers.get(mqttClient.getClientId());
+        if (users != null && users.decrementAndGet() > 0) {
+          log.trace("Mqtt Client [{}] is still in use by {} components", mqttClient.getClientId(), users.get());
+          return;
+        }
+        // Out of the pool before it is closed, so that getSharedSyncClient can't hand it out again.
+        sharedClientUsers.remove(mqttClient.getClientId());
+      }
+    }
+    closeSyncClient(mqttClient);
+  }
+
+  private void closeSyncClient(MqttClient mqttClient) {
     try {
       if (mqttClient != null) {
         log.debug("Close Mqtt Client [{}]", mqttClient.getClientId());
+        // A connect still in progress would leave the client connected after it had been closed.
+        forgetPendingConnect(mqttClient.getClientId());
         if (mqttClient.isConnected()) {
           mqttClient.disconnect();
         }
@@ -225,6 +469,7 @@ public class MqttConnection extends AdaptrisConnectionImp /*implements LicensedC
     log.debug("Force Close Mqtt Client");
     try {
       if (mqttClient != null) {
+        forgetPendingConnect(mqttClient.getClientId());
         if (mqttClient.isConnected()) {
           mqttClient.disconnectForcibly();
         }
@@ -236,9 +481,18 @@ public class MqttConnection extends AdaptrisConnectionImp /*implements LicensedC
   }
 
   private void doSyncClientClose(MqttClient mqttClient) throws MqttException {
-    mqttClient.setCallback(null);
-    mqttClient.close();
-    mqttClients.remove(mqttClient.getClientId());
+    try {
+      mqttClient.setCallback(null);
+      mqttClient.close();
+    } finally {
+      mqttClients.remove(mqttClient.getClientId());
+      callbacks.remove(mqttClient.getClientId());
+      sharedClientUsers.remove(mqttClient.getClientId());
+      sharedClientTimeToWait.remove(mqttClient.getClientId());
+      forgetPendingConnect(mqttClient.getClientId());
+      cancelReconnect(mqttClient.getClientId());
+      releaseClientId(mqttClient.getClientId());
+    }
   }
 
   /**
@@ -246,7 +500,7 @@ public class MqttConnection extends AdaptrisConnectionImp /*implements LicensedC
    */
   MqttClient getOrCreateSyncClient(String clientId) throws CoreException {
     if (clientId == null || !mqttClients.containsKey(clientId)) {
-      return newSyncClient();
+      return newSyncClient(null);
     }
     return getSyncClient(clientId);
   }
@@ -257,34 +511,63 @@ public class MqttConnection extends AdaptrisConnectionImp /*implements LicensedC
 
   /**
    * Access method for getting a new asynchronous MqttAsyncClient for producer/consumer
+   *
+   * @param clientId the client id, null to generate one.
    */
-  private MqttAsyncClient newAsyncClient() throws CoreException {
+  MqttAsyncClient newAsyncClient(String clientId) throws CoreException {
+    String id = reserveClientId(clientId, MqttAsyncClient::generateClientId);
     try {
-      String clientId = getUniqueId() + "-" + MqttAsyncClient.generateClientId();
-      MqttAsyncClient mqttAsyncClient = new MqttAsyncClient(serverUri, clientId, createMqttClientPersistence());
-      mqttAsyncClients.put(clientId, mqttAsyncClient);
+      MqttAsyncClient mqttAsyncClient = new MqttAsyncClient(getServerUri(), id, createMqttClientPersistence());
+      if (disconnectedBuffer != null) {
+        mqttAsyncClient.setBufferOpts(disconnectedBuffer.createOptions());
+      }
+      mqttAsyncClient.setCallback(new MqttClientCallback(metrics(),
+          getReconnectPolicy() != null ? () -> reconnect(id, () -> connectAsyncClient(mqttAsyncClient)) : null));
+      mqttAsyncClients.put(id, mqttAsyncClient);
       return mqttAsyncClient;
     } catch (MqttException mqtte) {
+      releaseClientId(id);
       throw new CoreException("Mqtt Async Client could not be initialized", mqtte);
     }
   }
 
+  /**
+   * Connect the client, waiting for the connect started by
+   * {@link #connectAsyncClientInBackground(MqttAsyncClient)} if there is one.
+   */
   public void startAsyncClientConnection(MqttAsyncClient mqttAsyncClient) throws CoreException {
     log.debug("Connect Mqtt Client");
-    try {
+    connector().connect(mqttAsyncClient.getClientId(), () -> connectAsyncClient(mqttAsyncClient));
+  }
+
+  /**
+   * Start connecting the client on one of this connection's connect threads.
+   *
+   * @see #connectSyncClientInBackground(MqttClient)
+   */
+  void connectAsyncClientInBackground(MqttAsyncClient mqttAsyncClient) {
+    connector().connectInBackground(mqttAsyncClient.getClientId(), () -> connectAsyncClient(mqttAsyncClient));
+  }
+
+  private void connectAsyncClient(MqttAsyncClient mqttAsyncClient)
+      throws MqttException, PasswordException, UnsupportedEncodingException {
+    synchronized (mqttAsyncClient) {
       if (!mqttAsyncClient.isConnected()) {
-        mqttAsyncClient.connect(initMqttConnectOptions());
+        long start = System.nanoTime();
+        mqttAsyncClient.connect(initMqttConnectOptions()).waitForCompletion();
+        metrics().connected(start);
       }
-    } catch (MqttException | PasswordException | UnsupportedEncodingException mqtte) {
-      throw new CoreException(mqtte);
     }
   }
 
   public void stopAsyncClientConnection(MqttAsyncClient mqttAsyncClient) {
+    if (mqttAsyncClient != null) {
+      cancelReconnect(mqttAsyncClient.getClientId());
+    }
     try {
       if (mqttAsyncClient != null && mqttAsyncClient.isConnected()) {
         log.debug("Disconnect Async Mqtt Client [{}]", mqttAsyncClient.getClientId());
-        mqttAsyncClient.disconnect();
+        mqttAsyncClient.disconnect().waitForCompletion();
       }
     } catch (MqttException mqtte) {
       log.error("Could not stop connection", mqtte);
@@ -295,8 +578,9 @@ public class MqttConnection extends AdaptrisConnectionImp /*implements LicensedC
     try {
       if (mqttAsyncClient != null) {
         log.debug("Close Async Mqtt Client [{}]", mqttAsyncClient.getClientId());
+        forgetPendingConnect(mqttAsyncClient.getClientId());
         if (mqttAsyncClient.isConnected()) {
-          mqttAsyncClient.disconnect();
+          mqttAsyncClient.disconnect().waitForCompletion();
         }
         doAsyncClientClose(mqttAsyncClient);
       }
@@ -310,6 +594,7 @@ public class MqttConnection extends AdaptrisConnectionImp /*implements LicensedC
     log.debug("Force Close Async Mqtt Client");
     try {
       if (mqttAsyncClient != null) {
+        forgetPendingConnect(mqttAsyncClient.getClientId());
         mqttAsyncClient.disconnectForcibly();
         doAsyncClientClose(mqttAsyncClient);
       }
@@ -319,9 +604,15 @@ public class MqttConnection extends AdaptrisConnectionImp /*implements LicensedC
   }
 
   private void doAsyncClientClose(MqttAsyncClient mqttAsyncClient) throws MqttException {
-    mqttAsyncClient.setCallback(null);
-    mqttAsyncClient.close();
-    mqttAsyncClients.remove(mqttAsyncClient.getClientId());
+    try {
+      mqttAsyncClient.setCallback(null);
+      mqttAsyncClient.close();
+    } finally {
+      mqttAsyncClients.remove(mqttAsyncClient.getClientId());
+      forgetPendingConnect(mqttAsyncClient.getClientId());
+      cancelReconnect(mqttAsyncClient.getClientId());
+      releaseClientId(mqttAsyncClient.getClientId());
+    }
   }
 
   /**
@@ -329,7 +620,7 @@ public class MqttConnection extends AdaptrisConnectionImp /*implements LicensedC
    */
   MqttAsyncClient getOrCreateAsyncClient(String clientId) throws CoreException {
     if (clientId == null || !mqttAsyncClients.containsKey(clientId)) {
-      return newAsyncClient();
+      return newAsyncClient(null);
     }
     return getAsyncClient(clientId);
   }
@@ -338,15 +629,18 @@ public class MqttConnection extends AdaptrisConnectionImp /*implements LicensedC
     return mqttAsyncClients.get(clientId);
   }
 
-  private MqttConnectOptions initMqttConnectOptions() throws PasswordException, UnsupportedEncodingException {
+  private MqttConnectOptions initMqttConnectOptions()
+      throws PasswordException, UnsupportedEncodingException, MqttException {
     if (options == null) {
       options = new MqttConnectOptions();
-      if (StringUtils.isNotBlank(username) && StringUtils.isNotBlank(password)) {
-        options.setUserName(username);
-        options.setPassword(Password.decode(password).toCharArray());
+      String password = decodedPassword();
+      if (password != null) {
+        options.setUserName(getUsername());
+        options.setPassword(password.toCharArray());
       }
       options.setMqttVersion(protocolVersion.getVersionValue());
       options.setCleanSession(cleanSession);
+      options.setMaxInflight(maxInFlight());
 
       int connectionTimeoutSeconds = timeIntervalToSecond(getConnectionTimeout());
       if (connectionTimeoutSeconds > -1) {
@@ -358,89 +652,44 @@ public class MqttConnection extends AdaptrisConnectionImp /*implements LicensedC
         options.setKeepAliveInterval(keepAliveIntervalSeconds);
       }
 
-      Properties sslContextProperties = createSslContextProperties(sslProperties);
+      Properties sslContextProperties = createSslContextProperties(getSslProperties());
       if (sslContextProperties.size() > 0) {
-        options.setSSLProperties(sslContextProperties);
+        SocketFactory socketFactory;
+        try {
+          socketFactory = sslSocketFactory(sslContextProperties);
+        } catch (GeneralSecurityException | IOException e) {
+          throw new MqttException(MqttException.REASON_CODE_SSL_CONFIG_ERROR, e);
+        }
+        if (socketFactory != null) {
+          options.setSocketFactory(socketFactory);
+        } else {
+          options.setSSLProperties(sslContextProperties);
+        }
       }
 
+      MqttLastWill lastWill = getLastWill();
       if (lastWill != null) {
-        byte[] willPayload = lastWill.getPayload() != null ? lastWill.getPayload().getBytes(lastWill.getPayloadCharEncoding()) : null;
-        options.setWill(lastWill.getTopic(), willPayload, lastWill.getQos(), lastWill.getRetained());
+        options.setWill(lastWill.getTopic(), lastWill.payloadBytes(), lastWill.getQos(), lastWill.getRetained());
       }
-      options.setAutomaticReconnect(true);
+      options.setAutomaticReconnect(getReconnectPolicy() == null);
     }
     return options;
   }
 
-  private MqttClientPersistence createMqttClientPersistence() {
-    String userDir = System.getProperty("user.dir");
-    if (!userDir.endsWith(File.separator)) {
-      userDir = userDir + File.separator;
+  @Override
+  protected int inFlightMessageCount() {
+    int count = 0;
+    for (MqttClient mqttClient : mqttClients.values()) {
+      count += mqttClient.getPendingDeliveryTokens().length;
     }
-    return new MqttDefaultFilePersistence(userDir + PERSISTENCE_LOCATION);
-  }
-
-  Properties createSslContextProperties(KeyValuePairSet sslProperties) throws PasswordException {
-    Properties sslContextProperties = new Properties();
-    for (KeyValuePair kvp : sslProperties.getKeyValuePairs()) {
-      SslProperty sslProperty = SslProperty.getIgnoreCase(kvp.getKey());
-      sslProperty.applyProperty(sslContextProperties, kvp.getValue());
+    for (MqttAsyncClient mqttAsyncClient : mqttAsyncClients.values()) {
+      count += mqttAsyncClient.getInFlightMessageCount();
     }
-    return sslContextProperties;
-  }
-
-  /**
-   * The MQTT endpoint
-   *
-   * @return serverUri
-   */
-  public String getServerUri() {
-    return serverUri;
+    return count;
   }
 
-  /**
-   * The MQTT endpoint
-   *
-   * @param serverUri
-   */
-  public void setServerUri(String serverUri) {
-    this.serverUri = serverUri;
-  }
-
-  /**
-   * The username for the MQTT endpoint
-   *
-   * @return username
-   */
-  public String getUsername() {
-    return username;
-  }
-
-  /**
-   * The username for the MQTT endpoint
-   *
-   * @param username
-   */
-  public void setUsername(String username) {
-    this.username = username;
-  }
-
-  /**
-   * The password for the MQTT endpoint. Can be encoded.
-   *
-   * @return password
-   */
-  public String getPassword() {
-    return password;
-  }
-
-  /**
-   * The password for the MQTT endpoint. Can be encoded.
-   *
-   * @param password
-   */
-  public void setPassword(String password) {
-    this.password = password;
+  private MqttClientPersistence createMqttClientPersistence() {
+    return persistence().create();
   }
 
   public MqttProtocolVersion getProtocolVersion() {
@@ -492,141 +741,76 @@ public class MqttConnection extends AdaptrisConnectionImp /*implements LicensedC
   }
 
   /**
-   * Returns the connection timeout value.
+   * The maximum number of clients that are shared between producers and consumers.
    *
-   * @return the connection timeout value.
+   * @return clientPoolSize
    */
-  public TimeInterval getConnectionTimeout() {
-    return connectionTimeout;
+  public Integer getClientPoolSize() {
+    return clientPoolSize;
   }
 
   /**
-   * Sets the connection timeout value. This value, measured in seconds, defines the maximum time
-   * interval the client will wait for the network connection to the MQTT server to be established.
-   * The default timeout is 30 seconds. A value of 0 disables timeout processing meaning the client
-   * will wait until the network connection is made successfully or fails.
+   * Sets the maximum number of clients that are shared between producers and consumers.
+   * <p>
+   * By default each producer and consumer has its own client, and so its own connection to the
+   * broker. If set then {@link MqttProducer} instances share a pool of at most this many clients,
+   * each new producer using the client with the fewest users; consumers only use the pool if
+   * {@link MqttConsumer#getUseSharedClient()} is true. A shared client is only closed once the last
+   * component using it has been closed.
+   * </p>
    *
-   * @param connectionTimeout
+   * @param clientPoolSize the pool size, 0 or null to not share clients.
    */
-  public void setConnectionTimeout(TimeInterval connectionTimeout) {
-    this.connectionTimeout = connectionTimeout;
+  public void setClientPoolSize(Integer clientPoolSize) {
+    this.clientPoolSize = clientPoolSize;
   }
 
-  /**
-   * Returns the "keep alive" interval.
-   *
-   * @return the keep alive interval.
-   */
-  public TimeInterval getKeepAliveInterval() {
-    return keepAliveInterval;
+  public MqttDisconnectedBuffer getDisconnectedBuffer() {
+    return disconnectedBuffer;
   }
 
   /**
-   * Sets the "keep alive" interval. This value, measured in seconds, defines the maximum time
-   * interval between messages sent or received. It enables the client to detect if the server is no
-   * longer available, without having to wait for the TCP/IP timeout. The client will ensure that at
-   * least one message travels across the network within each keep alive period. In the absence of a
-   * data-related message during the time period, the client sends a very small "ping" message,
-   * which the server will acknowledge. A value of 0 disables keepalive processing in the client.
+   * Sets whether asynchronous clients buffer messages published while reconnecting.
    * <p>
-   * The default value is 60 seconds
+   * Without a buffer, publishing while the client is reconnecting to the broker fails; with one the
+   * messages are queued locally and sent, in order, once the client has reconnected.
    * </p>
    *
-   * @param keepAliveInterval the interval.
+   * @param disconnectedBuffer the buffer configuration.
    */
-  public void setKeepAliveInterval(TimeInterval keepAliveInterval) {
-    this.keepAliveInterval = keepAliveInterval;
+  public void setDisconnectedBuffer(MqttDisconnectedBuffer disconnectedBuffer) {
+    this.disconnectedBuffer = disconnectedBuffer;
   }
 
-  /**
-   * Returns the SSL properties for the connection.
-   *
-   * @return the properties for the SSL connection
-   */
-  public KeyValuePairSet getSslProperties() {
-    return sslProperties;
+  public Integer getMaxInFlight() {
+    return maxInFlight;
   }
 
   /**
-   * Sets the SSL properties for the connection. Note that these properties are only valid if an
-   * implementation of the Java Secure Socket Extensions (JSSE) is available. These properties are
-   * <em>not</em> used if a SocketFactory has been set using
-   * {@link MqttConnectOptions#setSocketFactory(SocketFactory)}. The following properties can be
-   * used:
+   * Sets the maximum number of QoS 1 and 2 messages each client can have waiting to be acknowledged
+   * by the broker.
+   * <p>
+   * Producers wait for an earlier delivery to complete rather than fail once a client has this many
+   * outstanding; raise it so that high latency links can keep more messages in flight. The default
+   * is 10, which is Paho's default.
    * </p>
-   * <dl>
-   * <dt>protocol</dt>
-   * <dd>One of: SSL, SSLv3, TLS, TLSv1, SSL_TLS.</dd>
-   * <dt>contextProvider
-   * <dd>Underlying JSSE provider. For example "IBMJSSE2" or "SunJSSE"</dd>
-   *
-   * <dt>keyStore</dt>
-   * <dd>The name of the file that contains the KeyStore object that you want the KeyManager to use.
-   * For example /mydir/etc/key.p12</dd>
-   *
-   * <dt>keyStorePassword</dt>
-   * <dd>The password for the KeyStore object that you want the KeyManager to use. The password can
-   * either be in plain-text, or may be obfuscated using the static method:
-   * <code>com.ibm.micro.security.Password.obfuscate(char[] password)</code>. This obfuscates the
-   * password using a simple and insecure XOR and Base64 encoding mechanism. Note that this is only
-   * a simple scrambler to obfuscate clear-text passwords.</dd>
-   *
-   * <dt>keyStoreType</dt>
-   * <dd>Type of key store, for example "PKCS12", "JKS", or "JCEKS".</dd>
    *
-   * <dt>keyStoreProvider</dt>
-   * <dd>Key store provider, for example "IBMJCE" or "IBMJCEFIPS".</dd>
-   *
-   * <dt>trustStore</dt>
-   * <dd>The name of the file that contains the KeyStore object that you want the TrustManager to
-   * use.</dd>
-   *
-   * <dt>trustStorePassword</dt>
-   * <dd>The password for the TrustStore object that you want the TrustManager to use. The password
-   * can either be in plain-text, or may be obfuscated using the static method:
-   * <code>com.ibm.micro.security.Password.obfuscate(char[] password)</code>. This obfuscates the
-   * password using a simple and insecure XOR and Base64 encoding mechanism. Note that this is only
-   * a simple scrambler to obfuscate clear-text passwords.</dd>
-   *
-   * <dt>trustStoreType</dt>
-   * <dd>The type of KeyStore object that you want the default TrustManager to use. Same possible
-   * values as "keyStoreType".</dd>
-   *
-   * <dt>trustStoreProvider</dt>
-   * <dd>Trust store provider, for example "IBMJCE" or "IBMJCEFIPS".</dd>
-   *
-   * <dt>enabledCipherSuites</dt>
-   * <dd>A list of which ciphers are enabled. Values are dependent on the provider, for example:
-   * SSL_RSA_WITH_AES_128_CBC_SHA;SSL_RSA_WITH_3DES_EDE_CBC_SHA.</dd>
-   *
-   * <dt>keyManager</dt>
-   * <dd>Sets the algorithm that will be used to instantiate a KeyManagerFactory object instead of
-   * using the default algorithm available in the platform. Example values: "IbmX509" or
-   * "IBMJ9X509".</dd>
-   *
-   * <dt>trustManager</dt>
-   * <dd>Sets the algorithm that will be used to instantiate a TrustManagerFactory object instead of
-   * using the default algorithm available in the platform. Example values: "PKIX" or
-   * "IBMJ9X509".</dd>
-   * </dl>
+   * @param maxInFlight the maximum number of messages in flight per client.
    */
-  public void setSslProperties(KeyValuePairSet sslProperties) {
-    this.sslProperties = sslProperties;
+  public void setMaxInFlight(Integer maxInFlight) {
+    this.maxInFlight = maxInFlight;
   }
 
-  public MqttLastWill getLastWill() {
-    return lastWill;
+  boolean buffersWhileDisconnected() {
+    return disconnectedBuffer != null;
   }
 
-  /**
-   * Sets the "Last Will and Testament" (LWT) for the connection. In the event that this client
-   * unexpectedly loses its connection to the server, the server will publish a message to itself
-   * using the supplied details.
-   *
-   * @param lastWill
-   */
-  public void setLastWill(MqttLastWill lastWill) {
-    this.lastWill = lastWill;
+  int maxInFlight() {
+    return maxInFlight != null ? maxInFlight : MqttConnectOptions.MAX_INFLIGHT_DEFAULT;
+  }
+
+  int clientPoolSize() {
+    return clientPoolSize != null ? clientPoolSize : 0;
   }
 
   MqttConnectOptions retrieveOptions() {
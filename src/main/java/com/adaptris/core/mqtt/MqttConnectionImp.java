@@ -0,0 +1,560 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import javax.net.SocketFactory;
+import javax.validation.Valid;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import org.apache.commons.lang3.BooleanUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import com.adaptris.annotation.AdvancedConfig;
+import com.adaptris.annotation.AutoPopulated;
+import com.adaptris.annotation.InputFieldDefault;
+import com.adaptris.annotation.InputFieldHint;
+import com.adaptris.core.AdaptrisConnectionImp;
+import com.adaptris.core.CoreException;
+import com.adaptris.security.exc.PasswordException;
+import com.adaptris.security.password.Password;
+import com.adaptris.util.KeyValuePair;
+import com.adaptris.util.KeyValuePairSet;
+import com.adaptris.util.TimeInterval;
+
+/**
+ * The configuration and client management shared by {@link MqttConnection} and
+ * {@link Mqtt5Connection}.
+ * <p>
+ * Both build their connect options once, when they are initialised; connect their clients on a
+ * shared pool of connect threads; reconnect them according to {@link #getReconnectPolicy()} if one
+ * is set; and record the clients' activity in one {@link MqttConnectionMetrics}.
+ * </p>
+ */
+public abstract class MqttConnectionImp extends AdaptrisConnectionImp {
+
+  private static final int DEFAULT_MAX_CONCURRENT_CONNECTS = 10;
+
+  @NotNull
+  private String serverUri;
+  private String username;
+  @InputFieldHint(style="PASSWORD")
+  private String password;
+  @Valid
+  @AdvancedConfig
+  private TimeInterval connectionTimeout;
+  @Valid
+  @AdvancedConfig
+  private TimeInterval keepAliveInterval;
+  @NotNull
+  @Valid
+  @AutoPopulated
+  @AdvancedConfig
+  private KeyValuePairSet sslProperties;
+  @Valid
+  @AdvancedConfig
+  private MqttLastWill lastWill;
+  @Valid
+  @AdvancedConfig
+  private MqttPersistence persistence;
+  @AdvancedConfig
+  @InputFieldDefault(value = "false")
+  private Boolean jmxMetrics;
+  @AdvancedConfig
+  private String clientIdTemplate;
+  @AdvancedConfig
+  @InputFieldDefault(value = "10")
+  @Min(1)
+  private Integer maxConcurrentConnects;
+  @Valid
+  @AdvancedConfig
+  private MqttReconnectPolicy reconnectPolicy;
+
+  private transient ClientConnector connector;
+  private transient ClientReconnector reconnector;
+  private transient MqttConnectionMetrics metrics = new MqttConnectionMetrics(this::inFlightMessageCount);
+
+  public MqttConnectionImp() {
+    setSslProperties(new KeyValuePairSet());
+  }
+
+  @Override
+  protected synchronized void initConnection() throws CoreException {
+    try {
+      initOptions();
+    } catch (Exception e) {
+      throw new CoreException(e);
+    }
+    if (BooleanUtils.toBooleanDefaultIfNull(getJmxMetrics(), false)) {
+      metrics.register(StringUtils.defaultIfBlank(getUniqueId(), Integer.toHexString(hashCode())));
+    }
+  }
+
+  @Override
+  protected void closeConnection() {
+    closeClients();
+    synchronized (this) {
+      if (connector != null) {
+        connector.shutdown();
+        connector = null;
+      }
+      if (reconnector != null) {
+        reconnector.shutdown();
+        reconnector = null;
+      }
+    }
+    metrics.unregister();
+  }
+
+  /**
+   * Build the options that every client connects with.
+   */
+  protected abstract void initOptions() throws Exception;
+
+  /**
+   * Close every client this connection created.
+   */
+  protected abstract void closeClients();
+
+  /**
+   * The number of QoS 1 and 2 messages the clients are waiting for the broker to acknowledge.
+   */
+  protected abstract int inFlightMessageCount();
+
+  protected int timeIntervalToSecond(TimeInterval timeInteval) {
+    if (timeInteval != null) {
+      return Long.valueOf(TimeUnit.MILLISECONDS.toSeconds(timeInteval.toMilliseconds())).intValue();
+    }
+    return -1;
+  }
+
+  /**
+   * The client id for a producer/consumer.
+   *
+   * @param componentClientId the component's own client id template, may be null.
+   * @param componentId the component's unique-id.
+   * @return the client id, or null if neither the component nor this connection has a template.
+   * @see #setClientIdTemplate(String)
+   */
+  String clientId(String componentClientId, String componentId) throws CoreException {
+    String template = StringUtils.defaultIfBlank(componentClientId, clientIdTemplate);
+    return StringUtils.isBlank(template) ? null : ClientIds.resolve(template, getUniqueId(), componentId);
+  }
+
+  /**
+   * Reserve the id for a new client; release it with {@link #releaseClientId(String)} once the client
+   * is closed.
+   *
+   * @param clientId the client id, null to generate one.
+   * @param randomId generates the random part of the id.
+   * @return the reserved id.
+   */
+  String reserveClientId(String clientId, Supplier<String> randomId) throws CoreException {
+    String id = StringUtils.defaultIfBlank(clientId, getUniqueId() + "-" + randomId.get());
+    ClientIds.reserve(serverUri, id);
+    return id;
+  }
+
+  void releaseClientId(String clientId) {
+    ClientIds.release(serverUri, clientId);
+  }
+
+  synchronized ClientConnector connector() {
+    if (connector == null) {
+      connector = new ClientConnector(threadName("connect"), maxConcurrentConnects());
+    }
+    return connector;
+  }
+
+  // Waits for a connect in progress, so not whilst holding the lock.
+  void forgetPendingConnect(String clientId) {
+    ClientConnector pendingConnects;
+    synchronized (this) {
+      pendingConnects = connector;
+    }
+    if (pendingConnects != null) {
+      pendingConnects.remove(clientId);
+    }
+  }
+
+  /**
+   * Start reconnecting the client according to the {@link #getReconnectPolicy()}.
+   */
+  void reconnect(String clientId, ClientConnector.Connect connect) {
+    ClientReconnector clientReconnector;
+    synchronized (this) {
+      if (reconnector == null) {
+        reconnector = new ClientReconnector(threadName("reconnect"), reconnectPolicy);
+      }
+      clientReconnector = reconnector;
+    }
+    clientReconnector.reconnect(clientId, connect);
+  }
+
+  synchronized void cancelReconnect(String clientId) {
+    if (reconnector != null) {
+      reconnector.cancel(clientId);
+    }
+  }
+
+  private String threadName(String purpose) {
+    return StringUtils.defaultIfBlank(getUniqueId(), getClass().getSimpleName()) + "-" + purpose;
+  }
+
+  /**
+   * The password to connect with, or null if there is no username and password.
+   */
+  String decodedPassword() throws PasswordException {
+    if (StringUtils.isNotBlank(username) && StringUtils.isNotBlank(password)) {
+      return Password.decode(password);
+    }
+    return null;
+  }
+
+  Properties createSslContextProperties(KeyValuePairSet sslProperties) throws PasswordException {
+    Properties sslContextProperties = new Properties();
+    for (KeyValuePair kvp : sslProperties.getKeyValuePairs()) {
+      SslProperty sslProperty = SslProperty.getIgnoreCase(kvp.getKey());
+      sslProperty.applyProperty(sslContextProperties, kvp.getValue());
+    }
+    return sslContextProperties;
+  }
+
+  /**
+   * The socket factory that all the clients share, built from the SSL properties.
+   *
+   * @return the socket factory, or null if the server URI isn't secure, in which case Paho only
+   *         accepts the SSL properties themselves.
+   */
+  SocketFactory sslSocketFactory(Properties sslContextProperties) throws GeneralSecurityException, IOException {
+    return SharedSslSocketFactory.isSecure(serverUri) ? SharedSslSocketFactory.create(sslContextProperties) : null;
+  }
+
+  /**
+   * The MQTT endpoint
+   *
+   * @return serverUri
+   */
+  public String getServerUri() {
+    return serverUri;
+  }
+
+  /**
+   * The MQTT endpoint
+   *
+   * @param serverUri
+   */
+  public void setServerUri(String serverUri) {
+    this.serverUri = serverUri;
+  }
+
+  /**
+   * The username for the MQTT endpoint
+   *
+   * @return username
+   */
+  public String getUsername() {
+    return username;
+  }
+
+  /**
+   * The username for the MQTT endpoint
+   *
+   * @param username
+   */
+  public void setUsername(String username) {
+    this.username = username;
+  }
+
+  /**
+   * The password for the MQTT endpoint. Can be encoded.
+   *
+   * @return password
+   */
+  public String getPassword() {
+    return password;
+  }
+
+  /**
+   * The password for the MQTT endpoint. Can be encoded.
+   *
+   * @param password
+   */
+  public void setPassword(String password) {
+    this.password = password;
+  }
+
+  /**
+   * Returns the connection timeout value.
+   *
+   * @return the connection timeout value.
+   */
+  public TimeInterval getConnectionTimeout() {
+    return connectionTimeout;
+  }
+
+  /**
+   * Sets the connection timeout value. This value, measured in seconds, defines the maximum time
+   * interval the client will wait for the network connection to the MQTT server to be established.
+   * The default timeout is 30 seconds. A value of 0 disables timeout processing meaning the client
+   * will wait until the network connection is made successfully or fails.
+   *
+   * @param connectionTimeout
+   */
+  public void setConnectionTimeout(TimeInterval connectionTimeout) {
+    this.connectionTimeout = connectionTimeout;
+  }
+
+  /**
+   * Returns the "keep alive" interval.
+   *
+   * @return the keep alive interval.
+   */
+  public TimeInterval getKeepAliveInterval() {
+    return keepAliveInterval;
+  }
+
+  /**
+   * Sets the "keep alive" interval. This value, measured in seconds, defines the maximum time
+   * interval between messages sent or received. It enables the client to detect if the server is no
+   * longer available, without having to wait for the TCP/IP timeout. The client will ensure that at
+   * least one message travels across the network within each keep alive period. In the absence of a
+   * data-related message during the time period, the client sends a very small "ping" message,
+   * which the server will acknowledge. A value of 0 disables keepalive processing in the client.
+   * <p>
+   * The default value is 60 seconds
+   * </p>
+   *
+   * @param keepAliveInterval the interval.
+   */
+  public void setKeepAliveInterval(TimeInterval keepAliveInterval) {
+    this.keepAliveInterval = keepAliveInterval;
+  }
+
+  /**
+   * Returns the SSL properties for the connection.
+   *
+   * @return the properties for the SSL connection
+   */
+  public KeyValuePairSet getSslProperties() {
+    return sslProperties;
+  }
+
+  /**
+   * Sets the SSL properties for the connection. Note that these properties are only valid if an
+   * implementation of the Java Secure Socket Extensions (JSSE) is available. These properties are
+   * <em>not</em> used if a SocketFactory has been set using
+   * {@code MqttConnectOptions#setSocketFactory(SocketFactory)}. For {@code ssl://} and {@code wss://}
+   * server URIs the SSL context is built from these properties once, when the connection is
+   * initialised, and shared by all its clients, so that connecting clients resume a TLS session
+   * rather than doing a full handshake. The following properties can be used:
+   * </p>
+   * <dl>
+   * <dt>protocol</dt>
+   * <dd>One of: SSL, SSLv3, TLS, TLSv1, SSL_TLS.</dd>
+   * <dt>contextProvider
+   * <dd>Underlying JSSE provider. For example "IBMJSSE2" or "SunJSSE"</dd>
+   *
+   * <dt>keyStore</dt>
+   * <dd>The name of the file that contains the KeyStore object that you want the KeyManager to use.
+   * For example /mydir/etc/key.p12</dd>
+   *
+   * <dt>keyStorePassword</dt>
+   * <dd>The password for the KeyStore object that you want the KeyManager to use. The password can
+   * either be in plain-text, or may be obfuscated using the static method:
+   * <code>com.ibm.micro.security.Password.obfuscate(char[] password)</code>. This obfuscates the
+   * password using a simple and insecure XOR and Base64 encoding mechanism. Note that this is only
+   * a simple scrambler to obfuscate clear-text passwords.</dd>
+   *
+   * <dt>keyStoreType</dt>
+   * <dd>Type of key store, for example "PKCS12", "JKS", or "JCEKS".</dd>
+   *
+   * <dt>keyStoreProvider</dt>
+   * <dd>Key store provider, for example "IBMJCE" or "IBMJCEFIPS".</dd>
+   *
+   * <dt>trustStore</dt>
+   * <dd>The name of the file that contains the KeyStore object that you want the TrustManager to
+   * use.</dd>
+   *
+   * <dt>trustStorePassword</dt>
+   * <dd>The password for the TrustStore object that you want the TrustManager to use. The password
+   * can either be in plain-text, or may be obfuscated using the static method:
+   * <code>com.ibm.micro.security.Password.obfuscate(char[] password)</code>. This obfuscates the
+   * password using a simple and insecure XOR and Base64 encoding mechanism. Note that this is only
+   * a simple scrambler to obfuscate clear-text passwords.</dd>
+   *
+   * <dt>trustStoreType</dt>
+   * <dd>The type of KeyStore object that you want the default TrustManager to use. Same possible
+   * values as "keyStoreType".</dd>
+   *
+   * <dt>trustStoreProvider</dt>
+   * <dd>Trust store provider, for example "IBMJCE" or "IBMJCEFIPS".</dd>
+   *
+   * <dt>enabledCipherSuites</dt>
+   * <dd>A list of which ciphers are enabled. Values are dependent on the provider, for example:
+   * SSL_RSA_WITH_AES_128_CBC_SHA;SSL_RSA_WITH_3DES_EDE_CBC_SHA.</dd>
+   *
+   * <dt>keyManager</dt>
+   * <dd>Sets the algorithm that will be used to instantiate a KeyManagerFactory object instead of
+   * using the default algorithm available in the platform. Example values: "IbmX509" or
+   * "IBMJ9X509".</dd>
+   *
+   * <dt>trustManager</dt>
+   * <dd>Sets the algorithm that will be used to instantiate a TrustManagerFactory object instead of
+   * using the default algorithm available in the platform. Example values: "PKIX" or
+   * "IBMJ9X509".</dd>
+   * </dl>
+   */
+  public void setSslProperties(KeyValuePairSet sslProperties) {
+    this.sslProperties = sslProperties;
+  }
+
+  public MqttLastWill getLastWill() {
+    return lastWill;
+  }
+
+  /**
+   * Sets the "Last Will and Testament" (LWT) for the connection. In the event that this client
+   * unexpectedly loses its connection to the server, the server will publish a message to itself
+   * using the supplied details.
+   *
+   * @param lastWill
+   */
+  public void setLastWill(MqttLastWill lastWill) {
+    this.lastWill = lastWill;
+  }
+
+  public MqttPersistence getPersistence() {
+    return persistence;
+  }
+
+  /**
+   * Sets how the clients store in-flight QoS 1 and 2 messages.
+   * <p>
+   * The default is {@link MqttFilePersistence} which writes a file per in-flight message; consider
+   * {@link MqttMemoryPersistence} when the broker is the source of truth, or
+   * {@link MqttMappedLogPersistence} to stay durable without the per message file overhead.
+   * </p>
+   *
+   * @param persistence the persistence.
+   */
+  public void setPersistence(MqttPersistence persistence) {
+    this.persistence = persistence;
+  }
+
+  public Boolean getJmxMetrics() {
+    return jmxMetrics;
+  }
+
+  /**
+   * Sets whether to register the connection's runtime metrics as a JMX MBean.
+   * <p>
+   * Metrics such as the publish rate, publish and delivery latency percentiles, the number of
+   * in-flight messages and reconnects are always recorded; if true they are available under
+   * {@code com.adaptris:type=MqttConnectionMetrics,id=<unique-id>} whilst the connection is
+   * initialised, and the connection fails to initialise if another connection with the same unique id
+   * has already registered its metrics. The default is false.
+   * </p>
+   *
+   * @param jmxMetrics true to register the metrics.
+   * @see MqttConnectionMetricsMBean
+   */
+  public void setJmxMetrics(Boolean jmxMetrics) {
+    this.jmxMetrics = jmxMetrics;
+  }
+
+  public String getClientIdTemplate() {
+    return clientIdTemplate;
+  }
+
+  /**
+   * Sets the template for the client ids of this connection's producers and consumers.
+   * <p>
+   * By default every client gets a new random id each time it is created, so the broker never
+   * resumes its session and any session state it kept (with {@code clean-session=false}, or
+   * {@code clean-start=false} and a session expiry interval for MQTT 5.0) is orphaned. With a
+   * template such as {@code {connection}-{component}} each client gets the same id every time the
+   * adapter starts; placeholders are {@code {connection}}, {@code {component}} and
+   * {@code {hostname}}. Producers and consumers can override it with their own {@code client-id}.
+   * Initialising a client fails if another client in this JVM is already using the same id with the
+   * same broker; ids must also be unique across every other client of the broker.
+   * </p>
+   *
+   * @param clientIdTemplate the template.
+   */
+  public void setClientIdTemplate(String clientIdTemplate) {
+    this.clientIdTemplate = clientIdTemplate;
+  }
+
+  public Integer getMaxConcurrentConnects() {
+    return maxConcurrentConnects;
+  }
+
+  /**
+   * Sets the maximum number of clients that connect to the broker at the same time.
+   * <p>
+   * Producers and consumers start connecting their client when they are initialised, on one of this
+   * many threads, and wait for it when they are started; an adapter with many components therefore
+   * doesn't do each handshake one after the other. Lower it if the broker struggles with a burst of
+   * connects. The default is 10.
+   * </p>
+   *
+   * @param maxConcurrentConnects the maximum number of concurrent connects.
+   */
+  public void setMaxConcurrentConnects(Integer maxConcurrentConnects) {
+    this.maxConcurrentConnects = maxConcurrentConnects;
+  }
+
+  public MqttReconnectPolicy getReconnectPolicy() {
+    return reconnectPolicy;
+  }
+
+  /**
+   * Sets how clients reconnect after losing their connection to the broker.
+   * <p>
+   * By default Paho reconnects each client by itself, after a delay that starts at 1 second and
+   * doubles up to 128 seconds; as every producer and consumer has its own client, all of them try to
+   * reconnect at the same moment after a broker restart. {@link MqttExponentialBackoff} adds jitter
+   * and limits how many clients reconnect at the same time. It can't be used with
+   * {@link MqttConnection#setDisconnectedBuffer(MqttDisconnectedBuffer)}, which needs Paho's own
+   * reconnect.
+   * </p>
+   *
+   * @param reconnectPolicy the policy, null to let Paho reconnect.
+   */
+  public void setReconnectPolicy(MqttReconnectPolicy reconnectPolicy) {
+    this.reconnectPolicy = reconnectPolicy;
+  }
+
+  MqttPersistence persistence() {
+    return persistence != null ? persistence : new MqttFilePersistence();
+  }
+
+  int maxConcurrentConnects() {
+    return maxConcurrentConnects != null ? maxConcurrentConnects : DEFAULT_MAX_CONCURRENT_CONNECTS;
+  }
+
+  MqttConnectionMetrics metrics() {
+    return metrics;
+  }
+}
@@ -0,0 +1,336 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adaptris.core.CoreException;
+
+/**
+ * The runtime metrics of a {@link MqttConnection}, shared by all the producers and consumers that
+ * use it.
+ * <p>
+ * Recording only touches striped counters and atomic histogram buckets so it can be done on every
+ * message; the connection registers this as a JMX MBean if {@link MqttConnection#getJmxMetrics()} (or
+ * {@link Mqtt5Connection#getJmxMetrics()}) is true.
+ * </p>
+ *
+ * @since 4.5.0
+ */
+public class MqttConnectionMetrics implements MqttConnectionMetricsMBean {
+
+  static final String OBJECT_NAME_PREFIX = "com.adaptris:type=MqttConnectionMetrics,id=";
+
+  private static final Logger log = LoggerFactory.getLogger(MqttConnectionMetrics.class);
+  private static final double MEDIAN = 50.0;
+  private static final double P99 = 99.0;
+
+  private final LongAdder published = new LongAdder();
+  private final LongAdder publishFailures = new LongAdder();
+  private final LongAdder received = new LongAdder();
+  private final LongAdder connectionsLost = new LongAdder();
+  private final LongAdder reconnects = new LongAdder();
+  private final LongAdder topicCacheHits = new LongAdder();
+  private final LongAdder topicCacheMisses = new LongAdder();
+  private final LongAdder topicCacheEvictions = new LongAdder();
+  private final LongAdder topicCacheSize = new LongAdder();
+  private final RateMeter publishRate = new RateMeter();
+  private final RateMeter receiveRate = new RateMeter();
+  private final LatencyHistogram publishLatency = new LatencyHistogram();
+  private final LatencyHistogram deliveryLatency = new LatencyHistogram();
+  private final LatencyHistogram processingLatency = new LatencyHistogram();
+  private final LatencyHistogram connectLatency = new LatencyHistogram();
+  private final LatencyHistogram reconnectTime = new LatencyHistogram();
+  private final IntSupplier inFlight;
+  private ObjectName objectName;
+
+  MqttConnectionMetrics(IntSupplier inFlight) {
+    this.inFlight = inFlight;
+  }
+
+  /**
+   * Register with the platform MBean server as {@code com.adaptris:type=MqttConnectionMetrics,id=<id>}.
+   *
+   * @throws CoreException if the name is already registered, e.g. by another connection with the
+   *         same unique id.
+   */
+  synchronized void register(String id) throws CoreException {
+    try {
+      MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = objectName(id);
+      if (mbeanServer.isRegistered(name)) {
+        throw new CoreException("Connection metrics [" + name + "] are already registered; is the unique-id ["
+            + id + "] used by another connection?");
+      }
+      mbeanServer.registerMBean(this, name);
+      objectName = name;
+    } catch (JMException e) {
+      throw new CoreException("Could not register the connection metrics", e);
+    }
+  }
+
+  /**
+   * The name the metrics are registered under; an id that can't be used in an {@link ObjectName} as
+   * it is (e.g. one containing a comma, equals sign or asterisk) is quoted.
+   */
+  static ObjectName objectName(String id) throws MalformedObjectNameException {
+    try {
+      ObjectName name = ObjectName.getInstance(OBJECT_NAME_PREFIX + id);
+      // Not if it parsed as a pattern or as more than one key.
+      if (!name.isPattern() && id.equals(name.getKeyProperty("id")) && name.getKeyPropertyList().size() == 2) {
+        return name;
+      }
+    } catch (MalformedObjectNameException e) {
+      // Quote it.
+    }
+    return ObjectName.getInstance(OBJECT_NAME_PREFIX + ObjectName.quote(id));
+  }
+
+  synchronized void unregister() {
+    if (objectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (JMException e) {
+        log.trace("Could not unregister the connection metrics", e);
+      }
+      objectName = null;
+    }
+  }
+
+  /**
+   * Record a message published, having started publishing at {@code startNanos}.
+   */
+  void published(long startNanos) {
+    published.increment();
+    publishRate.mark();
+    publishLatency.record(microsSince(startNanos));
+  }
+
+  void publishFailed() {
+    publishFailures.increment();
+  }
+
+  /**
+   * Record a delivery acknowledged by the broker, having been published at {@code startNanos}.
+   */
+  void delivered(long startNanos) {
+    deliveryLatency.record(microsSince(startNanos));
+  }
+
+  void received() {
+    received.increment();
+    receiveRate.mark();
+  }
+
+  /**
+   * Record a received message processed, having started processing at {@code startNanos}.
+   */
+  void processed(long startNanos) {
+    processingLatency.record(microsSince(startNanos));
+  }
+
+  /**
+   * Record a client connected to the broker, having started connecting at {@code startNanos}.
+   */
+  void connected(long startNanos) {
+    connectLatency.record(microsSince(startNanos));
+  }
+
+  void connectionLost() {
+    connectionsLost.increment();
+  }
+
+  /**
+   * Record a client reconnected, having lost its connection at {@code lostAtNanos}.
+   */
+  void reconnected(long lostAtNanos) {
+    reconnects.increment();
+    reconnectTime.record(microsSince(lostAtNanos));
+  }
+
+  void topicCacheHit() {
+    topicCacheHits.increment();
+  }
+
+  void topicCacheMiss() {
+    topicCacheMisses.increment();
+  }
+
+  void topicCacheEvicted(int count) {
+    topicCacheEvictions.add(count);
+  }
+
+  void topicCacheResized(int delta) {
+    topicCacheSize.add(delta);
+  }
+
+  @Override
+  public long getMessagesPublished() {
+    return published.sum();
+  }
+
+  @Override
+  public long getPublishFailures() {
+    return publishFailures.sum();
+  }
+
+  @Override
+  public double getPublishedPerSecond() {
+    return publishRate.perSecond();
+  }
+
+  @Override
+  public long getPublishLatencyMedianMicros() {
+    return publishLatency.percentile(MEDIAN);
+  }
+
+  @Override
+  public long getPublishLatency99thPercentileMicros() {
+    return publishLatency.percentile(P99);
+  }
+
+  @Override
+  public long getPublishLatencyMaxMicros() {
+    return publishLatency.max();
+  }
+
+  @Override
+  public long getDeliveryLatencyMedianMicros() {
+    return deliveryLatency.percentile(MEDIAN);
+  }
+
+  @Override
+  public long getDeliveryLatency99thPercentileMicros() {
+    return deliveryLatency.percentile(P99);
+  }
+
+  @Override
+  public long getDeliveryLatencyMaxMicros() {
+    return deliveryLatency.max();
+  }
+
+  @Override
+  public long getMessagesReceived() {
+    return received.sum();
+  }
+
+  @Override
+  public double getReceivedPerSecond() {
+    return receiveRate.perSecond();
+  }
+
+  @Override
+  public long getProcessingLatencyMedianMicros() {
+    return processingLatency.percentile(MEDIAN);
+  }
+
+  @Override
+  public long getProcessingLatency99thPercentileMicros() {
+    return processingLatency.percentile(P99);
+  }
+
+  @Override
+  public long getProcessingLatencyMaxMicros() {
+    return processingLatency.max();
+  }
+
+  @Override
+  public int getInFlightMessages() {
+    return inFlight.getAsInt();
+  }
+
+  @Override
+  public long getConnectLatencyMedianMicros() {
+    return connectLatency.percentile(MEDIAN);
+  }
+
+  @Override
+  public long getConnectLatencyMaxMicros() {
+    return connectLatency.max();
+  }
+
+  @Override
+  public long getConnectionsLost() {
+    return connectionsLost.sum();
+  }
+
+  @Override
+  public long getReconnects() {
+    return reconnects.sum();
+  }
+
+  @Override
+  public long getReconnectTimeMedianMicros() {
+    return reconnectTime.percentile(MEDIAN);
+  }
+
+  @Override
+  public long getReconnectTimeMaxMicros() {
+    return reconnectTime.max();
+  }
+
+  @Override
+  public double getTopicCacheHitRate() {
+    long hits = topicCacheHits.sum();
+    long total = hits + topicCacheMisses.sum();
+    return total == 0 ? 0.0 : (double) hits / total;
+  }
+
+  @Override
+  public long getTopicCacheEvictions() {
+    return topicCacheEvictions.sum();
+  }
+
+  @Override
+  public long getTopicCacheSize() {
+    return topicCacheSize.sum();
+  }
+
+  @Override
+  public void reset() {
+    published.reset();
+    publishFailures.reset();
+    received.reset();
+    connectionsLost.reset();
+    reconnects.reset();
+    topicCacheHits.reset();
+    topicCacheMisses.reset();
+    topicCacheEvictions.reset();
+    publishRate.reset();
+    receiveRate.reset();
+    publishLatency.reset();
+    deliveryLatency.reset();
+    processingLatency.reset();
+    connectLatency.reset();
+    reconnectTime.reset();
+  }
+
+  private static long microsSince(long startNanos) {
+    return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+  }
+}
@@ -0,0 +1,154 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+/**
+ * Management interface for the runtime metrics of a {@link MqttConnection}.
+ * <p>
+ * Latencies are reported in microseconds; percentiles are accurate to within ~6%.
+ * </p>
+ *
+ * @since 4.5.0
+ */
+public interface MqttConnectionMetricsMBean {
+
+  /**
+   * The number of messages published.
+   */
+  long getMessagesPublished();
+
+  /**
+   * The number of messages that could not be published.
+   */
+  long getPublishFailures();
+
+  /**
+   * The average number of messages published per second over the last minute.
+   */
+  double getPublishedPerSecond();
+
+  /**
+   * The median time a producer was blocked publishing a message.
+   */
+  long getPublishLatencyMedianMicros();
+
+  /**
+   * The 99th percentile of the time a producer was blocked publishing a message.
+   */
+  long getPublishLatency99thPercentileMicros();
+
+  /**
+   * The maximum time a producer was blocked publishing a message.
+   */
+  long getPublishLatencyMaxMicros();
+
+  /**
+   * The median time between publishing a message and the broker acknowledging it (PUBACK/PUBCOMP).
+   */
+  long getDeliveryLatencyMedianMicros();
+
+  /**
+   * The 99th percentile of the time between publishing a message and the broker acknowledging it.
+   */
+  long getDeliveryLatency99thPercentileMicros();
+
+  /**
+   * The maximum time between publishing a message and the broker acknowledging it.
+   */
+  long getDeliveryLatencyMaxMicros();
+
+  /**
+   * The number of messages received.
+   */
+  long getMessagesReceived();
+
+  /**
+   * The average number of messages received per second over the last minute.
+   */
+  double getReceivedPerSecond();
+
+  /**
+   * The median time taken to process a received message.
+   */
+  long getProcessingLatencyMedianMicros();
+
+  /**
+   * The 99th percentile of the time taken to process a received message.
+   */
+  long getProcessingLatency99thPercentileMicros();
+
+  /**
+   * The maximum time taken to process a received message.
+   */
+  long getProcessingLatencyMaxMicros();
+
+  /**
+   * The number of deliveries that have not yet been acknowledged by the broker, across all clients.
+   */
+  int getInFlightMessages();
+
+  /**
+   * The median time taken for a client to connect to the broker (including TLS and CONNECT/CONNACK).
+   */
+  long getConnectLatencyMedianMicros();
+
+  /**
+   * The maximum time taken for a client to connect to the broker.
+   */
+  long getConnectLatencyMaxMicros();
+
+  /**
+   * The number of times a client lost its connection to the broker.
+   */
+  long getConnectionsLost();
+
+  /**
+   * The number of times a client automatically reconnected to the broker.
+   */
+  long getReconnects();
+
+  /**
+   * The median time between a client losing its connection and reconnecting.
+   */
+  long getReconnectTimeMedianMicros();
+
+  /**
+   * The maximum time between a client losing its connection and reconnecting.
+   */
+  long getReconnectTimeMaxMicros();
+
+  /**
+   * The fraction of topic lookups by the producers that were found in their topic cache.
+   */
+  double getTopicCacheHitRate();
+
+  /**
+   * The number of topics evicted from the producers' topic caches, because they were full or the
+   * topic had expired.
+   */
+  long getTopicCacheEvictions();
+
+  /**
+   * The number of topics currently held in the producers' topic caches.
+   */
+  long getTopicCacheSize();
+
+  /**
+   * Reset all the counters and histograms; the topic cache size is not a counter and isn't reset.
+   */
+  void reset();
+}
@@ -26,5 +26,37 @@ public interface MqttConstants {
    * The default Quality of Service for messages sent by this producer
    */
   public static final boolean RETAINED_DEFAULT = false;
+  /**
+   * The metadata key holding the topic a consumed message was published to.
+   */
+  public static final String TOPIC_METADATA = "mqttTopic";
+  /**
+   * The metadata key holding the QoS a consumed message was delivered with.
+   */
+  public static final String QOS_METADATA = "mqttQos";
+  /**
+   * The metadata key holding whether a consumed message was a retained message.
+   */
+  public static final String RETAINED_METADATA = "mqttRetained";
+  /**
+   * The metadata key holding whether a consumed message may be a redelivery.
+   */
+  public static final String DUPLICATE_METADATA = "mqttDuplicate";
+  /**
+   * The metadata key holding the MQTT message id of a consumed message.
+   */
+  public static final String MESSAGE_ID_METADATA = "mqttMessageId";
+  /**
+   * The metadata key holding the content type of a message consumed over MQTT 5.0, if it had one.
+   */
+  public static final String CONTENT_TYPE_METADATA = "mqttContentType";
+  /**
+   * The metadata key holding the number of MQTT messages in a batch.
+   */
+  public static final String BATCH_SIZE_METADATA = "mqttBatchSize";
+  /**
+   * The prefix of the metadata keys holding the topic of each MQTT message in a batch.
+   */
+  public static final String BATCH_TOPIC_METADATA_PREFIX = "mqttBatchTopic.";
 
 }
@@ -16,21 +16,37 @@
 
 package com.adaptris.core.mqtt;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import javax.validation.Valid;
+import javax.validation.constraints.Min;
+
+import org.apache.commons.lang3.BooleanUtils;
+import org.apache.commons.lang3.ObjectUtils;
+import org.apache.commons.lang3.StringUtils;
 
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
 import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
 import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttTopic;
 
 import com.adaptris.annotation.AdapterComponent;
 import com.adaptris.annotation.AdvancedConfig;
 import com.adaptris.annotation.ComponentProfile;
 import com.adaptris.annotation.DisplayOrder;
+import com.adaptris.annotation.InputFieldDefault;
 import com.adaptris.core.AdaptrisMessage;
 import com.adaptris.core.AdaptrisMessageConsumerImp;
+import com.adaptris.core.AdaptrisMessageFactory;
 import com.adaptris.core.CoreException;
+import com.adaptris.core.lms.FileBackedMessageFactory;
 import com.adaptris.core.util.DestinationHelper;
 import com.adaptris.interlok.util.Args;
 import com.adaptris.util.TimeInterval;
@@ -53,10 +69,17 @@ import lombok.Setter;
 @AdapterComponent
 @ComponentProfile(summary = "Listen for MQTT messages on the specified topic", tag = "consumer,mqtt",
     recommended = {MqttConnection.class}, since = "3.5.0")
-@DisplayOrder(order = {"topic", "destination", "timeToWait"})
+@DisplayOrder(order = {"topic", "topicFilters", "destination", "timeToWait", "shareGroup", "workerThreads", "workerQueueSize",
+    "manualAcks", "addMqttMetadata", "batching", "reassembleChunks", "chunkTimeout", "compression"})
 @NoArgsConstructor
 public class MqttConsumer extends AdaptrisMessageConsumerImp implements MqttCallbackExtended {
 
+  private static final int DEFAULT_WORKER_QUEUE_SIZE = 100;
+  private static final long WORKER_SHUTDOWN_SECONDS = 60;
+  private static final TimeInterval DEFAULT_CHUNK_TIMEOUT = new TimeInterval(5L, TimeUnit.MINUTES);
+  // Batches mix topics, so they all go to the same worker to keep them in order.
+  private static final String BATCH_DISPATCH_KEY = "batch";
+
   @Valid
   @AdvancedConfig
   private TimeInterval timeToWait;
@@ -70,31 +93,305 @@ public class MqttConsumer extends AdaptrisMessageConsumerImp implements MqttCall
   // Needs to be @NotBlank when destination is removed.
   private String topic;
 
+  /**
+   * Additional topic filters to subscribe to, each with its own QoS.
+   * <p>
+   * All the filters (and {@link #getTopic()} if specified) are subscribed to in a single SUBSCRIBE
+   * request on the same client, so one consumer can listen on many topics; filters may contain the
+   * {@code +} and {@code #} wildcards.
+   * </p>
+   */
+  @Valid
+  @Getter
+  @Setter
+  private List<MqttTopicFilter> topicFilters;
+
+  /**
+   * The number of threads used to process messages.
+   * <p>
+   * If not specified then messages are processed on the MQTT client's callback thread which means
+   * that one slow message holds up every other message. If specified then messages are handed off
+   * to this many worker threads; messages from the same topic are always processed by the same
+   * worker so they are processed in the order they arrived.
+   * </p>
+   * <p>
+   * The MQTT client has acknowledged a message by the time a worker processes it, so unless
+   * {@link #getManualAcks()} is true delivery is at most once: a message that fails to process is
+   * logged and lost, rather than redelivered as it would be without worker threads.
+   * </p>
+   */
+  @AdvancedConfig
+  @Min(1)
+  @Getter
+  @Setter
+  private Integer workerThreads;
+
+  /**
+   * The number of messages that can be waiting for each worker thread.
+   * <p>
+   * Once the queue is full the MQTT client stops delivering messages until there is space; the
+   * default is 100. Only used if {@link #getWorkerThreads()} is specified.
+   * </p>
+   */
+  @AdvancedConfig
+  @InputFieldDefault(value = "100")
+  @Min(1)
+  @Getter
+  @Setter
+  private Integer workerQueueSize;
+
+  /**
+   * Whether to use one of the connection's shared clients rather than a dedicated one.
+   * <p>
+   * Only has an effect if {@link MqttConnection#getClientPoolSize()} is configured; the default is
+   * false.
+   * </p>
+   * <p>
+   * Consumers sharing a client with the same topic filter share its subscription: each still
+   * receives every matching message, as it would with its own client, and the client only
+   * unsubscribes once the last of them has stopped.
+   * </p>
+   */
+  @AdvancedConfig
+  @InputFieldDefault(value = "false")
+  @Getter
+  @Setter
+  private Boolean useSharedClient;
+
+  /**
+   * Whether to acknowledge each QoS 1 and 2 message only once it has been processed.
+   * <p>
+   * By default the MQTT client acknowledges a message as soon as it has been handed to this
+   * consumer, so with {@link #getWorkerThreads()} (or {@link #getBatching()}) a message that is still
+   * waiting to be processed is lost if the adapter stops abruptly. If true then the acknowledgement
+   * is only sent after the workflow has processed the message; if processing throws an exception the
+   * message isn't acknowledged, the client's connection is dropped and reconnected (as it is when
+   * processing fails without worker threads), and the broker redelivers the message. Redelivery
+   * needs a session that outlives the connection, so set {@link MqttConnection#getCleanSession()}
+   * to false. The default is false.
+   * </p>
+   * <p>
+   * Messages from a connection that has been dropped that are still waiting for a worker, in a
+   * batch, or part of an incomplete chunked transfer are not processed, as the broker redelivers
+   * them on the new connection. The chunks of a transfer are only acknowledged once the whole
+   * message has been processed.
+   * </p>
+   * <p>
+   * Consumers with manual acknowledgements always use their own client, even if
+   * {@link #getUseSharedClient()} is true, because the setting applies to the whole client. With
+   * worker threads, messages on different topics may be acknowledged in a different order to the one
+   * they arrived in.
+   * </p>
+   */
+  @AdvancedConfig
+  @InputFieldDefault(value = "false")
+  @Getter
+  @Setter
+  private Boolean manualAcks;
+
+  /**
+   * Whether to add the topic, QoS, retained and duplicate flags and message id of each consumed
+   * message as metadata.
+   * <p>
+   * The keys are {@value MqttConstants#TOPIC_METADATA}, {@value MqttConstants#QOS_METADATA},
+   * {@value MqttConstants#RETAINED_METADATA}, {@value MqttConstants#DUPLICATE_METADATA} and
+   * {@value MqttConstants#MESSAGE_ID_METADATA}, so that messages can be routed by topic without
+   * looking at the payload. Batches (see {@link #getBatching()}) only have the topic of each message.
+   * The default is false, which adds nothing to the message.
+   * </p>
+   */
+  @AdvancedConfig
+  @InputFieldDefault(value = "false")
+  @Getter
+  @Setter
+  private Boolean addMqttMetadata;
+
+  /**
+   * The client id to connect to the broker with.
+   * <p>
+   * May use the placeholders described in {@link MqttConnection#setClientIdTemplate(String)}, e.g.
+   * {@code {connection}-{component}}; overrides the connection's template for this consumer. If neither is
+   * specified then a random client id is used, so the broker can't resume the client's session
+   * after a restart. A consumer with its own client id ignores
+   * {@link #getUseSharedClient()}.
+   * </p>
+   */
+  @AdvancedConfig
+  @Getter
+  @Setter
+  private String clientId;
+
+  /**
+   * Subscribe to the topic and topic filters as a shared subscription in this group.
+   * <p>
+   * Each filter is subscribed to as {@code $share/<group>/<filter>}, so that the broker load
+   * balances the messages between every consumer (on any node) that subscribes with the same group,
+   * rather than each of them receiving every message. Shared subscriptions are part of MQTT 5.0, but
+   * most brokers (e.g. HiveMQ, EMQX, Mosquitto, VerneMQ) also support them for MQTT 3.1.1 clients;
+   * filters that already start with {@code $share/} or {@code $queue/} are used as they are.
+   * </p>
+   * <p>
+   * Consumers with a shared subscription always use their own client, even if
+   * {@link #getUseSharedClient()} is true, because the broker balances messages between clients. Not
+   * allowed with {@link #getReassembleChunks()}.
+   * </p>
+   */
+  @AdvancedConfig
+  @Getter
+  @Setter
+  private String shareGroup;
+
+  /**
+   * Whether to reassemble messages that were split into chunks by the producer.
+   * <p>
+   * If true then arriving chunks (see {@link MqttProducerImp#getChunkSize()}) are written to a
+   * message as they arrive, and the message is only processed once the last chunk has arrived.
+   * Unless a message factory is configured a {@link FileBackedMessageFactory} is used so that the
+   * message is not held in memory. Messages that aren't chunks are processed as normal. The default is
+   * false.
+   * </p>
+   * <p>
+   * Every chunk of a message has to arrive at the same consumer, so this can't be used with a
+   * {@link #getShareGroup()} (or filters that are already shared subscriptions): the broker would
+   * spread the chunks across the group. Initialising fails if both are configured.
+   * </p>
+   */
+  @AdvancedConfig
+  @InputFieldDefault(value = "false")
+  @Getter
+  @Setter
+  private Boolean reassembleChunks;
+
+  /**
+   * How long to wait for the next chunk of a message before discarding it.
+   * <p>
+   * The default is 5 minutes. Only used if {@link #getReassembleChunks()} is true.
+   * </p>
+   */
+  @Valid
+  @AdvancedConfig
+  @InputFieldDefault(value = "5 minutes")
+  @Getter
+  @Setter
+  private TimeInterval chunkTimeout;
+
+  /**
+   * Process arriving messages in batches rather than one at a time.
+   * <p>
+   * If specified then each batch becomes a single message (see {@link MqttBatching} for its format),
+   * so the workflow runs once per batch. The encoder is not used for batched messages, and chunks are
+   * still reassembled and processed on their own. Unless {@link #getManualAcks()} is true, the MQTT
+   * client acknowledges each message as it is added to a batch, so a batch that has not yet been
+   * processed is lost if the adapter stops abruptly.
+   * </p>
+   * <p>
+   * With manual acknowledgements, a batch can't have more messages than the broker will have in flight
+   * to the client unacknowledged (see {@link MqttBatching#getMaxMessages()}).
+   * </p>
+   */
+  @Valid
+  @AdvancedConfig
+  @Getter
+  @Setter
+  private MqttBatching batching;
+
+  /**
+   * Decompress payloads that the producer compressed.
+   * <p>
+   * Must be the same compression as the producer's (see {@link MqttProducerImp#getCompression()});
+   * payloads that are not marked as compressed are processed as they are. The payload is
+   * decompressed before it is decoded or batched; a message reassembled from chunks is decompressed
+   * once it is complete, in memory. Not set by default, which means that payloads are processed as
+   * they are.
+   * </p>
+   */
+  @Valid
+  @AdvancedConfig
+  @Getter
+  @Setter
+  private MqttCompression compression;
 
   private transient MqttClient mqttClient;
-  private transient String topicName;
+  private transient String[] topicNames;
+  private transient int[] topicQos;
+  private transient OrderedDispatcher dispatcher;
+  private transient ChunkReassembler reassembler;
+  private transient volatile MessageBatcher batcher;
+  private transient boolean addMetadata;
+  private transient volatile boolean subscribed;
+  private transient boolean sharedClient;
+  // Counts the connections dropped so that messages can be redelivered.
+  private transient AtomicInteger session = new AtomicInteger();
 
   @Override
   public void init() throws CoreException {
     Args.notNull(retrieveConnection(MqttConnection.class), "mqtt-connection");
-    mqttClient = getMqtt();
-    mqttClient.setCallback(this);
-    topicName = mqttClient.getTopic(topicName()).getName();
-    if (timeToWait != null) {
-      long timeToWaitInMillis = timeToWait.toMilliseconds();
-      mqttClient.setTimeToWait(timeToWaitInMillis);
+    resolveTopicFilters();
+    if (BooleanUtils.toBooleanDefaultIfNull(getReassembleChunks(), false) && hasSharedSubscription()) {
+      throw new CoreException("Chunks can't be reassembled from the shared subscriptions " + Arrays.toString(topicNames));
     }
-    startConnection();
+    mqttClient = getMqtt();
+    mqttClient.setManualAcks(manualAcks());
+    addMetadata = BooleanUtils.toBooleanDefaultIfNull(getAddMqttMetadata(), false);
+    retrieveConnection(MqttConnection.class).registerCallback(mqttClient, this, topicNames);
+    retrieveConnection(MqttConnection.class).setTimeToWait(mqttClient, timeToWait);
+    retrieveConnection(MqttConnection.class).connectSyncClientInBackground(mqttClient);
   }
 
   @Override
   public void prepare() throws CoreException {
-    Args.notNull(getTopic(), "topic");
+    if (getTopicFilters() == null || getTopicFilters().isEmpty()) {
+      Args.notNull(getTopic(), "topic");
+    }
+  }
+
+  private void resolveTopicFilters() throws CoreException {
+    List<MqttTopicFilter> filters = new ArrayList<>();
+    if (getTopic() != null) {
+      filters.add(new MqttTopicFilter(topicName(), MqttConstants.QOS_DEFAULT));
+    }
+    if (getTopicFilters() != null) {
+      filters.addAll(getTopicFilters());
+    }
+    topicNames = new String[filters.size()];
+    topicQos = new int[filters.size()];
+    for (int i = 0; i < filters.size(); i++) {
+      try {
+        MqttTopic.validate(filters.get(i).getFilter(), true);
+      } catch (IllegalArgumentException e) {
+        throw new CoreException("Invalid topic filter [" + filters.get(i).getFilter() + "]", e);
+      }
+      topicNames[i] = shared(filters.get(i).getFilter());
+      topicQos[i] = filters.get(i).getQos();
+    }
+  }
+
+  private String shared(String filter) {
+    if (StringUtils.isBlank(getShareGroup()) || MqttClientCallback.isShared(filter)) {
+      return filter;
+    }
+    return MqttClientCallback.SHARE_PREFIX + getShareGroup() + "/" + filter;
+  }
+
+  private boolean hasSharedSubscription() {
+    return Arrays.stream(topicNames).anyMatch(MqttClientCallback::isShared);
   }
 
   @Override
   public void start() throws CoreException {
     startConnection();
+    if (workerThreads != null) {
+      dispatcher = new OrderedDispatcher(newThreadName(), workerThreads, workerQueueSize());
+    }
+    if (BooleanUtils.toBooleanDefaultIfNull(getReassembleChunks(), false)) {
+      reassembler = new ChunkReassembler(ObjectUtils.defaultIfNull(getMessageFactory(), new FileBackedMessageFactory()),
+          newThreadName() + "-chunks", chunkTimeoutMillis(), this::acknowledge);
+    }
+    if (getBatching() != null) {
+      batcher = getBatching().createBatcher(AdaptrisMessageFactory.defaultIfNull(getMessageFactory()),
+          newThreadName() + "-batch", this::processBatch);
+    }
+    subscribed = true;
     subscribeToTopic();
   }
 
@@ -106,28 +403,70 @@ public class MqttConsumer extends AdaptrisMessageConsumerImp implements MqttCall
   }
 
   private MqttClient getMqtt() throws CoreException {
-    return retrieveConnection(MqttConnection.class).getOrCreateSyncClient(null);
+    MqttConnection connection = retrieveConnection(MqttConnection.class);
+    String clientId = connection.clientId(getClientId(), getUniqueId());
+    if (BooleanUtils.toBooleanDefaultIfNull(getUseSharedClient(), false)) {
+      if (hasSharedSubscription()) {
+        log.warn("Ignoring use-shared-client as {} are shared subscriptions", Arrays.toString(topicNames));
+        return connection.newSyncClient(clientId);
+      }
+      if (manualAcks()) {
+        log.warn("Ignoring use-shared-client as manual-acks is true");
+        return connection.newSyncClient(clientId);
+      }
+      if (StringUtils.isNotBlank(getClientId())) {
+        log.warn("Ignoring use-shared-client as client-id is set");
+        return connection.newSyncClient(clientId);
+      }
+      sharedClient = true;
+      return connection.getSharedSyncClient(null);
+    }
+    return connection.newSyncClient(clientId);
   }
 
   @Override
   public void stop() {
-    try {
-      mqttClient.unsubscribe(topicName);
-    } catch (MqttException mqtte) {
-      log.error("Could not unsuscribe from topic {}", topicName, mqtte);
-    }
+    unsubscribeFromTopic();
+    stopBatcher();
+    stopDispatcher();
+    stopReassembler();
     retrieveConnection(MqttConnection.class).stopSyncClientConnection(mqttClient);
   }
 
-  @Override
-  public void close() {
-    try {
-      if (mqttClient.isConnected()) {
-        mqttClient.unsubscribe(topicName);
+  private void stopReassembler() {
+    if (reassembler != null) {
+      reassembler.shutdown();
+      reassembler = null;
+    }
+  }
+
+  // Whatever is left is processed before the workers are stopped.
+  private void stopBatcher() {
+    MessageBatcher batch = batcher;
+    if (batch != null) {
+      batcher = null;
+      batch.shutdown();
+    }
+  }
+
+  private void stopDispatcher() {
+    if (dispatcher != null) {
+      try {
+        dispatcher.shutdown(WORKER_SHUTDOWN_SECONDS, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
       }
-    } catch (MqttException mqtte) {
-      log.error("Could not unsuscribe from topic {}", topicName, mqtte);
+      dispatcher = null;
     }
+  }
+
+  @Override
+  public void close() {
+    unsubscribeFromTopic();
+    stopBatcher();
+    stopDispatcher();
+    stopReassembler();
+    retrieveConnection(MqttConnection.class).unregisterCallback(mqttClient, this);
     retrieveConnection(MqttConnection.class).closeSyncClientConnection(mqttClient);
     mqttClient = null;
   }
@@ -136,17 +475,41 @@ public class MqttConsumer extends AdaptrisMessageConsumerImp implements MqttCall
   @Override
   public void connectComplete(boolean reconnect, String serverURI) {
     log.debug("Connection to server [{}] complete", serverURI);
-    if (reconnect) {
-      subscribeToTopic();
+    // The client may be shared and reconnect whilst this consumer is stopped.
+    if (reconnect && subscribed) {
+      resubscribeToTopic();
     }
   }
 
   private void subscribeToTopic() {
     try {
-      log.debug("Subscribe to topic [{}]", topicName);
-      mqttClient.subscribe(topicName);
+      log.debug("Subscribe to topics {}", Arrays.toString(topicNames));
+      retrieveConnection(MqttConnection.class).subscribe(mqttClient, topicNames, topicQos);
+    } catch (MqttException mqtte) {
+      log.error("Failed to subscribe to topics {}", Arrays.toString(topicNames), mqtte);
+    }
+  }
+
+  // The broker may have forgotten the subscriptions, which the connection still counts as held.
+  private void resubscribeToTopic() {
+    try {
+      log.debug("Resubscribe to topics {}", Arrays.toString(topicNames));
+      mqttClient.subscribe(topicNames, topicQos);
     } catch (MqttException mqtte) {
-      log.error("Failed to subscribe to topic [{}]", topicName, mqtte);
+      log.error("Failed to subscribe to topics {}", Arrays.toString(topicNames), mqtte);
+    }
+  }
+
+  // A pooled client stays subscribed to the filters that other consumers using it still need.
+  private void unsubscribeFromTopic() {
+    if (!subscribed) {
+      return;
+    }
+    subscribed = false;
+    try {
+      retrieveConnection(MqttConnection.class).unsubscribe(mqttClient, topicNames);
+    } catch (MqttException mqtte) {
+      log.error("Could not unsuscribe from topics {}", Arrays.toString(topicNames), mqtte);
     }
   }
 
@@ -161,10 +524,159 @@ public class MqttConsumer extends AdaptrisMessageConsumerImp implements MqttCall
   }
 
   @Override
-  public void messageArrived(String arg0, MqttMessage message) throws Exception {
+  public void messageArrived(String topic, MqttMessage message) throws Exception {
+    // Another consumer using the same pooled client may still be subscribed to the topic.
+    if (sharedClient && !subscribed) {
+      return;
+    }
     log.debug("Message Arrived");
-    AdaptrisMessage adaptrisMessage = decode(message.getPayload());
-    retrieveAdaptrisMessageListener().onAdaptrisMessage(adaptrisMessage);
+    retrieveConnection(MqttConnection.class).metrics().received();
+    MessageBatcher batch = batcher;
+    if (batch != null && !(reassembler != null && MqttChunks.isChunk(message.getPayload()))) {
+      batch.add(topic, message, payload(message));
+      return;
+    }
+    OrderedDispatcher workers = dispatcher;
+    if (workers != null) {
+      int arrivedIn = session.get();
+      workers.dispatch(topic, () -> processQuietly(topic, message, arrivedIn));
+    } else {
+      acknowledge(process(topic, message));
+    }
+  }
+
+  /**
+   * Process the message, or add it to its chunked transfer.
+   *
+   * @return the MQTT messages that have now been processed.
+   */
+  private List<MqttMessage> process(String topic, MqttMessage message) throws CoreException {
+    long start = System.nanoTime();
+    try {
+      AdaptrisMessage adaptrisMessage;
+      List<MqttMessage> processed;
+      ChunkReassembler chunks = reassembler;
+      if (chunks != null && MqttChunks.isChunk(message.getPayload())) {
+        ChunkReassembler.Reassembled transfer = chunks.add(message);
+        if (transfer == null) {
+          return Collections.emptyList();
+        }
+        adaptrisMessage = transfer.message();
+        processed = transfer.chunks();
+        decompress(adaptrisMessage);
+      } else {
+        adaptrisMessage = decode(payload(message));
+        processed = Collections.singletonList(message);
+      }
+      if (addMetadata) {
+        MqttMetadata.addTo(adaptrisMessage, topic, message);
+      }
+      retrieveAdaptrisMessageListener().onAdaptrisMessage(adaptrisMessage);
+      return processed;
+    } finally {
+      retrieveConnection(MqttConnection.class).metrics().processed(start);
+    }
+  }
+
+  private byte[] payload(MqttMessage message) throws CoreException {
+    MqttCompression c = getCompression();
+    return c == null ? message.getPayload() : MqttCompressed.decompress(c, message.getPayload());
+  }
+
+  private void decompress(AdaptrisMessage msg) throws CoreException {
+    MqttCompression c = getCompression();
+    if (c != null) {
+      byte[] payload = msg.getPayload();
+      byte[] decompressed = MqttCompressed.decompress(c, payload);
+      if (decompressed != payload) {
+        msg.setPayload(decompressed);
+      }
+    }
+  }
+
+  private void processBatch(AdaptrisMessage batch, List<MqttMessage> messages) {
+    int arrivedIn = session.get();
+    OrderedDispatcher workers = dispatcher;
+    if (workers != null) {
+      workers.dispatch(BATCH_DISPATCH_KEY, () -> processBatchQuietly(batch, messages, arrivedIn));
+    } else {
+      processBatchQuietly(batch, messages, arrivedIn);
+    }
+  }
+
+  private void processBatchQuietly(AdaptrisMessage batch, List<MqttMessage> messages, int arrivedIn) {
+    if (arrivedIn != session.get()) {
+      log.debug("Skipping batch from a dropped connection, it will be redelivered");
+      return;
+    }
+    long start = System.nanoTime();
+    try {
+      retrieveAdaptrisMessageListener().onAdaptrisMessage(batch);
+      acknowledge(messages, arrivedIn);
+    } catch (Exception e) {
+      log.error("Failed to process batch of {} messages", batch.getMetadataValue(MqttConstants.BATCH_SIZE_METADATA), e);
+      redeliver(e, arrivedIn);
+    } finally {
+      retrieveConnection(MqttConnection.class).metrics().processed(start);
+    }
+  }
+
+  private void processQuietly(String topic, MqttMessage message, int arrivedIn) {
+    if (arrivedIn != session.get()) {
+      log.debug("Skipping message [{}] from a dropped connection, it will be redelivered", message.getId());
+      return;
+    }
+    try {
+      acknowledge(process(topic, message), arrivedIn);
+    } catch (Exception e) {
+      log.error("Failed to process message", e);
+      redeliver(e, arrivedIn);
+    }
+  }
+
+  /**
+   * Have the broker redeliver the messages that haven't been acknowledged, if acknowledgements are
+   * manual; otherwise the failed message is lost.
+   * <p>
+   * Paho drops the connection if processing throws an exception on its callback thread; this does
+   * the same for messages processed elsewhere. Only the first failure from a connection drops it;
+   * the messages from that connection that are still waiting to be processed are skipped, along with
+   * any open batch and incomplete transfers, as their message ids mean nothing to the new connection.
+   * </p>
+   */
+  private void redeliver(Exception cause, int arrivedIn) {
+    MqttClient client = mqttClient;
+    if (manualAcks() && client != null && subscribed && session.compareAndSet(arrivedIn, arrivedIn + 1)) {
+      MessageBatcher batch = batcher;
+      if (batch != null) {
+        batch.discard();
+      }
+      ChunkReassembler chunks = reassembler;
+      if (chunks != null) {
+        chunks.clear();
+      }
+      retrieveConnection(MqttConnection.class).dropSyncClientConnection(client, cause);
+    }
+  }
+
+  private void acknowledge(List<MqttMessage> messages, int arrivedIn) {
+    // Acknowledging on the new connection would acknowledge some other message.
+    if (arrivedIn == session.get()) {
+      acknowledge(messages);
+    }
+  }
+
+  private void acknowledge(List<MqttMessage> messages) {
+    MqttClient client = mqttClient;
+    if (manualAcks() && client != null) {
+      for (MqttMessage message : messages) {
+        try {
+          client.messageArrivedComplete(message.getId(), message.getQos());
+        } catch (MqttException e) {
+          log.warn("Could not acknowledge message [{}]", message.getId(), e);
+        }
+      }
+    }
   }
 
   /**
@@ -190,6 +702,10 @@ public class MqttConsumer extends AdaptrisMessageConsumerImp implements MqttCall
    * action carries on running in the background until it completes. The timeout is used on methods
    * that block while the action is in progress.
    * </p>
+   * <p>
+   * A client from the connection's pool is shared, so every component sharing it that specifies a
+   * time to wait must specify the same one; initialising fails otherwise.
+   * </p>
    *
    * @param timeToWait before the action times out. A value or 0 will wait until the action finishes
    *        and not timeout.
@@ -208,6 +724,58 @@ public class MqttConsumer extends AdaptrisMessageConsumerImp implements MqttCall
     return this;
   }
 
+  public MqttConsumer withTopicFilters(MqttTopicFilter... filters) {
+    setTopicFilters(new ArrayList<>(Arrays.asList(filters)));
+    return this;
+  }
+
+  public MqttConsumer withShareGroup(String s) {
+    setShareGroup(s);
+    return this;
+  }
+
+  public MqttConsumer withWorkerThreads(Integer i) {
+    setWorkerThreads(i);
+    return this;
+  }
+
+  public MqttConsumer withManualAcks(Boolean b) {
+    setManualAcks(b);
+    return this;
+  }
+
+  public MqttConsumer withAddMqttMetadata(Boolean b) {
+    setAddMqttMetadata(b);
+    return this;
+  }
+
+  public MqttConsumer withClientId(String s) {
+    setClientId(s);
+    return this;
+  }
+
+  public MqttConsumer withBatching(MqttBatching b) {
+    setBatching(b);
+    return this;
+  }
+
+  public MqttConsumer withReassembleChunks(Boolean b) {
+    setReassembleChunks(b);
+    return this;
+  }
+
+  long chunkTimeoutMillis() {
+    return chunkTimeout != null ? chunkTimeout.toMilliseconds() : DEFAULT_CHUNK_TIMEOUT.toMilliseconds();
+  }
+
+  boolean manualAcks() {
+    return BooleanUtils.toBooleanDefaultIfNull(getManualAcks(), false);
+  }
+
+  int workerQueueSize() {
+    return ObjectUtils.defaultIfNull(getWorkerQueueSize(), DEFAULT_WORKER_QUEUE_SIZE);
+  }
+
   private String topicName() {
     return getTopic();
   }
@@ -0,0 +1,223 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
+
+import org.apache.commons.lang3.ObjectUtils;
+
+import com.adaptris.annotation.ComponentProfile;
+import com.adaptris.annotation.DisplayOrder;
+import com.adaptris.annotation.InputFieldDefault;
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * Compress payloads with {@link Deflater}, optionally with a preset dictionary.
+ * <p>
+ * Small messages, such as a single telemetry reading, have little repetition of their own to
+ * compress; a dictionary of the strings they have in common (field names, units, device ids) lets
+ * even those be compressed well. Producers and consumers must use the same dictionary. Each thread
+ * reuses its own {@link Deflater} and {@link Inflater}, so compressing a message allocates little
+ * more than the compressed payload itself.
+ * </p>
+ *
+ * @config mqtt-deflate-compression
+ * @since 4.5.0
+ */
+@XStreamAlias("mqtt-deflate-compression")
+@ComponentProfile(summary = "Compress MQTT payloads with deflate", tag = "mqtt", since = "4.5.0")
+@DisplayOrder(order = {"level", "dictionaryFile", "maxPayloadSize"})
+@NoArgsConstructor
+public class MqttDeflateCompression implements MqttCompression {
+
+  private static final int DEFAULT_LEVEL = 6;
+  // The most that deflate can compress by.
+  private static final int MAX_RATIO = 1032;
+  private static final int DEFAULT_MAX_PAYLOAD_SIZE = 268435455;
+  // Larger buffers are only used for the message that needed them, rather than kept by the thread.
+  private static final int MAX_RETAINED_BUFFER = 1024 * 1024;
+
+  /**
+   * The compression level, from 0 (no compression) to 9 (best compression).
+   * <p>
+   * Defaults to 6; only affects the producer.
+   * </p>
+   */
+  @InputFieldDefault(value = "6")
+  @Min(0)
+  @Max(9)
+  @Getter
+  @Setter
+  private Integer level;
+
+  /**
+   * The file containing the preset dictionary.
+   * <p>
+   * The dictionary is typically a sample of representative messages, with the most common strings
+   * at the end; at most the last 32KB is used. If not specified then no dictionary is used.
+   * </p>
+   */
+  @Getter
+  @Setter
+  private String dictionaryFile;
+
+  /**
+   * The largest payload, in bytes, that the consumer will decompress.
+   * <p>
+   * The length of the decompressed payload is read from the message, so this stops a corrupt or
+   * hostile message making the consumer allocate more memory than it has. Defaults to 268435455, the
+   * largest MQTT packet; raise it to decompress larger chunked messages.
+   * </p>
+   */
+  @InputFieldDefault(value = "268435455")
+  @Min(0)
+  @Getter
+  @Setter
+  private Integer maxPayloadSize;
+
+  private transient volatile byte[] dictionary;
+  private final transient ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(level()));
+  private final transient ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+  private final transient ThreadLocal<byte[]> buffers = new ThreadLocal<>();
+
+  public MqttDeflateCompression(String dictionaryFile) {
+    this();
+    setDictionaryFile(dictionaryFile);
+  }
+
+  @Override
+  public byte[] compress(byte[] payload, int offset) throws IOException {
+    byte[] dictionary = dictionary();
+    Deflater deflater = deflaters.get();
+    try {
+      if (dictionary != null) {
+        deflater.setDictionary(dictionary);
+      }
+      deflater.setInput(payload);
+      deflater.finish();
+      byte[] buffer = buffer(offset + maxCompressedLength(payload.length));
+      int length = offset;
+      while (!deflater.finished()) {
+        if (length == buffer.length) {
+          buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        length += deflater.deflate(buffer, length, buffer.length - length);
+      }
+      return Arrays.copyOf(buffer, length);
+    } finally {
+      // Also stops the thread holding on to the payload.
+      deflater.reset();
+    }
+  }
+
+  @Override
+  public byte[] decompress(byte[] compressed, int offset, int length) throws IOException {
+    checkLength(compressed.length - offset, length);
+    Inflater inflater = inflaters.get();
+    try {
+      inflater.setInput(compressed, offset, compressed.length - offset);
+      byte[] payload = new byte[length];
+      int read = 0;
+      while (!inflater.finished()) {
+        int inflated = inflater.inflate(payload, read, length - read);
+        read += inflated;
+        if (inflated > 0) {
+          continue;
+        }
+        if (inflater.needsDictionary()) {
+          byte[] dictionary = dictionary();
+          if (dictionary == null) {
+            throw new IOException("Payload was compressed with a dictionary, but none is configured");
+          }
+          inflater.setDictionary(dictionary);
+        } else if (!inflater.finished()) {
+          throw new IOException("Compressed payload is truncated, or longer than its header says");
+        }
+      }
+      if (read != length) {
+        throw new IOException("Compressed payload is " + read + " bytes, but its header says " + length);
+      }
+      return payload;
+    } catch (DataFormatException | IllegalArgumentException e) {
+      // IllegalArgumentException if the dictionary is not the one the payload was compressed with.
+      throw new IOException("Could not decompress payload", e);
+    } finally {
+      inflater.reset();
+    }
+  }
+
+  int level() {
+    return ObjectUtils.defaultIfNull(getLevel(), DEFAULT_LEVEL);
+  }
+
+  int maxPayloadSize() {
+    return ObjectUtils.defaultIfNull(getMaxPayloadSize(), DEFAULT_MAX_PAYLOAD_SIZE);
+  }
+
+  /**
+   * Check the length claimed for the payload before allocating it.
+   */
+  private void checkLength(int compressedLength, int length) throws IOException {
+    if (length < 0 || length > maxPayloadSize()) {
+      throw new IOException("Compressed payload claims to be " + length + " bytes; the maximum is " + maxPayloadSize());
+    }
+    if (length > (long) compressedLength * MAX_RATIO) {
+      throw new IOException(
+          "Compressed payload of " + compressedLength + " bytes can't decompress to the " + length + " bytes it claims");
+    }
+  }
+
+  private byte[] dictionary() throws IOException {
+    if (dictionary == null && getDictionaryFile() != null) {
+      dictionary = Files.readAllBytes(Paths.get(getDictionaryFile()));
+    }
+    return dictionary;
+  }
+
+  private byte[] buffer(int length) {
+    byte[] buffer = buffers.get();
+    if (buffer != null && buffer.length >= length) {
+      return buffer;
+    }
+    buffer = new byte[length];
+    if (length <= MAX_RETAINED_BUFFER) {
+      buffers.set(buffer);
+    }
+    return buffer;
+  }
+
+  /**
+   * The most that deflate can expand a payload by, as zlib's {@code compressBound}, plus the id of
+   * the dictionary.
+   */
+  private static int maxCompressedLength(int length) {
+    return length + (length >> 12) + (length >> 14) + (length >> 25) + 13 + 4;
+  }
+}
@@ -0,0 +1,104 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import javax.validation.constraints.Min;
+
+import org.apache.commons.lang3.BooleanUtils;
+import org.apache.commons.lang3.ObjectUtils;
+import org.eclipse.paho.client.mqttv3.DisconnectedBufferOptions;
+
+import com.adaptris.annotation.AdvancedConfig;
+import com.adaptris.annotation.ComponentProfile;
+import com.adaptris.annotation.DisplayOrder;
+import com.adaptris.annotation.InputFieldDefault;
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * Buffer messages published while the client is reconnecting to the broker.
+ * <p>
+ * Only applies to asynchronous clients (e.g. {@link MqttAsyncProducer}); messages published while
+ * the automatic reconnect is in progress are held locally, instead of failing, and are sent in
+ * order once the client has reconnected.
+ * </p>
+ *
+ * @config mqtt-disconnected-buffer
+ * @since 4.5.0
+ */
+@XStreamAlias("mqtt-disconnected-buffer")
+@ComponentProfile(summary = "Buffer MQTT messages published while reconnecting", tag = "connections,mqtt",
+    since = "4.5.0")
+@DisplayOrder(order = {"bufferSize", "persistBuffer", "deleteOldestMessages"})
+@NoArgsConstructor
+public class MqttDisconnectedBuffer {
+
+  /**
+   * The maximum number of messages that can be buffered.
+   * <p>
+   * Defaults to 5000.
+   * </p>
+   */
+  @InputFieldDefault(value = "5000")
+  @Min(1)
+  @Getter
+  @Setter
+  private Integer bufferSize;
+
+  /**
+   * Whether buffered messages are stored using the connection's persistence.
+   * <p>
+   * Defaults to false, which means buffered messages are lost if the adapter is stopped before the
+   * client reconnects.
+   * </p>
+   */
+  @AdvancedConfig
+  @InputFieldDefault(value = "false")
+  @Getter
+  @Setter
+  private Boolean persistBuffer;
+
+  /**
+   * Whether the oldest message is discarded when the buffer is full.
+   * <p>
+   * Must be false (the default), which means that publishing fails when the buffer is full; the
+   * connection fails to initialise if it is true. Paho never completes the delivery of a message it
+   * discards, so {@link MqttAsyncProducer} would wait for it forever.
+   * </p>
+   */
+  @AdvancedConfig
+  @InputFieldDefault(value = "false")
+  @Getter
+  @Setter
+  private Boolean deleteOldestMessages;
+
+  boolean deletesOldestMessages() {
+    return BooleanUtils.toBooleanDefaultIfNull(getDeleteOldestMessages(), false);
+  }
+
+  DisconnectedBufferOptions createOptions() {
+    DisconnectedBufferOptions options = new DisconnectedBufferOptions();
+    options.setBufferEnabled(true);
+    options.setBufferSize(ObjectUtils.defaultIfNull(getBufferSize(), DisconnectedBufferOptions.DISCONNECTED_BUFFER_SIZE_DEFAULT));
+    options.setPersistBuffer(BooleanUtils.toBooleanDefaultIfNull(getPersistBuffer(), false));
+    options.setDeleteOldestMessages(deletesOldestMessages());
+    return options;
+  }
+}
@@ -0,0 +1,132 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.validation.Valid;
+import javax.validation.constraints.DecimalMax;
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.Min;
+
+import org.apache.commons.lang3.ObjectUtils;
+
+import com.adaptris.annotation.ComponentProfile;
+import com.adaptris.annotation.DisplayOrder;
+import com.adaptris.annotation.InputFieldDefault;
+import com.adaptris.util.TimeInterval;
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * Reconnect after a delay that doubles with each failed attempt, with random jitter.
+ * <p>
+ * The delay before attempt {@code n} is {@code min(max-delay, min-delay * 2^(n-1))}, less a random
+ * amount of up to {@code jitter} of it; the jitter spreads out the clients that lost their connection
+ * at the same moment (e.g. when the broker restarted), and {@link #getMaxConcurrentReconnects()}
+ * stops them all hitting the broker at once.
+ * </p>
+ *
+ * @config mqtt-exponential-backoff
+ * @since 4.5.0
+ */
+@XStreamAlias("mqtt-exponential-backoff")
+@ComponentProfile(summary = "Reconnect to the MQTT broker with exponential backoff", tag = "connections,mqtt",
+    since = "4.5.0")
+@DisplayOrder(order = {"minDelay", "maxDelay", "jitter", "maxConcurrentReconnects"})
+@NoArgsConstructor
+public class MqttExponentialBackoff implements MqttReconnectPolicy {
+
+  private static final TimeInterval DEFAULT_MIN_DELAY = new TimeInterval(1L, TimeUnit.SECONDS);
+  private static final TimeInterval DEFAULT_MAX_DELAY = new TimeInterval(2L, TimeUnit.MINUTES);
+  private static final double DEFAULT_JITTER = 0.5;
+  private static final int DEFAULT_MAX_CONCURRENT_RECONNECTS = 10;
+
+  /**
+   * The delay before the first attempt.
+   * <p>
+   * Defaults to 1 second.
+   * </p>
+   */
+  @Valid
+  @Getter
+  @Setter
+  private TimeInterval minDelay;
+
+  /**
+   * The maximum delay between attempts.
+   * <p>
+   * Defaults to 2 minutes.
+   * </p>
+   */
+  @Valid
+  @Getter
+  @Setter
+  private TimeInterval maxDelay;
+
+  /**
+   * The fraction of each delay that is random, between 0 (no jitter) and 1 (anywhere between 0 and
+   * the delay).
+   * <p>
+   * Defaults to 0.5.
+   * </p>
+   */
+  @InputFieldDefault(value = "0.5")
+  @DecimalMin("0.0")
+  @DecimalMax("1.0")
+  @Getter
+  @Setter
+  private Double jitter;
+
+  /**
+   * The maximum number of the connection's clients that may be reconnecting at the same time.
+   * <p>
+   * Defaults to 10.
+   * </p>
+   */
+  @InputFieldDefault(value = "10")
+  @Min(1)
+  @Getter
+  @Setter
+  private Integer maxConcurrentReconnects;
+
+  public MqttExponentialBackoff(TimeInterval minDelay, TimeInterval maxDelay) {
+    this();
+    setMinDelay(minDelay);
+    setMaxDelay(maxDelay);
+  }
+
+  @Override
+  public long delayMillis(int attempt) {
+    long min = ObjectUtils.defaultIfNull(getMinDelay(), DEFAULT_MIN_DELAY).toMilliseconds();
+    long max = ObjectUtils.defaultIfNull(getMaxDelay(), DEFAULT_MAX_DELAY).toMilliseconds();
+    int doublings = Math.max(attempt, 1) - 1;
+    // Checked against the maximum first, as doubling would soon overflow.
+    long delay = doublings < Long.SIZE - 1 && min <= max >> doublings ? min << doublings : max;
+    double jitter = ObjectUtils.defaultIfNull(getJitter(), DEFAULT_JITTER);
+    return delay - (long) (delay * jitter * ThreadLocalRandom.current().nextDouble());
+  }
+
+  @Override
+  public int maxConcurrentReconnects() {
+    return ObjectUtils.defaultIfNull(getMaxConcurrentReconnects(), DEFAULT_MAX_CONCURRENT_RECONNECTS);
+  }
+}
@@ -0,0 +1,77 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import java.io.File;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
+
+import com.adaptris.annotation.ComponentProfile;
+import com.adaptris.annotation.InputFieldDefault;
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * Stores in-flight messages using Paho's {@link MqttDefaultFilePersistence}.
+ * <p>
+ * One file is written (and deleted) per in-flight QoS 1 or 2 message. This is the default behaviour
+ * if no persistence is configured on the connection.
+ * </p>
+ *
+ * @config mqtt-file-persistence
+ * @since 4.5.0
+ */
+@XStreamAlias("mqtt-file-persistence")
+@ComponentProfile(summary = "Store in-flight MQTT messages as individual files", tag = "connections,mqtt",
+    since = "4.5.0")
+@NoArgsConstructor
+public class MqttFilePersistence implements MqttPersistence {
+
+  static final String PERSISTENCE_LOCATION = ".interlok-mqtt";
+
+  /**
+   * The directory in which to store the files.
+   * <p>
+   * Defaults to {@code .interlok-mqtt} in the working directory.
+   * </p>
+   */
+  @InputFieldDefault(value = "${user.dir}/.interlok-mqtt")
+  @Getter
+  @Setter
+  private String directory;
+
+  @Override
+  public MqttClientPersistence create() {
+    return new MqttDefaultFilePersistence(directory());
+  }
+
+  String directory() {
+    return directory != null ? directory : defaultDirectory();
+  }
+
+  static String defaultDirectory() {
+    String userDir = System.getProperty("user.dir");
+    if (!userDir.endsWith(File.separator)) {
+      userDir = userDir + File.separator;
+    }
+    return userDir + PERSISTENCE_LOCATION;
+  }
+}
@@ -16,6 +16,8 @@
 
 package com.adaptris.core.mqtt;
 
+import java.io.UnsupportedEncodingException;
+
 import javax.validation.constraints.Max;
 import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
@@ -139,4 +141,11 @@ public class MqttLastWill {
     this.retained = retained;
   }
 
+  /**
+   * The payload encoded with the {@link #getPayloadCharEncoding()}, empty if there is no payload.
+   */
+  byte[] payloadBytes() throws UnsupportedEncodingException {
+    return payload != null ? payload.getBytes(payloadCharEncoding) : new byte[0];
+  }
+
 }
@@ -0,0 +1,100 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import javax.validation.constraints.Min;
+
+import org.apache.commons.lang3.ObjectUtils;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+
+import com.adaptris.annotation.AdvancedConfig;
+import com.adaptris.annotation.ComponentProfile;
+import com.adaptris.annotation.DisplayOrder;
+import com.adaptris.annotation.InputFieldDefault;
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * Stores in-flight messages in an append-only, memory-mapped, log file per client.
+ * <p>
+ * Unlike {@link MqttFilePersistence} there is no file created and deleted for each message; records
+ * are appended to the log and the log is compacted once every in-flight message has been
+ * acknowledged, so QoS 2 messages remain durable without the per message file system overhead.
+ * Writes are forced to disk every {@link #getSyncEvery()} records and when the client is closed.
+ * </p>
+ *
+ * @config mqtt-mapped-log-persistence
+ * @since 4.5.0
+ */
+@XStreamAlias("mqtt-mapped-log-persistence")
+@ComponentProfile(summary = "Store in-flight MQTT messages in a memory-mapped log file", tag = "connections,mqtt",
+    since = "4.5.0")
+@DisplayOrder(order = {"directory", "initialSize", "syncEvery"})
+@NoArgsConstructor
+public class MqttMappedLogPersistence implements MqttPersistence {
+
+  private static final int DEFAULT_INITIAL_SIZE = 1024 * 1024;
+  private static final int DEFAULT_SYNC_EVERY = 100;
+
+  /**
+   * The directory in which to store the log files.
+   * <p>
+   * Defaults to {@code .interlok-mqtt} in the working directory.
+   * </p>
+   */
+  @InputFieldDefault(value = "${user.dir}/.interlok-mqtt")
+  @Getter
+  @Setter
+  private String directory;
+
+  /**
+   * The initial size of each log file in bytes, the log grows if required.
+   * <p>
+   * Defaults to 1MB.
+   * </p>
+   */
+  @AdvancedConfig
+  @InputFieldDefault(value = "1048576")
+  @Min(1024)
+  @Getter
+  @Setter
+  private Integer initialSize;
+
+  /**
+   * The number of writes after which the log is forced to disk.
+   * <p>
+   * Defaults to 100; 0 means the log is only forced to disk when the client is closed and otherwise
+   * left to the operating system.
+   * </p>
+   */
+  @AdvancedConfig
+  @InputFieldDefault(value = "100")
+  @Min(0)
+  @Getter
+  @Setter
+  private Integer syncEvery;
+
+  @Override
+  public MqttClientPersistence create() {
+    String dir = directory != null ? directory : new MqttFilePersistence().directory();
+    return new MappedLogClientPersistence(dir, ObjectUtils.defaultIfNull(getInitialSize(), DEFAULT_INITIAL_SIZE),
+        ObjectUtils.defaultIfNull(getSyncEvery(), DEFAULT_SYNC_EVERY));
+  }
+}
@@ -0,0 +1,43 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import com.adaptris.annotation.ComponentProfile;
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+
+/**
+ * Stores in-flight messages in memory using Paho's {@link MemoryPersistence}.
+ * <p>
+ * This avoids any disk I/O when publishing, but in-flight QoS 1 and 2 messages are lost if the
+ * adapter stops unexpectedly; use it when the broker (or the upstream system) is the source of truth.
+ * </p>
+ *
+ * @config mqtt-memory-persistence
+ * @since 4.5.0
+ */
+@XStreamAlias("mqtt-memory-persistence")
+@ComponentProfile(summary = "Store in-flight MQTT messages in memory", tag = "connections,mqtt", since = "4.5.0")
+public class MqttMemoryPersistence implements MqttPersistence {
+
+  @Override
+  public MqttClientPersistence create() {
+    return new MemoryPersistence();
+  }
+}
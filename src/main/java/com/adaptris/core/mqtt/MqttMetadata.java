@@ -0,0 +1,60 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import static com.adaptris.core.mqtt.MqttConstants.CONTENT_TYPE_METADATA;
+import static com.adaptris.core.mqtt.MqttConstants.DUPLICATE_METADATA;
+import static com.adaptris.core.mqtt.MqttConstants.MESSAGE_ID_METADATA;
+import static com.adaptris.core.mqtt.MqttConstants.QOS_METADATA;
+import static com.adaptris.core.mqtt.MqttConstants.RETAINED_METADATA;
+import static com.adaptris.core.mqtt.MqttConstants.TOPIC_METADATA;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import com.adaptris.core.AdaptrisMessage;
+
+/**
+ * Copies the details of a consumed MQTT message to the metadata of its {@link AdaptrisMessage}.
+ */
+final class MqttMetadata {
+
+  // QoS is 0, 1 or 2; saves a String per message.
+  private static final String[] QOS = {"0", "1", "2"};
+
+  private MqttMetadata() {
+  }
+
+  static void addTo(AdaptrisMessage msg, String topic, MqttMessage message) {
+    add(msg, topic, message.getQos(), message.isRetained(), message.isDuplicate(), message.getId());
+  }
+
+  static void addTo(AdaptrisMessage msg, String topic, org.eclipse.paho.mqttv5.common.MqttMessage message) {
+    add(msg, topic, message.getQos(), message.isRetained(), message.isDuplicate(), message.getId());
+    String contentType = message.getProperties() != null ? message.getProperties().getContentType() : null;
+    if (contentType != null) {
+      msg.addMetadata(CONTENT_TYPE_METADATA, contentType);
+    }
+  }
+
+  private static void add(AdaptrisMessage msg, String topic, int qos, boolean retained, boolean duplicate, int id) {
+    msg.addMetadata(TOPIC_METADATA, topic);
+    msg.addMetadata(QOS_METADATA, QOS[qos]);
+    msg.addMetadata(RETAINED_METADATA, String.valueOf(retained));
+    msg.addMetadata(DUPLICATE_METADATA, String.valueOf(duplicate));
+    msg.addMetadata(MESSAGE_ID_METADATA, String.valueOf(id));
+  }
+}
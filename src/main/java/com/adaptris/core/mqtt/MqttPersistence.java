@@ -0,0 +1,34 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+
+/**
+ * Creates the {@link MqttClientPersistence} that each MQTT client uses to store in-flight messages.
+ *
+ * @see MqttConnection#setPersistence(MqttPersistence)
+ */
+public interface MqttPersistence {
+
+  /**
+   * Create a new persistence store for a client.
+   *
+   * @return a new, unopened, persistence store.
+   */
+  MqttClientPersistence create();
+}
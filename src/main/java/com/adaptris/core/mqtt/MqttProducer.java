@@ -16,37 +16,20 @@
 
 package com.adaptris.core.mqtt;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-
-import javax.validation.Valid;
-import javax.validation.constraints.Max;
-import javax.validation.constraints.Min;
-import javax.validation.constraints.NotNull;
-
-import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
-import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.apache.commons.lang3.StringUtils;
 import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 
 import com.adaptris.annotation.AdapterComponent;
-import com.adaptris.annotation.AdvancedConfig;
-import com.adaptris.annotation.AutoPopulated;
 import com.adaptris.annotation.ComponentProfile;
 import com.adaptris.annotation.DisplayOrder;
-import com.adaptris.annotation.InputFieldHint;
-import com.adaptris.core.AdaptrisMessage;
 import com.adaptris.core.AdaptrisMessageProducer;
 import com.adaptris.core.CoreException;
-import com.adaptris.core.ProduceException;
-import com.adaptris.core.ProduceOnlyProducerImp;
 import com.adaptris.interlok.util.Args;
-import com.adaptris.util.TimeInterval;
 import com.thoughtworks.xstream.annotations.XStreamAlias;
 
-import lombok.Getter;
 import lombok.NoArgsConstructor;
-import lombok.Setter;
 
 /**
  * {@link AdaptrisMessageProducer} implementation that sends messages to a MQTT topic.
@@ -62,34 +45,11 @@ import lombok.Setter;
 @AdapterComponent
 @ComponentProfile(summary = "Place message on a MQTT topic", tag = "producer,mqtt",
 recommended = {MqttConnection.class}, since = "3.5.0")
-@DisplayOrder(order = {"topic", "qos", "retained", "timeToWait"})
+@DisplayOrder(order = {"topic", "qos", "retained", "timeToWait", "chunkSize"})
 @NoArgsConstructor
-public class MqttProducer extends ProduceOnlyProducerImp {
-
-  private transient Map<String, String> cachedTopicURLs = new ConcurrentHashMap<>();
+public class MqttProducer extends MqttProducerImp {
 
-  @NotNull
-  @AutoPopulated
-  // @Pattern(regexp = "[0-2]+")
-  @Min(0)
-  @Max(2)
-  @AdvancedConfig
-  private int qos = MqttConstants.QOS_DEFAULT;
-  @AdvancedConfig
-  private boolean retained = MqttConstants.RETAINED_DEFAULT;
-  @Valid
-  @AdvancedConfig
-  private TimeInterval timeToWait;
-
-  /**
-   * The MQTT Topic
-   *
-   */
-  @InputFieldHint(expression = true)
-  @Getter
-  @Setter
-  // Needs to be @NotBlank when destination is removed.
-  private String topic;
+  private static final long MAX_IN_FLIGHT_RETRY_MILLIS = 10L;
 
   private transient MqttClient mqttClient;
 
@@ -97,15 +57,17 @@ public class MqttProducer extends ProduceOnlyProducerImp {
   public void init() throws CoreException {
     Args.notNull(retrieveConnection(MqttConnection.class), "mqtt-connection");
     mqttClient = getMqtt();
-    if (timeToWait != null) {
-      long timeToWaitInMillis = timeToWait.toMilliseconds();
-      mqttClient.setTimeToWait(timeToWaitInMillis);
-    }
-    startConnection();
+    retrieveConnection(MqttConnection.class).setTimeToWait(mqttClient, getTimeToWait());
+    retrieveConnection(MqttConnection.class).connectSyncClientInBackground(mqttClient);
   }
 
   private MqttClient getMqtt() throws CoreException {
-    return retrieveConnection(MqttConnection.class).getOrCreateSyncClient(null);
+    MqttConnection connection = retrieveConnection(MqttConnection.class);
+    String clientId = connection.clientId(getClientId(), getUniqueId());
+    if (StringUtils.isNotBlank(getClientId())) {
+      return connection.newSyncClient(clientId);
+    }
+    return connection.getSharedSyncClient(clientId);
   }
 
   @Override
@@ -132,141 +94,23 @@ public class MqttProducer extends ProduceOnlyProducerImp {
   }
 
   @Override
-  protected void doProduce(AdaptrisMessage msg, String endpoint) throws ProduceException {
-    try {
-      String topic = resolveTopic(endpoint);
-      MqttMessage sendMessageRequest = new MqttMessage(encode(msg));
-      applyExtraOptions(sendMessageRequest);
-      log.debug("Publish message to topic [{}]", topic);
-      mqttClient.publish(topic, sendMessageRequest);
-      log.debug("Message published");
-    } catch (Exception e) {
-      throw new ProduceException(e);
+  protected void publish(String topic, MqttMessage message) throws Exception {
+    long start = System.nanoTime();
+    long deadline = timeToWaitMillis() > 0 ? System.currentTimeMillis() + timeToWaitMillis() : Long.MAX_VALUE;
+    while (true) {
+      try {
+        // The synchronous client only returns once the broker has acknowledged the message.
+        mqttClient.publish(topic, message);
+        break;
+      } catch (MqttException e) {
+        // The client is shared, and the other producers have as many messages in flight as it allows.
+        if (e.getReasonCode() != MqttException.REASON_CODE_MAX_INFLIGHT || System.currentTimeMillis() >= deadline) {
+          throw e;
+        }
+        pauseBeforeRetry(MAX_IN_FLIGHT_RETRY_MILLIS);
+      }
     }
-  }
-
-  private void applyExtraOptions(MqttMessage sendMessageRequest) {
-    sendMessageRequest.setQos(qos);
-    sendMessageRequest.setRetained(retained);
-  }
-
-  private String resolveTopic(String topicName) throws CoreException {
-    String topicURL = cachedTopicURLs.get(topicName);
-    // It's not in the cache. Look up the topic url and cache it.
-    if(topicURL == null) {
-      topicURL = retrieveTopicFromMqtt(topicName);
-      cachedTopicURLs.put(topicName, topicURL);
-    }
-
-    return topicURL;
-  }
-
-  private String retrieveTopicFromMqtt(String topicName) throws CoreException {
-    return mqttClient.getTopic(topicName).getName();
-  }
-
-  @Override
-  public void prepare() throws CoreException {
-    Args.notNull(getTopic(), "topic");
-  }
-
-
-  @Override
-  public String endpoint(AdaptrisMessage msg) throws ProduceException {
-    return msg.resolve(getTopic());
-  }
-
-  /**
-   * Returns the quality of service for this message.
-   *
-   * @return the quality of service to use, either 0, 1, or 2.
-   */
-  public int getQos() {
-    return qos;
-  }
-
-  /**
-   * Sets the quality of service for this message.
-   * <ul>
-   * <li>Quality of Service 0 - indicates that a message should be delivered at most once (zero or
-   * one times). The message will not be persisted to disk, and will not be acknowledged across the
-   * network. This QoS is the fastest, but should only be used for messages which are not valuable -
-   * note that if the server cannot process the message (for example, there is an authorization
-   * problem), then an {@link MqttCallback#deliveryComplete(IMqttDeliveryToken)}. Also known as
-   * "fire and forget".</li>
-   *
-   * <li>Quality of Service 1 - indicates that a message should be delivered at least once (one or
-   * more times). The message can only be delivered safely if it can be persisted, so the
-   * application must supply a means of persistence using <code>MqttConnectOptions</code>. If a
-   * persistence mechanism is not specified, the message will not be delivered in the event of a
-   * client failure. The message will be acknowledged across the network. This is the default QoS.</li>
-   *
-   * <li>Quality of Service 2 - indicates that a message should be delivered once. The message will
-   * be persisted to disk, and will be subject to a two-phase acknowledgement across the network.
-   * The message can only be delivered safely if it can be persisted, so the application must supply
-   * a means of persistence using <code>MqttConnectOptions</code>. If a persistence mechanism is not
-   * specified, the message will not be delivered in the event of a client failure.</li>
-   *
-   * If persistence is not configured, QoS 1 and 2 messages will still be delivered in the event of
-   * a network or server problem as the client will hold state in memory. If the MQTT client is
-   * shutdown or fails and persistence is not configured then delivery of QoS 1 and 2 messages can
-   * not be maintained as client-side state will be lost.
-   *
-   * @param qos the "quality of service" to use. Set to 0, 1, 2.
-   * @throws IllegalArgumentException if value of QoS is not 0, 1 or 2.
-   * @throws IllegalStateException if this message cannot be edited
-   */
-  public void setQos(int qos) {
-    this.qos = qos;
-  }
-
-  /**
-   * Returns whether or not messages should be retained by the server. For messages received from
-   * the server, this method returns whether or not the message was from a current publisher, or was
-   * "retained" by the server as the last message published on the topic.
-   *
-   * @return <code>true</code> if the message should be retained by the server.
-   */
-  public boolean getRetained() {
-    return retained;
-  }
-
-  /**
-   * Whether or not the publish message should be retained by the messaging engine. Sending a
-   * message with the retained set to <code>false</code> will clear the retained message from the
-   * server. The default value is <code>false</code>
-   *
-   * @param retained whether or not the messaging engine should retain the message.
-   * @throws IllegalStateException if this message cannot be edited
-   */
-  public void setRetained(boolean retained) {
-    this.retained = retained;
-  }
-
-  public TimeInterval getTimeToWait() {
-    return timeToWait;
-  }
-
-  /**
-   * Set the maximum time to wait for an action to complete.
-   * <p>
-   * Set the maximum time to wait for an action to complete before returning control to the invoking
-   * application. Control is returned when:
-   * <ul>
-   * <li>the action completes
-   * <li>or when the timeout if exceeded
-   * <li>or when the client is disconnect/shutdown
-   * <ul>
-   * The default value is -1 which means the action will not timeout. In the event of a timeout the
-   * action carries on running in the background until it completes. The timeout is used on methods
-   * that block while the action is in progress.
-   * </p>
-   *
-   * @param timeToWait before the action times out. A value or 0 will wait until the action finishes
-   *        and not timeout.
-   */
-  public void setTimeToWait(TimeInterval timeToWait) {
-    this.timeToWait = timeToWait;
+    metrics().delivered(start);
   }
 
   public MqttProducer withTopic(String s) {
@@ -274,4 +118,9 @@ public class MqttProducer extends ProduceOnlyProducerImp {
     return this;
   }
 
+  public MqttProducer withChunkSize(Integer i) {
+    setChunkSize(i);
+    return this;
+  }
+
 }
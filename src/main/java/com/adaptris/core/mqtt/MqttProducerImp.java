@@ -0,0 +1,433 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+
+package com.adaptris.core.mqtt;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import javax.validation.Valid;
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import org.apache.commons.lang3.ObjectUtils;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+
+import com.adaptris.annotation.AdvancedConfig;
+import com.adaptris.annotation.AutoPopulated;
+import com.adaptris.annotation.InputFieldDefault;
+import com.adaptris.annotation.InputFieldHint;
+import com.adaptris.core.AdaptrisConnection;
+import com.adaptris.core.AdaptrisMessage;
+import com.adaptris.core.CoreException;
+import com.adaptris.core.ProduceException;
+import com.adaptris.core.ProduceOnlyProducerImp;
+import com.adaptris.interlok.util.Args;
+import com.adaptris.util.TimeInterval;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Base class for the MQTT producers.
+ * <p>
+ * Handles topic resolution and the creation of the {@link MqttMessage}; concrete implementations
+ * decide how the message is actually published to the broker.
+ * </p>
+ */
+public abstract class MqttProducerImp extends ProduceOnlyProducerImp {
+
+  private static final int DEFAULT_TOPIC_CACHE_SIZE = 1024;
+
+  private transient TopicCache topicCache;
+  private transient TopicTemplate topicTemplate;
+  private transient String staticTopic;
+
+  @NotNull
+  @AutoPopulated
+  // @Pattern(regexp = "[0-2]+")
+  @Min(0)
+  @Max(2)
+  @AdvancedConfig
+  private int qos = MqttConstants.QOS_DEFAULT;
+  @AdvancedConfig
+  private boolean retained = MqttConstants.RETAINED_DEFAULT;
+  @Valid
+  @AdvancedConfig
+  private TimeInterval timeToWait;
+
+  /**
+   * The MQTT Topic
+   *
+   */
+  @InputFieldHint(expression = true)
+  @Getter
+  @Setter
+  // Needs to be @NotBlank when destination is removed.
+  private String topic;
+
+  /**
+   * Split messages into MQTT messages of at most this many bytes (plus a small header).
+   * <p>
+   * If set then the message's payload is streamed into fixed size chunks which are published to the
+   * topic one after another, so messages larger than the broker's maximum packet size can be sent
+   * without reading them into memory. The consumer must have {@link MqttConsumer#getReassembleChunks()}
+   * enabled to put the message back together. Not set by default, which means that each message is
+   * published as a single MQTT message.
+   * </p>
+   */
+  @AdvancedConfig
+  @Min(1)
+  @Getter
+  @Setter
+  private Integer chunkSize;
+
+  /**
+   * The maximum number of resolved topics to keep, so that they aren't validated on every message.
+   * <p>
+   * The least recently used topic is evicted when the cache is full. Set to 0 to validate the topic
+   * on every message instead. Topics that are not expressions are validated once and never cached.
+   * The default is 1024.
+   * </p>
+   */
+  @AdvancedConfig
+  @InputFieldDefault(value = "1024")
+  @Min(0)
+  @Getter
+  @Setter
+  private Integer topicCacheSize;
+
+  /**
+   * How long to keep a resolved topic in the cache.
+   * <p>
+   * If not specified then a topic is only removed from the cache when it is evicted to make room for
+   * another.
+   * </p>
+   */
+  @Valid
+  @AdvancedConfig
+  @Getter
+  @Setter
+  private TimeInterval topicCacheExpiry;
+
+  /**
+   * The client id to connect to the broker with.
+   * <p>
+   * May use the placeholders described in {@link MqttConnection#setClientIdTemplate(String)}, e.g.
+   * {@code {connection}-{component}}; overrides the connection's template for this producer. If neither is
+   * specified then a random client id is used, so the broker can't resume the client's session
+   * after a restart. A producer with its own client id doesn't use
+   * the connection's client pool.
+   * </p>
+   */
+  @AdvancedConfig
+  @Getter
+  @Setter
+  private String clientId;
+
+  /**
+   * Compress payloads before publishing them.
+   * <p>
+   * The payload (after the encoder, if there is one) is compressed and marked as such, so that a
+   * consumer with the same compression decompresses it; payloads that compression doesn't make
+   * smaller are published as they are. A chunked message (see {@link #getChunkSize()}) is compressed
+   * as a whole before it is split, so it is read into memory. Not set by default, which means that
+   * payloads are published as they are.
+   * </p>
+   */
+  @Valid
+  @AdvancedConfig
+  @Getter
+  @Setter
+  private MqttCompression compression;
+
+  @Override
+  protected void doProduce(AdaptrisMessage msg, String endpoint) throws ProduceException {
+    MqttConnectionMetrics metrics = metrics();
+    try {
+      String topic = resolveTopic(endpoint);
+      log.debug("Publish message to topic [{}]", topic);
+      long start = System.nanoTime();
+      if (getChunkSize() != null) {
+        publishChunks(topic, msg);
+      } else {
+        publish(topic, newMqttMessage(toPayload(msg)));
+      }
+      metrics.published(start);
+      log.debug("Message published");
+    } catch (Exception e) {
+      metrics.publishFailed();
+      throw new ProduceException(e);
+    }
+  }
+
+  /**
+   * Publish the message to the given (already resolved) topic.
+   *
+   * @param topic the topic.
+   * @param message the message to publish.
+   */
+  protected abstract void publish(String topic, MqttMessage message) throws Exception;
+
+  /**
+   * The bytes to publish: the encoded message, compressed if configured.
+   * <p>
+   * Paho's {@link MqttMessage} copies whatever it is given, as does the MQTT 5.0 message built from it,
+   * so the payload is copied on the way out whichever route it takes here.
+   * </p>
+   */
+  private byte[] toPayload(AdaptrisMessage msg) throws CoreException, IOException {
+    byte[] payload = encode(msg);
+    return getCompression() == null ? payload : MqttCompressed.compress(getCompression(), payload);
+  }
+
+  /**
+   * Stream the message into chunks of {@link #getChunkSize()} bytes, publishing each one as it is
+   * read.
+   * <p>
+   * The next chunk is read before the current one is published so that the last chunk can be
+   * flagged as such; an empty message is sent as a single empty chunk.
+   * </p>
+   */
+  private void publishChunks(String topic, AdaptrisMessage msg) throws Exception {
+    UUID transferId = UUID.randomUUID();
+    int chunkSize = getChunkSize();
+    try (InputStream in = getEncoder() == null && getCompression() == null ? msg.getInputStream()
+        : new ByteArrayInputStream(toPayload(msg))) {
+      byte[] chunk = MqttChunks.read(in, chunkSize);
+      for (int sequence = 0;; sequence++) {
+        byte[] next = chunk.length == MqttChunks.HEADER_LENGTH + chunkSize ? MqttChunks.read(in, chunkSize) : null;
+        boolean last = next == null || next.length == MqttChunks.HEADER_LENGTH;
+        MqttChunks.writeHeader(chunk, transferId, sequence, last);
+        MqttMessage chunkMessage = newMqttMessage(chunk);
+        // Only the last chunk would be retained, which can't be reassembled on its own.
+        chunkMessage.setRetained(false);
+        publish(topic, chunkMessage);
+        if (last) {
+          log.trace("Published transfer [{}] in {} chunks", transferId, sequence + 1);
+          return;
+        }
+        chunk = next;
+      }
+    }
+  }
+
+  private MqttMessage newMqttMessage(byte[] payload) {
+    MqttMessage sendMessageRequest = new MqttMessage(payload);
+    applyExtraOptions(sendMessageRequest);
+    return sendMessageRequest;
+  }
+
+  private void applyExtraOptions(MqttMessage sendMessageRequest) {
+    sendMessageRequest.setQos(qos);
+    sendMessageRequest.setRetained(retained);
+  }
+
+  String resolveTopic(String topicName) throws CoreException {
+    if (topicName.equals(staticTopic)) {
+      return staticTopic;
+    }
+    if (topicCache == null) {
+      return retrieveTopicFromMqtt(topicName);
+    }
+    return topicCache.get(topicName, this::retrieveTopicFromMqtt);
+  }
+
+  private String retrieveTopicFromMqtt(String topicName) throws CoreException {
+    try {
+      MqttTopic.validate(topicName, false);
+    } catch (IllegalArgumentException e) {
+      throw new CoreException(e);
+    }
+    return topicName;
+  }
+
+  @Override
+  public void prepare() throws CoreException {
+    Args.notNull(getTopic(), "topic");
+    topicTemplate = TopicTemplate.compile(getTopic());
+    // Without an expression every message resolves to the same topic.
+    staticTopic = topicTemplate != null && topicTemplate.isLiteral() ? retrieveTopicFromMqtt(getTopic()) : null;
+    if (topicCache != null) {
+      topicCache.clear();
+    }
+    topicCache = staticTopic == null && topicCacheSize() > 0 ? newTopicCache() : null;
+  }
+
+  private TopicCache newTopicCache() {
+    long expiryNanos = topicCacheExpiry != null
+        ? TimeUnit.MILLISECONDS.toNanos(topicCacheExpiry.toMilliseconds())
+        : -1L;
+    MqttConnectionMetrics metrics = retrieveConnection(AdaptrisConnection.class) != null ? metrics() : null;
+    return new TopicCache(topicCacheSize(), expiryNanos, metrics);
+  }
+
+  int topicCacheSize() {
+    return ObjectUtils.defaultIfNull(getTopicCacheSize(), DEFAULT_TOPIC_CACHE_SIZE);
+  }
+
+  TopicCache topicCache() {
+    return topicCache;
+  }
+
+
+  @Override
+  public String endpoint(AdaptrisMessage msg) throws ProduceException {
+    if (topicTemplate != null) {
+      String topic = topicTemplate.render(msg);
+      if (topic != null) {
+        return topic;
+      }
+    }
+    // Not compiled (or missing metadata), so let the message resolve it (or complain about it).
+    return msg.resolve(getTopic());
+  }
+
+  /**
+   * The metrics of the connection, which publish latencies and failures are recorded against.
+   */
+  MqttConnectionMetrics metrics() {
+    return retrieveConnection(MqttConnection.class).metrics();
+  }
+
+  /**
+   * Wait before trying to publish again.
+   * <p>
+   * If interrupted the thread's interrupt status is restored before the exception is rethrown, so
+   * that it isn't lost when the exception is wrapped in a {@link ProduceException}.
+   * </p>
+   */
+  static void pauseBeforeRetry(long millis) throws InterruptedException {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw e;
+    }
+  }
+
+  /**
+   * The time to wait in milliseconds, -1 if none has been configured.
+   */
+  protected long timeToWaitMillis() {
+    return timeToWait != null ? timeToWait.toMilliseconds() : -1L;
+  }
+
+  /**
+   * Returns the quality of service for this message.
+   *
+   * @return the quality of service to use, either 0, 1, or 2.
+   */
+  public int getQos() {
+    return qos;
+  }
+
+  /**
+   * Sets the quality of service for this message.
+   * <ul>
+   * <li>Quality of Service 0 - indicates that a message should be delivered at most once (zero or
+   * one times). The message will not be persisted to disk, and will not be acknowledged across the
+   * network. This QoS is the fastest, but should only be used for messages which are not valuable -
+   * note that if the server cannot process the message (for example, there is an authorization
+   * problem), then an {@link MqttCallback#deliveryComplete(IMqttDeliveryToken)}. Also known as
+   * "fire and forget".</li>
+   *
+   * <li>Quality of Service 1 - indicates that a message should be delivered at least once (one or
+   * more times). The message can only be delivered safely if it can be persisted, so the
+   * application must supply a means of persistence using <code>MqttConnectOptions</code>. If a
+   * persistence mechanism is not specified, the message will not be delivered in the event of a
+   * client failure. The message will be acknowledged across the network. This is the default QoS.</li>
+   *
+   * <li>Quality of Service 2 - indicates that a message should be delivered once. The message will
+   * be persisted to disk, and will be subject to a two-phase acknowledgement across the network.
+   * The message can only be delivered safely if it can be persisted, so the application must supply
+   * a means of persistence using <code>MqttConnectOptions</code>. If a persistence mechanism is not
+   * specified, the message will not be delivered in the event of a client failure.</li>
+   *
+   * If persistence is not configured, QoS 1 and 2 messages will still be delivered in the event of
+   * a network or server problem as the client will hold state in memory. If the MQTT client is
+   * shutdown or fails and persistence is not configured then delivery of QoS 1 and 2 messages can
+   * not be maintained as client-side state will be lost.
+   *
+   * @param qos the "quality of service" to use. Set to 0, 1, 2.
+   * @throws IllegalArgumentException if value of QoS is not 0, 1 or 2.
+   * @throws IllegalStateException if this message cannot be edited
+   */
+  public void setQos(int qos) {
+    this.qos = qos;
+  }
+
+  /**
+   * Returns whether or not messages should be retained by the server. For messages received from
+   * the server, this method returns whether or not the message was from a current publisher, or was
+   * "retained" by the server as the last message published on the topic.
+   *
+   * @return <code>true</code> if the message should be retained by the server.
+   */
+  public boolean getRetained() {
+    return retained;
+  }
+
+  /**
+   * Whether or not the publish message should be retained by the messaging engine. Sending a
+   * message with the retained set to <code>false</code> will clear the retained message from the
+   * server. The default value is <code>false</code>
+   *
+   * @param retained whether or not the messaging engine should retain the message.
+   * @throws IllegalStateException if this message cannot be edited
+   */
+  public void setRetained(boolean retained) {
+    this.retained = retained;
+  }
+
+  public TimeInterval getTimeToWait() {
+    return timeToWait;
+  }
+
+  /**
+   * Set the maximum time to wait for an action to complete.
+   * <p>
+   * Set the maximum time to wait for an action to complete before returning control to the invoking
+   * application. Control is returned when:
+   * <ul>
+   * <li>the action completes
+   * <li>or when the timeout if exceeded
+   * <li>or when the client is disconnect/shutdown
+   * <ul>
+   * The default value is -1 which means the action will not timeout. In the event of a timeout the
+   * action carries on running in the background until it completes. The timeout is used on methods
+   * that block while the action is in progress.
+   * </p>
+   * <p>
+   * A client from the connection's pool is shared, so every component sharing it that specifies a
+   * time to wait must specify the same one; initialising fails otherwise.
+   * </p>
+   *
+   * @param timeToWait before the action times out. A value or 0 will wait until the action finishes
+   *        and not timeout.
+   */
+  public void setTimeToWait(TimeInterval timeToWait) {
+    this.timeToWait = timeToWait;
+  }
+
+}
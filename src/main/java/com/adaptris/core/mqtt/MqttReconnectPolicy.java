@@ -0,0 +1,40 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+/**
+ * Decides when the clients of a {@link MqttConnection} or {@link Mqtt5Connection} try to reconnect
+ * after losing their connection to the broker.
+ *
+ * @see MqttConnectionImp#setReconnectPolicy(MqttReconnectPolicy)
+ */
+public interface MqttReconnectPolicy {
+
+  /**
+   * How long to wait before an attempt to reconnect.
+   *
+   * @param attempt the attempt, starting at 1 for the first attempt after the connection was lost.
+   * @return the delay in milliseconds.
+   */
+  long delayMillis(int attempt);
+
+  /**
+   * The maximum number of the connection's clients that may be reconnecting at the same time; the
+   * other clients wait their turn.
+   */
+  int maxConcurrentReconnects();
+}
@@ -0,0 +1,70 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotBlank;
+
+import com.adaptris.annotation.AdvancedConfig;
+import com.adaptris.annotation.ComponentProfile;
+import com.adaptris.annotation.DisplayOrder;
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * A topic filter that a {@link MqttConsumer} subscribes to.
+ * <p>
+ * The filter may contain the {@code +} (single level) and {@code #} (multi level) wildcards.
+ * </p>
+ *
+ * @config mqtt-topic-filter
+ * @since 4.5.0
+ */
+@XStreamAlias("mqtt-topic-filter")
+@ComponentProfile(summary = "MQTT topic filter and the QoS to subscribe with", tag = "consumer,mqtt", since = "4.5.0")
+@DisplayOrder(order = {"filter", "qos"})
+@NoArgsConstructor
+public class MqttTopicFilter {
+
+  /**
+   * The topic filter, which may contain wildcards.
+   */
+  @NotBlank
+  @Getter
+  @Setter
+  private String filter;
+
+  /**
+   * The maximum quality of service at which to subscribe (0, 1 or 2).
+   */
+  @Min(0)
+  @Max(2)
+  @AdvancedConfig
+  @Getter
+  @Setter
+  private int qos = MqttConstants.QOS_DEFAULT;
+
+  public MqttTopicFilter(String filter, int qos) {
+    setFilter(filter);
+    setQos(qos);
+  }
+
+}
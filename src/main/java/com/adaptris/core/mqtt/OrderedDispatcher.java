@@ -0,0 +1,82 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.adaptris.core.util.ManagedThreadFactory;
+
+/**
+ * Hands work off to a fixed set of single threaded workers, each with its own bounded queue.
+ * <p>
+ * Work is assigned to a worker by hashing its key, so everything submitted with the same key (e.g.
+ * the topic) is processed in the order it was submitted. When the queue of the selected worker is
+ * full the submitting thread blocks until there is space.
+ * </p>
+ */
+class OrderedDispatcher {
+
+  private final ExecutorService[] workers;
+
+  OrderedDispatcher(String name, int threads, int queueSize) {
+    ManagedThreadFactory threadFactory = new ManagedThreadFactory(name);
+    workers = new ExecutorService[threads];
+    for (int i = 0; i < threads; i++) {
+      workers[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize),
+          threadFactory, new BlockWhenFull());
+    }
+  }
+
+  void dispatch(String key, Runnable work) {
+    workers[Math.floorMod(key.hashCode(), workers.length)].execute(work);
+  }
+
+  /**
+   * Stop accepting work and wait for the work that has already been queued to finish.
+   */
+  void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+    for (ExecutorService worker : workers) {
+      worker.shutdown();
+    }
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    for (ExecutorService worker : workers) {
+      if (!worker.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+        worker.shutdownNow();
+      }
+    }
+  }
+
+  private static class BlockWhenFull implements RejectedExecutionHandler {
+    @Override
+    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+      if (executor.isShutdown()) {
+        throw new RejectedExecutionException("Dispatcher has been shutdown");
+      }
+      try {
+        executor.getQueue().put(r);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RejectedExecutionException(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,72 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free events per second over the last minute, using one slot per second.
+ */
+class RateMeter {
+
+  private static final int WINDOW_SECONDS = 60;
+
+  private final AtomicLongArray counts = new AtomicLongArray(WINDOW_SECONDS);
+  private final AtomicLongArray seconds = new AtomicLongArray(WINDOW_SECONDS);
+
+  void mark() {
+    long now = nowSeconds();
+    // nanoTime may be negative.
+    int slot = (int) Math.floorMod(now, (long) WINDOW_SECONDS);
+    long slotSecond = seconds.get(slot);
+    if (slotSecond != now) {
+      // Only take away what was counted before the slot moved on; other threads may already be
+      // counting this second, and zeroing the slot would lose their events.
+      long stale = counts.get(slot);
+      if (seconds.compareAndSet(slot, slotSecond, now)) {
+        counts.addAndGet(slot, -stale);
+      }
+    }
+    counts.incrementAndGet(slot);
+  }
+
+  /**
+   * The average number of events per second over the last minute.
+   */
+  double perSecond() {
+    long now = nowSeconds();
+    long total = 0;
+    for (int i = 0; i < WINDOW_SECONDS; i++) {
+      if (now - seconds.get(i) < WINDOW_SECONDS) {
+        total += counts.get(i);
+      }
+    }
+    return (double) total / WINDOW_SECONDS;
+  }
+
+  void reset() {
+    for (int i = 0; i < WINDOW_SECONDS; i++) {
+      counts.set(i, 0);
+      seconds.set(i, 0);
+    }
+  }
+
+  private static long nowSeconds() {
+    return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+  }
+}
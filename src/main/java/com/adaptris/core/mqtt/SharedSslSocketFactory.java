@@ -0,0 +1,232 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.Properties;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * An {@link SSLSocketFactory} built once from the connection's SSL properties and shared by all its
+ * clients.
+ * <p>
+ * Given only the SSL properties, Paho builds new key managers, trust managers and an
+ * {@code SSLContext} every time a client connects, so every connect and reconnect is a full TLS
+ * handshake. Sharing one context means its session cache is shared too, so clients connecting to
+ * the same broker resume an earlier session with an abbreviated handshake.
+ * </p>
+ * <p>
+ * The context is built with JSSE from the same {@code com.ibm.ssl.*} properties (see
+ * {@link SslProperty}) that Paho documents for {@code MqttConnectOptions#setSSLProperties}, with
+ * the same defaults: the {@code TLS} protocol, the platform's key and trust manager algorithms, and
+ * the {@code javax.net.ssl.*} system properties for a key or trust store that isn't configured.
+ * </p>
+ */
+final class SharedSslSocketFactory extends SSLSocketFactory {
+
+  private static final String PREFIX = "com.ibm.ssl.";
+  private static final String DEFAULT_PROTOCOL = "TLS";
+  // How Paho obfuscates passwords: an XOR with a fixed key, then its own base64 alphabet.
+  private static final String XOR_PREFIX = "{xor}";
+  private static final String XOR_ALPHABET = "./0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+  private static final byte[] XOR_KEY = {-99, -89, -39, -128, 5, -72, -119, -100};
+
+  private final SSLSocketFactory delegate;
+  private final String[] enabledCipherSuites;
+
+  private SharedSslSocketFactory(SSLSocketFactory delegate, String[] enabledCipherSuites) {
+    this.delegate = delegate;
+    this.enabledCipherSuites = enabledCipherSuites;
+  }
+
+  /**
+   * Whether the server URI needs an {@link SSLSocketFactory}; Paho rejects one for any other URI.
+   */
+  static boolean isSecure(String serverUri) {
+    return StringUtils.startsWithIgnoreCase(serverUri, "ssl://") || StringUtils.startsWithIgnoreCase(serverUri, "wss://");
+  }
+
+  /**
+   * Build the socket factory from the {@code com.ibm.ssl.*} properties.
+   */
+  static SSLSocketFactory create(Properties sslContextProperties) throws GeneralSecurityException, IOException {
+    String protocol = property(sslContextProperties, "protocol", DEFAULT_PROTOCOL);
+    String contextProvider = property(sslContextProperties, "contextProvider", null);
+    SSLContext context = contextProvider != null ? SSLContext.getInstance(protocol, contextProvider)
+        : SSLContext.getInstance(protocol);
+    context.init(keyManagers(sslContextProperties), trustManagers(sslContextProperties), null);
+    return new SharedSslSocketFactory(context.getSocketFactory(), enabledCipherSuites(sslContextProperties));
+  }
+
+  private static KeyManager[] keyManagers(Properties p) throws GeneralSecurityException, IOException {
+    String location = property(p, "keyStore", System.getProperty("javax.net.ssl.keyStore"));
+    if (location == null) {
+      return null;
+    }
+    char[] password = password(property(p, "keyStorePassword", System.getProperty("javax.net.ssl.keyStorePassword")));
+    KeyStore keyStore = load(location, property(p, "keyStoreType", System.getProperty("javax.net.ssl.keyStoreType")),
+        password);
+    String algorithm = property(p, "keyManager", KeyManagerFactory.getDefaultAlgorithm());
+    String provider = property(p, "keyStoreProvider", null);
+    KeyManagerFactory factory = provider != null ? KeyManagerFactory.getInstance(algorithm, provider)
+        : KeyManagerFactory.getInstance(algorithm);
+    factory.init(keyStore, password);
+    return factory.getKeyManagers();
+  }
+
+  private static TrustManager[] trustManagers(Properties p) throws GeneralSecurityException, IOException {
+    String location = property(p, "trustStore", null);
+    if (location == null) {
+      // JSSE's defaults, which honour the javax.net.ssl.trustStore system properties.
+      return null;
+    }
+    KeyStore trustStore = load(location, property(p, "trustStoreType", null),
+        password(property(p, "trustStorePassword", null)));
+    String algorithm = property(p, "trustManager", TrustManagerFactory.getDefaultAlgorithm());
+    String provider = property(p, "trustStoreProvider", null);
+    TrustManagerFactory factory = provider != null ? TrustManagerFactory.getInstance(algorithm, provider)
+        : TrustManagerFactory.getInstance(algorithm);
+    factory.init(trustStore);
+    return factory.getTrustManagers();
+  }
+
+  private static KeyStore load(String location, String type, char[] password)
+      throws GeneralSecurityException, IOException {
+    KeyStore keyStore = KeyStore.getInstance(StringUtils.defaultIfBlank(type, KeyStore.getDefaultType()));
+    try (InputStream in = Files.newInputStream(Paths.get(location))) {
+      keyStore.load(in, password);
+    }
+    return keyStore;
+  }
+
+  private static String[] enabledCipherSuites(Properties p) {
+    String suites = property(p, "enabledCipherSuites", null);
+    if (suites == null) {
+      return null;
+    }
+    return Arrays.stream(suites.split(",")).map(String::trim).filter(StringUtils::isNotEmpty).toArray(String[]::new);
+  }
+
+  /**
+   * The password, de-obfuscated if it starts with {@code {xor}} as Paho's own SSL support did.
+   */
+  static char[] password(String password) {
+    if (password == null || !password.startsWith(XOR_PREFIX)) {
+      return password != null ? password.toCharArray() : null;
+    }
+    byte[] bytes = decodeXorBase64(password.substring(XOR_PREFIX.length()));
+    char[] chars = new char[bytes.length / 2];
+    for (int i = 0; i < chars.length; i++) {
+      int low = (bytes[2 * i] ^ XOR_KEY[(2 * i) % XOR_KEY.length]) & 0xff;
+      int high = (bytes[2 * i + 1] ^ XOR_KEY[(2 * i + 1) % XOR_KEY.length]) & 0xff;
+      chars[i] = (char) (low | high << 8);
+    }
+    return chars;
+  }
+
+  // Each group of up to 4 characters is a little-endian number of 6 bit digits, written out big-endian.
+  private static byte[] decodeXorBase64(String encoded) {
+    byte[] bytes = new byte[encoded.length() * 3 / 4];
+    int out = 0;
+    for (int in = 0; in < encoded.length(); in += 4) {
+      int digits = Math.min(4, encoded.length() - in);
+      long value = 0;
+      for (int d = 0; d < digits; d++) {
+        value |= (long) Math.max(0, XOR_ALPHABET.indexOf(encoded.charAt(in + d))) << (6 * d);
+      }
+      for (int b = digits - 2; b >= 0; b--) {
+        bytes[out + b] = (byte) value;
+        value >>= 8;
+      }
+      out += Math.max(0, digits - 1);
+    }
+    return bytes;
+  }
+
+  private static String property(Properties p, String name, String defaultValue) {
+    return StringUtils.defaultIfBlank(p.getProperty(PREFIX + name), defaultValue);
+  }
+
+  @Override
+  public String[] getDefaultCipherSuites() {
+    return enabledCipherSuites != null ? enabledCipherSuites.clone() : delegate.getDefaultCipherSuites();
+  }
+
+  @Override
+  public String[] getSupportedCipherSuites() {
+    return delegate.getSupportedCipherSuites();
+  }
+
+  @Override
+  public Socket createSocket() throws IOException {
+    return configure(delegate.createSocket());
+  }
+
+  @Override
+  public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+    return configure(delegate.createSocket(s, host, port, autoClose));
+  }
+
+  @Override
+  public Socket createSocket(Socket s, InputStream consumed, boolean autoClose) throws IOException {
+    return configure(delegate.createSocket(s, consumed, autoClose));
+  }
+
+  @Override
+  public Socket createSocket(String host, int port) throws IOException {
+    return configure(delegate.createSocket(host, port));
+  }
+
+  @Override
+  public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+    return configure(delegate.createSocket(host, port, localHost, localPort));
+  }
+
+  @Override
+  public Socket createSocket(InetAddress host, int port) throws IOException {
+    return configure(delegate.createSocket(host, port));
+  }
+
+  @Override
+  public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+    return configure(delegate.createSocket(address, port, localAddress, localPort));
+  }
+
+  private Socket configure(Socket socket) {
+    if (enabledCipherSuites != null && socket instanceof SSLSocket) {
+      ((SSLSocket) socket).setEnabledCipherSuites(enabledCipherSuites);
+    }
+    return socket;
+  }
+}
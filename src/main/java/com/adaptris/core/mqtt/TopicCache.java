@@ -0,0 +1,172 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.adaptris.core.CoreException;
+
+/**
+ * A size and time bounded cache of the topics a producer has already validated.
+ * <p>
+ * Least recently used topics are evicted once there are more than {@code maxSize}, and a topic is
+ * validated again once it has been in the cache for longer than {@code expiryNanos}; expired topics
+ * that aren't looked up again are left for the size limit to evict. Hits, misses and evictions are
+ * counted here and, if there is one, against the connection's metrics.
+ * </p>
+ */
+class TopicCache {
+
+  @FunctionalInterface
+  interface Resolver {
+    String resolve(String topicName) throws CoreException;
+  }
+
+  private final int maxSize;
+  private final long expiryNanos;
+  private final MqttConnectionMetrics metrics;
+  private final Map<String, Entry> entries;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * @param maxSize the maximum number of topics to keep.
+   * @param expiryNanos how long to keep a topic for, 0 or less to keep it until it is evicted.
+   * @param metrics the connection's metrics, may be null.
+   */
+  TopicCache(int maxSize, long expiryNanos, MqttConnectionMetrics metrics) {
+    this.maxSize = maxSize;
+    this.expiryNanos = expiryNanos;
+    this.metrics = metrics;
+    entries = new LinkedHashMap<>(16, 0.75f, true) {
+      private static final long serialVersionUID = 2023101801L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        if (size() > TopicCache.this.maxSize) {
+          evicted(1);
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Get the topic from the cache, resolving (and caching) it if it isn't there or has expired.
+   * <p>
+   * The resolver is called outside the lock, so two threads may both resolve a topic that is missing.
+   * </p>
+   */
+  String get(String topicName, Resolver resolver) throws CoreException {
+    long now = System.nanoTime();
+    synchronized (entries) {
+      Entry entry = entries.get(topicName);
+      if (entry != null) {
+        if (expiryNanos <= 0 || now - entry.cachedAt < expiryNanos) {
+          hit();
+          return entry.topic;
+        }
+        entries.remove(topicName);
+        evicted(1);
+      }
+    }
+    miss();
+    String topic = resolver.resolve(topicName);
+    synchronized (entries) {
+      if (entries.put(topicName, new Entry(topic, now)) == null) {
+        resized(1);
+      }
+    }
+    return topic;
+  }
+
+  void clear() {
+    synchronized (entries) {
+      resized(-entries.size());
+      entries.clear();
+    }
+  }
+
+  int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  long hits() {
+    return hits.sum();
+  }
+
+  long misses() {
+    return misses.sum();
+  }
+
+  long evictions() {
+    return evictions.sum();
+  }
+
+  /**
+   * The fraction of lookups that were found in the cache, 0 if there haven't been any.
+   */
+  double hitRate() {
+    long hitCount = hits.sum();
+    long total = hitCount + misses.sum();
+    return total == 0 ? 0.0 : (double) hitCount / total;
+  }
+
+  private void hit() {
+    hits.increment();
+    if (metrics != null) {
+      metrics.topicCacheHit();
+    }
+  }
+
+  private void miss() {
+    misses.increment();
+    if (metrics != null) {
+      metrics.topicCacheMiss();
+    }
+  }
+
+  private void evicted(int count) {
+    evictions.add(count);
+    resized(-count);
+    if (metrics != null) {
+      metrics.topicCacheEvicted(count);
+    }
+  }
+
+  private void resized(int delta) {
+    if (metrics != null) {
+      metrics.topicCacheResized(delta);
+    }
+  }
+
+  private static final class Entry {
+    private final String topic;
+    private final long cachedAt;
+
+    private Entry(String topic, long cachedAt) {
+      this.topic = topic;
+      this.cachedAt = cachedAt;
+    }
+  }
+}
@@ -0,0 +1,101 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.adaptris.core.AdaptrisMessage;
+
+/**
+ * A topic expression that has been parsed once, so that the topic for each message is built by
+ * appending literal text and metadata values rather than by resolving the expression again.
+ * <p>
+ * Only plain {@code %message{key}} expressions can be compiled; anything else (e.g.
+ * {@code %message{%uniqueId}} or {@code %env{...}}) is left to {@link AdaptrisMessage#resolve(String)}.
+ * </p>
+ */
+final class TopicTemplate {
+
+  private static final Pattern METADATA_EXPRESSION = Pattern.compile("%message\\{([^{}%]+)\\}");
+
+  private static final ThreadLocal<StringBuilder> BUILDER = ThreadLocal.withInitial(StringBuilder::new);
+
+  // Literal text at even indexes, metadata keys at odd indexes.
+  private final String[] parts;
+  private final String literal;
+
+  private TopicTemplate(String[] parts) {
+    this.parts = parts;
+    literal = parts.length == 1 ? parts[0] : null;
+  }
+
+  /**
+   * Compile the expression.
+   *
+   * @return the template, or null if the expression contains something other than
+   *         {@code %message{key}} expressions.
+   */
+  static TopicTemplate compile(String expression) {
+    List<String> parts = new ArrayList<>();
+    Matcher matcher = METADATA_EXPRESSION.matcher(expression);
+    int start = 0;
+    while (matcher.find()) {
+      parts.add(expression.substring(start, matcher.start()));
+      parts.add(matcher.group(1));
+      start = matcher.end();
+    }
+    parts.add(expression.substring(start));
+    for (int i = 0; i < parts.size(); i += 2) {
+      if (parts.get(i).indexOf('%') >= 0) {
+        return null;
+      }
+    }
+    return new TopicTemplate(parts.toArray(new String[0]));
+  }
+
+  /**
+   * Render the topic for the message.
+   *
+   * @return the topic, or null if the message doesn't have one of the metadata keys.
+   */
+  String render(AdaptrisMessage msg) {
+    if (literal != null) {
+      return literal;
+    }
+    StringBuilder builder = BUILDER.get();
+    builder.setLength(0);
+    for (int i = 0; i < parts.length; i++) {
+      if (i % 2 == 0) {
+        builder.append(parts[i]);
+      } else {
+        String value = msg.getMetadataValue(parts[i]);
+        if (value == null) {
+          return null;
+        }
+        builder.append(value);
+      }
+    }
+    return builder.toString();
+  }
+
+  boolean isLiteral() {
+    return literal != null;
+  }
+}
@@ -0,0 +1,178 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.Test;
+
+import com.adaptris.core.AdaptrisMessage;
+import com.adaptris.core.AdaptrisMessageFactory;
+import com.adaptris.interlok.junit.scaffolding.BaseCase;
+
+public class ChunkReassemblerTest extends BaseCase {
+
+  @Test
+  public void testChunkHeader() throws Exception {
+    UUID transferId = UUID.randomUUID();
+    byte[] chunk = MqttChunks.read(new ByteArrayInputStream("hello".getBytes(StandardCharsets.UTF_8)), 10);
+    assertEquals(MqttChunks.HEADER_LENGTH + 5, chunk.length);
+    MqttChunks.writeHeader(chunk, transferId, 3, true);
+    assertTrue(MqttChunks.isChunk(chunk));
+    assertTrue(MqttChunks.isLast(chunk));
+    assertEquals(transferId, MqttChunks.transferId(chunk));
+    assertEquals(3, MqttChunks.sequence(chunk));
+    assertFalse(MqttChunks.isChunk("hello".getBytes(StandardCharsets.UTF_8)));
+  }
+
+  @Test
+  public void testReassemble() throws Exception {
+    ChunkReassembler reassembler = reassembler(60000, new ArrayList<>());
+    try {
+      List<MqttMessage> chunks = chunk("The quick brown fox jumps over the lazy dog", 10);
+      assertEquals(5, chunks.size());
+      for (int i = 0; i < chunks.size() - 1; i++) {
+        assertNull(reassembler.add(chunks.get(i)));
+      }
+      assertEquals(1, reassembler.incompleteTransfers());
+      ChunkReassembler.Reassembled transfer = reassembler.add(chunks.get(chunks.size() - 1));
+      assertNotNull(transfer);
+      AdaptrisMessage msg = transfer.message();
+      assertEquals("The quick brown fox jumps over the lazy dog", msg.getContent());
+      assertEquals(chunks, transfer.chunks());
+      assertEquals(0, reassembler.incompleteTransfers());
+    } finally {
+      reassembler.shutdown();
+    }
+  }
+
+  @Test
+  public void testDuplicateChunksAreIgnored() throws Exception {
+    List<MqttMessage> discarded = new ArrayList<>();
+    ChunkReassembler reassembler = reassembler(60000, discarded);
+    try {
+      List<MqttMessage> chunks = chunk("The quick brown fox jumps over the lazy dog", 10);
+      assertNull(reassembler.add(chunks.get(0)));
+      assertNull(reassembler.add(chunks.get(1)));
+      assertNull(reassembler.add(chunks.get(1)));
+      assertNull(reassembler.add(chunks.get(0)));
+      assertEquals(1, reassembler.incompleteTransfers());
+      for (int i = 2; i < chunks.size() - 1; i++) {
+        assertNull(reassembler.add(chunks.get(i)));
+      }
+      ChunkReassembler.Reassembled transfer = reassembler.add(chunks.get(chunks.size() - 1));
+      assertNotNull(transfer);
+      assertEquals("The quick brown fox jumps over the lazy dog", transfer.message().getContent());
+      // The duplicates are acknowledged along with the rest of the transfer.
+      assertEquals(chunks.size() + 2, transfer.chunks().size());
+      assertTrue(discarded.isEmpty());
+    } finally {
+      reassembler.shutdown();
+    }
+  }
+
+  @Test
+  public void testOutOfSequenceDiscardsTransfer() throws Exception {
+    List<MqttMessage> discarded = new ArrayList<>();
+    ChunkReassembler reassembler = reassembler(60000, discarded);
+    try {
+      List<MqttMessage> chunks = chunk("The quick brown fox jumps over the lazy dog", 10);
+      assertNull(reassembler.add(chunks.get(0)));
+      assertNull(reassembler.add(chunks.get(2)));
+      assertEquals(0, reassembler.incompleteTransfers());
+      assertEquals(Arrays.asList(chunks.get(0), chunks.get(2)), discarded);
+      assertNull(reassembler.add(chunks.get(4)));
+      assertEquals(Arrays.asList(chunks.get(0), chunks.get(2), chunks.get(4)), discarded);
+    } finally {
+      reassembler.shutdown();
+    }
+  }
+
+  @Test
+  public void testIncompleteTransferExpires() throws Exception {
+    List<MqttMessage> discarded = Collections.synchronizedList(new ArrayList<>());
+    ChunkReassembler reassembler = reassembler(10, discarded);
+    try {
+      List<MqttMessage> first = chunk("The quick brown fox jumps over the lazy dog", 10);
+      assertNull(reassembler.add(first.get(0)));
+      // Expired by the timer, without waiting for another chunk.
+      long deadline = System.currentTimeMillis() + 5000L;
+      while (reassembler.incompleteTransfers() > 0 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(0, reassembler.incompleteTransfers());
+      assertEquals(Collections.singletonList(first.get(0)), discarded);
+      assertNull(reassembler.add(first.get(1)));
+      assertEquals(Arrays.asList(first.get(0), first.get(1)), discarded);
+    } finally {
+      reassembler.shutdown();
+    }
+  }
+
+  @Test
+  public void testClear() throws Exception {
+    List<MqttMessage> discarded = new ArrayList<>();
+    ChunkReassembler reassembler = reassembler(60000, discarded);
+    try {
+      reassembler.add(chunk("The quick brown fox jumps over the lazy dog", 10).get(0));
+      assertEquals(1, reassembler.incompleteTransfers());
+      reassembler.clear();
+      assertEquals(0, reassembler.incompleteTransfers());
+      assertTrue(discarded.isEmpty());
+    } finally {
+      reassembler.shutdown();
+    }
+  }
+
+  private ChunkReassembler reassembler(long timeoutMillis, List<MqttMessage> discarded) {
+    return new ChunkReassembler(AdaptrisMessageFactory.getDefaultInstance(), getName(), timeoutMillis,
+        discarded::addAll);
+  }
+
+  private static List<MqttMessage> chunk(String payload, int chunkSize) throws Exception {
+    UUID transferId = UUID.randomUUID();
+    ByteArrayInputStream in = new ByteArrayInputStream(payload.getBytes(StandardCharsets.UTF_8));
+    List<byte[]> chunks = new ArrayList<>();
+    byte[] chunk = MqttChunks.read(in, chunkSize);
+    while (chunk.length > MqttChunks.HEADER_LENGTH) {
+      chunks.add(chunk);
+      chunk = MqttChunks.read(in, chunkSize);
+    }
+    List<MqttMessage> messages = new ArrayList<>();
+    for (int i = 0; i < chunks.size(); i++) {
+      MqttChunks.writeHeader(chunks.get(i), transferId, i, i == chunks.size() - 1);
+      MqttMessage message = new MqttMessage(chunks.get(i));
+      message.setId(i + 1);
+      messages.add(message);
+    }
+    return messages;
+  }
+}
@@ -0,0 +1,141 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.adaptris.core.CoreException;
+import com.adaptris.interlok.junit.scaffolding.BaseCase;
+
+public class ClientConnectorTest extends BaseCase {
+
+  @Test
+  public void testConnectInBackground() throws Exception {
+    ClientConnector connector = new ClientConnector(getName(), 2);
+    try {
+      AtomicBoolean connected = new AtomicBoolean();
+      AtomicInteger connects = new AtomicInteger();
+      ClientConnector.Connect connect = () -> {
+        if (!connected.get()) {
+          connects.incrementAndGet();
+          connected.set(true);
+        }
+      };
+      connector.connectInBackground("client", connect);
+      // Already pending, so not connected twice.
+      connector.connectInBackground("client", connect);
+      connector.connect("client", connect);
+      assertTrue(connected.get());
+      assertEquals(1, connects.get());
+    } finally {
+      connector.shutdown();
+    }
+  }
+
+  @Test
+  public void testConnectFails() throws Exception {
+    ClientConnector connector = new ClientConnector(getName(), 2);
+    try {
+      connector.connectInBackground("client", () -> {
+        throw new IllegalStateException("broker unavailable");
+      });
+      try {
+        connector.connect("client", () -> fail("Should fail with the background connect's exception"));
+        fail();
+      } catch (CoreException expected) {
+        assertEquals("broker unavailable", expected.getCause().getMessage());
+      }
+      // Next time round it connects inline.
+      AtomicBoolean connected = new AtomicBoolean();
+      connector.connect("client", () -> connected.set(true));
+      assertTrue(connected.get());
+    } finally {
+      connector.shutdown();
+    }
+  }
+
+  @Test
+  public void testRemoveWaitsForConnectInProgress() throws Exception {
+    ClientConnector connector = new ClientConnector(getName(), 2);
+    try {
+      CountDownLatch started = new CountDownLatch(1);
+      AtomicBoolean connected = new AtomicBoolean();
+      connector.connectInBackground("client", () -> {
+        started.countDown();
+        Thread.sleep(200);
+        connected.set(true);
+      });
+      assertTrue(started.await(10, TimeUnit.SECONDS));
+      connector.remove("client");
+      // So the client can be disconnected before it is closed.
+      assertTrue(connected.get());
+    } finally {
+      connector.shutdown();
+    }
+  }
+
+  @Test
+  public void testRemoveCancelsQueuedConnect() throws Exception {
+    ClientConnector connector = new ClientConnector(getName(), 1);
+    try {
+      CountDownLatch release = new CountDownLatch(1);
+      AtomicBoolean connected = new AtomicBoolean();
+      connector.connectInBackground("first", () -> release.await(10, TimeUnit.SECONDS));
+      connector.connectInBackground("second", () -> connected.set(true));
+      connector.remove("second");
+      release.countDown();
+      connector.connect("first", () -> {
+      });
+      assertFalse(connected.get());
+    } finally {
+      connector.shutdown();
+    }
+  }
+
+  @Test
+  public void testConcurrentConnectsAreBounded() throws Exception {
+    ClientConnector connector = new ClientConnector(getName(), 3);
+    try {
+      AtomicInteger active = new AtomicInteger();
+      AtomicInteger maxActive = new AtomicInteger();
+      CountDownLatch done = new CountDownLatch(20);
+      for (int i = 0; i < 20; i++) {
+        connector.connectInBackground("client-" + i, () -> {
+          maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+          Thread.sleep(20);
+          active.decrementAndGet();
+          done.countDown();
+        });
+      }
+      assertTrue(done.await(10, TimeUnit.SECONDS));
+      assertTrue(maxActive.get() > 1);
+      assertTrue(maxActive.get() <= 3);
+    } finally {
+      connector.shutdown();
+    }
+  }
+}
@@ -0,0 +1,104 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.adaptris.interlok.junit.scaffolding.BaseCase;
+
+public class ClientReconnectorTest extends BaseCase {
+
+  private static final MqttReconnectPolicy POLICY = new MqttReconnectPolicy() {
+    @Override
+    public long delayMillis(int attempt) {
+      return 10;
+    }
+
+    @Override
+    public int maxConcurrentReconnects() {
+      return 2;
+    }
+  };
+
+  @Test
+  public void testRetriesUntilConnected() throws Exception {
+    ClientReconnector reconnector = new ClientReconnector(getName(), POLICY);
+    try {
+      AtomicInteger attempts = new AtomicInteger();
+      CountDownLatch connected = new CountDownLatch(1);
+      reconnector.reconnect("client", () -> {
+        if (attempts.incrementAndGet() < 3) {
+          throw new IllegalStateException("broker unavailable");
+        }
+        connected.countDown();
+      });
+      assertTrue(connected.await(5, TimeUnit.SECONDS));
+      assertEquals(3, attempts.get());
+    } finally {
+      reconnector.shutdown();
+    }
+  }
+
+  @Test
+  public void testConnectionLostAsSoonAsConnected() throws Exception {
+    ClientReconnector reconnector = new ClientReconnector(getName(), POLICY);
+    try {
+      AtomicInteger attempts = new AtomicInteger();
+      CountDownLatch reconnected = new CountDownLatch(2);
+      ClientConnector.Connect[] connect = new ClientConnector.Connect[1];
+      connect[0] = () -> {
+        if (attempts.incrementAndGet() == 1) {
+          // Lost again before the attempt has returned.
+          reconnector.reconnect("client", connect[0]);
+        }
+        reconnected.countDown();
+      };
+      reconnector.reconnect("client", connect[0]);
+      assertTrue(reconnected.await(5, TimeUnit.SECONDS));
+      assertEquals(2, attempts.get());
+    } finally {
+      reconnector.shutdown();
+    }
+  }
+
+  @Test
+  public void testCancelWhilstConnecting() throws Exception {
+    ClientReconnector reconnector = new ClientReconnector(getName(), POLICY);
+    try {
+      AtomicInteger attempts = new AtomicInteger();
+      CountDownLatch attempted = new CountDownLatch(1);
+      reconnector.reconnect("client", () -> {
+        attempts.incrementAndGet();
+        reconnector.cancel("client");
+        attempted.countDown();
+        throw new IllegalStateException("broker unavailable");
+      });
+      assertTrue(attempted.await(5, TimeUnit.SECONDS));
+      Thread.sleep(200);
+      assertEquals(1, attempts.get());
+    } finally {
+      reconnector.shutdown();
+    }
+  }
+}
@@ -0,0 +1,173 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.Test;
+
+import com.adaptris.core.AdaptrisMessage;
+import com.adaptris.core.AdaptrisMessageFactory;
+import com.adaptris.interlok.junit.scaffolding.BaseCase;
+import com.adaptris.util.TimeInterval;
+
+public class MessageBatcherTest extends BaseCase {
+
+  @Test
+  public void testMaxMessages() throws Exception {
+    List<AdaptrisMessage> batches = new CopyOnWriteArrayList<>();
+    MessageBatcher batcher = new MqttBatching(3, null, new TimeInterval(1L, TimeUnit.HOURS))
+        .createBatcher(AdaptrisMessageFactory.getDefaultInstance(), getName(), (batch, messages) -> batches.add(batch));
+    try {
+      for (int i = 0; i < 7; i++) {
+        batcher.add("sensors/" + i, message("reading " + i));
+      }
+      assertEquals(2, batches.size());
+      AdaptrisMessage first = batches.get(0);
+      assertEquals("reading 0\nreading 1\nreading 2", first.getContent());
+      assertEquals("3", first.getMetadataValue(MqttConstants.BATCH_SIZE_METADATA));
+      assertEquals("sensors/0", first.getMetadataValue(MqttConstants.BATCH_TOPIC_METADATA_PREFIX + "0"));
+      assertEquals("sensors/2", first.getMetadataValue(MqttConstants.BATCH_TOPIC_METADATA_PREFIX + "2"));
+      assertEquals("sensors/3", batches.get(1).getMetadataValue(MqttConstants.BATCH_TOPIC_METADATA_PREFIX + "0"));
+    } finally {
+      batcher.shutdown();
+    }
+    // The last one is processed on shutdown.
+    assertEquals(3, batches.size());
+    assertEquals("reading 6", batches.get(2).getContent());
+  }
+
+  @Test
+  public void testMaxBytes() throws Exception {
+    List<AdaptrisMessage> batches = new CopyOnWriteArrayList<>();
+    MqttBatching batching = new MqttBatching(100, 10L, new TimeInterval(1L, TimeUnit.HOURS));
+    batching.setSeparator("");
+    MessageBatcher batcher = batching.createBatcher(AdaptrisMessageFactory.getDefaultInstance(), getName(),
+        (batch, messages) -> batches.add(batch));
+    try {
+      batcher.add("t", message("aaaa"));
+      batcher.add("t", message("bbbb"));
+      // Would take the batch over 10 bytes.
+      batcher.add("t", message("cccc"));
+      assertEquals(1, batches.size());
+      assertEquals("aaaabbbb", batches.get(0).getContent());
+      // Bigger than the maximum on its own.
+      batcher.add("t", message("dddddddddddd"));
+      assertEquals(3, batches.size());
+      assertEquals("cccc", batches.get(1).getContent());
+      assertEquals("dddddddddddd", batches.get(2).getContent());
+    } finally {
+      batcher.shutdown();
+    }
+  }
+
+  @Test
+  public void testLinger() throws Exception {
+    List<AdaptrisMessage> batches = new CopyOnWriteArrayList<>();
+    MessageBatcher batcher = new MqttBatching(100, null, new TimeInterval(50L, TimeUnit.MILLISECONDS))
+        .createBatcher(AdaptrisMessageFactory.getDefaultInstance(), getName(), (batch, messages) -> batches.add(batch));
+    try {
+      batcher.add("t", message("a"));
+      batcher.add("t", message("b"));
+      long deadline = System.currentTimeMillis() + 5000;
+      while (batches.isEmpty() && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(1, batches.size());
+      assertEquals("a\nb", batches.get(0).getContent());
+    } finally {
+      batcher.shutdown();
+    }
+    assertEquals(1, batches.size());
+  }
+
+  @Test
+  public void testLingerFlushWhilstFillingNextBatch() throws Exception {
+    List<String> processed = new CopyOnWriteArrayList<>();
+    AtomicInteger active = new AtomicInteger();
+    AtomicInteger maxActive = new AtomicInteger();
+    CountDownLatch lingerFlushStarted = new CountDownLatch(1);
+    MessageBatcher batcher = new MqttBatching(2, null, new TimeInterval(10L, TimeUnit.MILLISECONDS))
+        .createBatcher(AdaptrisMessageFactory.getDefaultInstance(), getName(), (batch, messages) -> {
+          maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+          try {
+            if (lingerFlushStarted.getCount() > 0) {
+              lingerFlushStarted.countDown();
+              // Still processing when the next batch fills up.
+              Thread.sleep(200);
+            }
+            processed.add(batch.getContent());
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          } finally {
+            active.decrementAndGet();
+          }
+        });
+    try {
+      batcher.add("t", message("a"));
+      assertTrue(lingerFlushStarted.await(5, TimeUnit.SECONDS));
+      batcher.add("t", message("b"));
+      batcher.add("t", message("c"));
+      assertEquals(2, processed.size());
+      assertEquals("a", processed.get(0));
+      assertEquals("b\nc", processed.get(1));
+      assertEquals(1, maxActive.get());
+    } finally {
+      batcher.shutdown();
+    }
+  }
+
+  @Test
+  public void testShutdownLetsLingerFlushFinish() throws Exception {
+    List<String> processed = new CopyOnWriteArrayList<>();
+    AtomicInteger interrupted = new AtomicInteger();
+    CountDownLatch lingerFlushStarted = new CountDownLatch(1);
+    MessageBatcher batcher = new MqttBatching(100, null, new TimeInterval(10L, TimeUnit.MILLISECONDS))
+        .createBatcher(AdaptrisMessageFactory.getDefaultInstance(), getName(), (batch, messages) -> {
+          try {
+            if (lingerFlushStarted.getCount() > 0) {
+              lingerFlushStarted.countDown();
+              Thread.sleep(200);
+            }
+          } catch (InterruptedException e) {
+            interrupted.incrementAndGet();
+          }
+          processed.add(batch.getContent());
+        });
+    batcher.add("t", message("a"));
+    assertTrue(lingerFlushStarted.await(5, TimeUnit.SECONDS));
+    batcher.add("t", message("b"));
+    batcher.shutdown();
+    assertEquals(0, interrupted.get());
+    assertEquals(2, processed.size());
+    assertEquals("a", processed.get(0));
+    assertEquals("b", processed.get(1));
+  }
+
+  private static MqttMessage message(String s) {
+    return new MqttMessage(s.getBytes(StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,144 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.paho.mqttv5.client.MqttClientPersistence;
+import org.eclipse.paho.mqttv5.common.MqttPersistable;
+import org.eclipse.paho.mqttv5.common.MqttPersistenceException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.adaptris.interlok.junit.scaffolding.BaseCase;
+
+public class Mqtt5ClientPersistenceTest extends BaseCase {
+
+  private static final String CLIENT_ID = "client";
+  private static final String SERVER_URI = "tcp://localhost:1883";
+
+  private File directory;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = Files.createTempDirectory("mqtt5-persistence").toFile();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    FileUtils.deleteQuietly(directory);
+  }
+
+  @Test
+  public void testMemoryPersistence() throws Exception {
+    MqttClientPersistence persistence = new Mqtt5ClientPersistence(new MqttMemoryPersistence().create(), SERVER_URI);
+    persistence.open(CLIENT_ID);
+    try {
+      persistence.put("s-1", new Persistable("header", "payload"));
+      assertTrue(persistence.containsKey("s-1"));
+      assertPersistable(persistence.get("s-1"), "header", "payload");
+      assertEquals(Collections.singletonList("s-1"), Collections.list(persistence.keys()));
+      persistence.remove("s-1");
+      assertFalse(persistence.containsKey("s-1"));
+    } finally {
+      persistence.close();
+    }
+  }
+
+  @Test
+  public void testMappedLogPersistenceRecoversRecords() throws Exception {
+    MqttMappedLogPersistence mappedLog = new MqttMappedLogPersistence();
+    mappedLog.setDirectory(directory.getAbsolutePath());
+    MqttClientPersistence persistence = new Mqtt5ClientPersistence(mappedLog.create(), SERVER_URI);
+    persistence.open(CLIENT_ID);
+    persistence.put("s-1", new Persistable("header1", "payload1"));
+    persistence.put("s-2", new Persistable("header2", "payload2"));
+    persistence.remove("s-1");
+    persistence.close();
+
+    persistence = new Mqtt5ClientPersistence(mappedLog.create(), SERVER_URI);
+    persistence.open(CLIENT_ID);
+    try {
+      assertFalse(persistence.containsKey("s-1"));
+      assertPersistable(persistence.get("s-2"), "header2", "payload2");
+      persistence.clear();
+      assertFalse(persistence.keys().hasMoreElements());
+    } finally {
+      persistence.close();
+    }
+  }
+
+  private static void assertPersistable(MqttPersistable p, String header, String payload)
+      throws MqttPersistenceException {
+    assertArrayEquals(header.getBytes(StandardCharsets.UTF_8), p.getHeaderBytes());
+    assertEquals(0, p.getHeaderOffset());
+    assertEquals(header.length(), p.getHeaderLength());
+    assertArrayEquals(payload.getBytes(StandardCharsets.UTF_8), p.getPayloadBytes());
+    assertEquals(0, p.getPayloadOffset());
+    assertEquals(payload.length(), p.getPayloadLength());
+  }
+
+  private static class Persistable implements MqttPersistable {
+    private final byte[] header;
+    private final byte[] payload;
+
+    Persistable(String header, String payload) {
+      this.header = header.getBytes(StandardCharsets.UTF_8);
+      this.payload = payload.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public byte[] getHeaderBytes() {
+      return header;
+    }
+
+    @Override
+    public int getHeaderLength() {
+      return header.length;
+    }
+
+    @Override
+    public int getHeaderOffset() {
+      return 0;
+    }
+
+    @Override
+    public byte[] getPayloadBytes() {
+      return payload;
+    }
+
+    @Override
+    public int getPayloadLength() {
+      return payload.length;
+    }
+
+    @Override
+    public int getPayloadOffset() {
+      return 0;
+    }
+  }
+}
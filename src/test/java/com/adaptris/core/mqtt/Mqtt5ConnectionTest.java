@@ -0,0 +1,129 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.mqttv5.client.MqttClient;
+import org.eclipse.paho.mqttv5.client.MqttClientException;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
+import org.eclipse.paho.mqttv5.client.MqttDisconnectResponse;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.junit.Test;
+
+import com.adaptris.interlok.junit.scaffolding.BaseCase;
+import com.adaptris.util.KeyValuePair;
+import com.adaptris.util.TimeInterval;
+
+public class Mqtt5ConnectionTest extends BaseCase {
+
+  @Test
+  public void testInit() throws Exception {
+    Mqtt5Connection connection = newConnection();
+    connection.setSessionExpiryInterval(new TimeInterval(1L, TimeUnit.HOURS));
+    connection.setCleanStart(false);
+    connection.setReceiveMaximum(100);
+    connection.setTopicAliasMaximum(10);
+    connection.setMaximumPacketSize(1024L * 1024L);
+    connection.getSslProperties().add(new KeyValuePair("trustStore", "/path/to/file"));
+
+    try {
+      connection.init();
+      MqttConnectionOptions options = connection.retrieveOptions();
+      assertEquals("username", options.getUserName());
+      assertArrayEquals("password".getBytes(StandardCharsets.UTF_8), options.getPassword());
+      assertFalse(options.isCleanStart());
+      assertEquals(Long.valueOf(3600), options.getSessionExpiryInterval());
+      assertEquals(Integer.valueOf(100), options.getReceiveMaximum());
+      assertEquals(Integer.valueOf(10), options.getTopicAliasMaximum());
+      assertEquals(Long.valueOf(1024L * 1024L), options.getMaximumPacketSize());
+      assertEquals("/path/to/file", options.getSSLProperties().get("com.ibm.ssl.trustStore"));
+    } finally {
+      connection.close();
+    }
+  }
+
+  @Test
+  public void testInitDefaults() throws Exception {
+    Mqtt5Connection connection = newConnection();
+    try {
+      connection.init();
+      MqttConnectionOptions options = connection.retrieveOptions();
+      assertTrue(options.isCleanStart());
+      assertNull(options.getSSLProperties());
+      assertTrue(options.isAutomaticReconnect());
+    } finally {
+      connection.close();
+    }
+  }
+
+  @Test
+  public void testReconnectPolicy() throws Exception {
+    Mqtt5Connection connection = newConnection();
+    connection.setReconnectPolicy(new MqttExponentialBackoff(new TimeInterval(1L, TimeUnit.SECONDS),
+        new TimeInterval(1L, TimeUnit.MINUTES)));
+    try {
+      connection.init();
+      assertFalse(connection.retrieveOptions().isAutomaticReconnect());
+    } finally {
+      connection.close();
+    }
+  }
+
+  @Test
+  public void testReconnectPolicyCallback() throws Exception {
+    MqttConnectionMetrics metrics = new MqttConnectionMetrics(() -> 0);
+    List<String> reconnects = new ArrayList<>();
+    Mqtt5ClientCallback callback = new Mqtt5ClientCallback(metrics, () -> reconnects.add("reconnect"));
+    callback.connectComplete(false, "tcp://localhost:1883");
+    callback.disconnected(new MqttDisconnectResponse(new MqttException(MqttClientException.REASON_CODE_CONNECTION_LOST)));
+    assertEquals(1, reconnects.size());
+    // Connected by the reconnect policy, so it counts as a reconnect.
+    callback.connectComplete(false, "tcp://localhost:1883");
+    assertEquals(1, metrics.getReconnects());
+  }
+
+  @Test
+  public void testNewClient() throws Exception {
+    Mqtt5Connection connection = newConnection();
+    connection.setPersistence(new MqttMemoryPersistence());
+    MqttClient client = connection.newClient();
+    assertNotNull(client);
+    assertEquals("tcp://127.0.0.1:1883", client.getServerURI());
+    assertEquals(client, connection.getClient(client.getClientId()));
+    connection.closeClientConnection(client);
+    assertNull(connection.getClient(client.getClientId()));
+  }
+
+  private Mqtt5Connection newConnection() {
+    Mqtt5Connection connection = new Mqtt5Connection();
+    connection.setServerUri("tcp://127.0.0.1:1883");
+    connection.setUsername("username");
+    connection.setPassword("password");
+    return connection;
+  }
+}
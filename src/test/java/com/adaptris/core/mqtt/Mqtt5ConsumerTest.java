@@ -0,0 +1,39 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import com.adaptris.core.StandaloneConsumer;
+import com.adaptris.interlok.junit.scaffolding.ExampleConsumerCase;
+
+// The embedded ActiveMQ broker doesn't support MQTT 5.0, so there are no consume tests here.
+public class Mqtt5ConsumerTest extends ExampleConsumerCase {
+
+  public Mqtt5ConsumerTest() {
+    super();
+  }
+
+  @Override
+  protected Object retrieveObjectForSampleConfig() {
+    Mqtt5Consumer consumer = new Mqtt5Consumer().withTopic("$share/workers/mqtt/topic/topicname");
+    Mqtt5Connection conn = new Mqtt5Connection();
+    conn.setServerUri("tcp://localhost:1883");
+    conn.setUsername("My Access Key");
+    conn.setPassword("My Security Key");
+    conn.setReceiveMaximum(100);
+    return new StandaloneConsumer(conn, consumer);
+  }
+}
@@ -0,0 +1,59 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.adaptris.core.AdaptrisMessage;
+import com.adaptris.core.AdaptrisMessageFactory;
+import com.adaptris.core.StandaloneProducer;
+import com.adaptris.interlok.junit.scaffolding.ExampleProducerCase;
+import com.adaptris.util.TimeInterval;
+
+// The embedded ActiveMQ broker doesn't support MQTT 5.0, so there are no produce tests here.
+public class Mqtt5ProducerTest extends ExampleProducerCase {
+
+  public Mqtt5ProducerTest() {
+    super();
+  }
+
+  @Test
+  public void testEndpoint() throws Exception {
+    Mqtt5Producer producer = new Mqtt5Producer().withTopic("mqtt/topic/%message{site}");
+    AdaptrisMessage msg = AdaptrisMessageFactory.getDefaultInstance().newMessage();
+    msg.addMetadata("site", "london");
+    assertEquals("mqtt/topic/london", producer.endpoint(msg));
+  }
+
+  @Override
+  protected Object retrieveObjectForSampleConfig() {
+    Mqtt5Producer producer = new Mqtt5Producer().withTopic("mqtt/topic/topicname");
+    producer.setMessageExpiryInterval(new TimeInterval(10L, TimeUnit.MINUTES));
+    producer.setContentType("application/json");
+
+    Mqtt5Connection conn = new Mqtt5Connection();
+    conn.setServerUri("tcp://localhost:1883");
+    conn.setUsername("My Access Key");
+    conn.setPassword("My Security Key");
+    conn.setTopicAliasMaximum(10);
+    return new StandaloneProducer(conn, producer);
+  }
+}
@@ -0,0 +1,251 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import static com.adaptris.interlok.junit.scaffolding.jms.JmsProducerCase.assertMessages;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import com.adaptris.interlok.junit.scaffolding.ExampleProducerCase;
+import com.adaptris.core.AdaptrisMessage;
+import com.adaptris.core.AdaptrisMessageFactory;
+import com.adaptris.core.ProduceException;
+import com.adaptris.core.StandaloneConsumer;
+import com.adaptris.core.StandaloneProducer;
+import com.adaptris.core.services.splitter.LineCountSplitter;
+import com.adaptris.core.stubs.MockMessageListener;
+
+public class MqttAsyncProducerTest extends ExampleProducerCase {
+
+  public MqttAsyncProducerTest() {
+    super();
+  }
+
+  @Test
+  public void testSingleProduce() throws Exception {
+    EmbeddedActiveMqMqtt activeMqBroker = new EmbeddedActiveMqMqtt();
+    String topicName = getTopicName();
+
+    try {
+      activeMqBroker.start();
+
+      StandaloneConsumer standaloneConsumer = buildStandaloneMqttConsumer(activeMqBroker, topicName);
+
+      MockMessageListener messageListener = new MockMessageListener();
+      standaloneConsumer.registerAdaptrisMessageListener(messageListener);
+
+      StandaloneProducer standaloneProducer = buildStandaloneMqttProducer(activeMqBroker, topicName, false);
+
+      execute(standaloneConsumer, standaloneProducer, EmbeddedActiveMqMqtt.createMessage(null), messageListener);
+      assertMessages(messageListener, 1);
+    } finally {
+      activeMqBroker.destroy();
+    }
+  }
+
+  @Test
+  public void testMultipleProduceWithSmallWindow() throws Exception {
+    EmbeddedActiveMqMqtt activeMqBroker = new EmbeddedActiveMqMqtt();
+    String topicName = getTopicName();
+
+    try {
+      activeMqBroker.start();
+
+      StandaloneConsumer standaloneConsumer = buildStandaloneMqttConsumer(activeMqBroker, topicName);
+
+      MockMessageListener messageListener = new MockMessageListener();
+      standaloneConsumer.registerAdaptrisMessageListener(messageListener);
+
+      MqttAsyncProducer mqttProducer = new MqttAsyncProducer().withTopic(topicName).withMaxInFlight(2);
+      StandaloneProducer standaloneProducer = new StandaloneProducer(activeMqBroker.getMqttConnection(), mqttProducer);
+
+      try {
+        start(standaloneConsumer);
+        start(standaloneProducer);
+        for (int i = 0; i < 10; i++) {
+          standaloneProducer.produce(EmbeddedActiveMqMqtt.createMessage(null));
+        }
+        waitForMessages(messageListener, 10);
+      } finally {
+        stop(standaloneProducer);
+        stop(standaloneConsumer);
+      }
+      assertMessages(messageListener, 10);
+    } finally {
+      activeMqBroker.destroy();
+    }
+  }
+
+  @Test
+  public void testSplitProduce() throws Exception {
+    EmbeddedActiveMqMqtt activeMqBroker = new EmbeddedActiveMqMqtt();
+    String topicName = getTopicName();
+
+    try {
+      activeMqBroker.start();
+
+      StandaloneConsumer standaloneConsumer = buildStandaloneMqttConsumer(activeMqBroker, topicName);
+
+      MockMessageListener messageListener = new MockMessageListener();
+      standaloneConsumer.registerAdaptrisMessageListener(messageListener);
+
+      LineCountSplitter splitter = new LineCountSplitter();
+      splitter.setSplitOnLine(1);
+      MqttAsyncProducer mqttProducer = new MqttAsyncProducer().withTopic(topicName).withMaxInFlight(2)
+          .withSplitter(splitter);
+      StandaloneProducer standaloneProducer = new StandaloneProducer(activeMqBroker.getMqttConnection(), mqttProducer);
+
+      StringBuilder payload = new StringBuilder();
+      for (int i = 0; i < 10; i++) {
+        payload.append("reading ").append(i).append(System.lineSeparator());
+      }
+      try {
+        start(standaloneConsumer);
+        start(standaloneProducer);
+        standaloneProducer.produce(AdaptrisMessageFactory.getDefaultInstance().newMessage(payload.toString()));
+        waitForMessages(messageListener, 10);
+      } finally {
+        stop(standaloneProducer);
+        stop(standaloneConsumer);
+      }
+      assertMessages(messageListener, 10);
+    } finally {
+      activeMqBroker.destroy();
+    }
+  }
+
+  @Test
+  public void testProduceAllWithFailures() throws Exception {
+    EmbeddedActiveMqMqtt activeMqBroker = new EmbeddedActiveMqMqtt();
+    String topicName = getTopicName();
+
+    try {
+      activeMqBroker.start();
+
+      StandaloneConsumer standaloneConsumer = buildStandaloneMqttConsumer(activeMqBroker, topicName);
+
+      MockMessageListener messageListener = new MockMessageListener();
+      standaloneConsumer.registerAdaptrisMessageListener(messageListener);
+
+      MqttAsyncProducer mqttProducer = new MqttAsyncProducer().withTopic("%message{topic}");
+      StandaloneProducer standaloneProducer = new StandaloneProducer(activeMqBroker.getMqttConnection(), mqttProducer);
+
+      List<AdaptrisMessage> parts = new ArrayList<>();
+      for (int i = 0; i < 5; i++) {
+        AdaptrisMessage part = AdaptrisMessageFactory.getDefaultInstance().newMessage("reading " + i);
+        // Wildcards can't be published to.
+        part.addMetadata("topic", i % 2 == 0 ? topicName : topicName + "/#");
+        parts.add(part);
+      }
+      try {
+        start(standaloneConsumer);
+        start(standaloneProducer);
+        try {
+          mqttProducer.produceAll(parts);
+          fail();
+        } catch (ProduceException expected) {
+          assertEquals("2 of 5 messages could not be published", expected.getMessage());
+          assertTrue(expected.getCause().getMessage().contains(parts.get(1).getUniqueId()));
+          assertEquals(1, expected.getSuppressed().length);
+          assertTrue(expected.getSuppressed()[0].getMessage().contains(parts.get(3).getUniqueId()));
+        }
+        waitForMessages(messageListener, 3);
+      } finally {
+        stop(standaloneProducer);
+        stop(standaloneConsumer);
+      }
+      assertMessages(messageListener, 3);
+    } finally {
+      activeMqBroker.destroy();
+    }
+  }
+
+  @Test
+  public void testDisconnectedBufferOverflow() throws Exception {
+    EmbeddedActiveMqMqtt activeMqBroker = new EmbeddedActiveMqMqtt();
+    String topicName = getTopicName();
+
+    try {
+      activeMqBroker.start();
+
+      MqttConnection connection = activeMqBroker.getMqttConnection();
+      MqttDisconnectedBuffer buffer = new MqttDisconnectedBuffer();
+      buffer.setBufferSize(2);
+      connection.setDisconnectedBuffer(buffer);
+      MqttAsyncProducer mqttProducer = new MqttAsyncProducer().withTopic(topicName);
+      StandaloneProducer standaloneProducer = new StandaloneProducer(connection, mqttProducer);
+
+      try {
+        start(standaloneProducer);
+        activeMqBroker.stop();
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (connection.metrics().getConnectionsLost() == 0 && System.currentTimeMillis() < deadline) {
+          Thread.sleep(50);
+        }
+        standaloneProducer.produce(EmbeddedActiveMqMqtt.createMessage(null));
+        standaloneProducer.produce(EmbeddedActiveMqMqtt.createMessage(null));
+        try {
+          standaloneProducer.produce(EmbeddedActiveMqMqtt.createMessage(null));
+          fail();
+        } catch (ProduceException expected) {
+        }
+      } finally {
+        // Doesn't wait for the buffered messages.
+        stop(standaloneProducer);
+      }
+    } finally {
+      activeMqBroker.destroy();
+    }
+  }
+
+  private String getTopicName() {
+    return "mqtt/topic/" + getName();
+  }
+
+  private StandaloneConsumer buildStandaloneMqttConsumer(EmbeddedActiveMqMqtt activeMqBroker, String topicName) {
+    MqttConsumer mqttConsumer = new MqttConsumer().withTopic(topicName);
+    StandaloneConsumer standaloneConsumer = new StandaloneConsumer(activeMqBroker.getMqttConnection(), mqttConsumer);
+    return standaloneConsumer;
+  }
+
+  private StandaloneProducer buildStandaloneMqttProducer(EmbeddedActiveMqMqtt activeMqBroker, String topicName, boolean retained) {
+    MqttAsyncProducer mqttProducer = new MqttAsyncProducer().withTopic(topicName);
+    mqttProducer.setRetained(retained);
+    StandaloneProducer standaloneProducer = new StandaloneProducer(activeMqBroker.getMqttConnection(), mqttProducer);
+    return standaloneProducer;
+  }
+
+  @Override
+  protected Object retrieveObjectForSampleConfig() {
+    MqttAsyncProducer producer = new MqttAsyncProducer();
+    producer.setTopic("mqtt/topic/topicname");
+    producer.setMaxInFlight(100);
+
+    MqttConnection conn = new MqttConnection();
+    conn.setServerUri("tcp://localhost:1883");
+    conn.setUsername("My Access Key");
+    conn.setPassword("My Security Key");
+    conn.setMaxInFlight(100);
+    StandaloneProducer result = new StandaloneProducer(conn, producer);
+    return result;
+  }
+}
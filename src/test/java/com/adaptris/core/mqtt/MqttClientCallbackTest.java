@@ -0,0 +1,127 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.Test;
+
+import com.adaptris.interlok.junit.scaffolding.BaseCase;
+
+public class MqttClientCallbackTest extends BaseCase {
+
+  @Test
+  public void testTopicFilter() throws Exception {
+    assertEquals("a/b/#", MqttClientCallback.topicFilter("a/b/#"));
+    assertEquals("a/b/#", MqttClientCallback.topicFilter("$share/group/a/b/#"));
+    assertEquals("a/+/c", MqttClientCallback.topicFilter("$queue/a/+/c"));
+    assertEquals("$share/group", MqttClientCallback.topicFilter("$share/group"));
+    assertTrue(MqttClientCallback.isShared("$share/group/a"));
+    assertTrue(MqttClientCallback.isShared("$queue/a"));
+    assertFalse(MqttClientCallback.isShared("a/$share/b"));
+  }
+
+  @Test
+  public void testRoutesSharedSubscriptions() throws Exception {
+    MqttClientCallback callback = new MqttClientCallback(new MqttConnectionMetrics(() -> 0));
+    RecordingCallback sensors = new RecordingCallback();
+    RecordingCallback alarms = new RecordingCallback();
+    callback.register(sensors, "$share/workers/sensors/#");
+    callback.register(alarms, "$queue/alarms/+");
+
+    callback.messageArrived("sensors/london/temperature", new MqttMessage());
+    callback.messageArrived("alarms/london", new MqttMessage());
+    callback.messageArrived("other", new MqttMessage());
+
+    assertEquals(1, sensors.topics.size());
+    assertEquals("sensors/london/temperature", sensors.topics.get(0));
+    assertEquals(1, alarms.topics.size());
+    assertEquals("alarms/london", alarms.topics.get(0));
+  }
+
+  @Test
+  public void testCountsSubscriptions() throws Exception {
+    MqttClientCallback callback = new MqttClientCallback(new MqttConnectionMetrics(() -> 0));
+    assertTrue(callback.acquire("sensors/#"));
+    assertFalse(callback.acquire("sensors/#"));
+    assertTrue(callback.acquire("alarms/+"));
+    assertFalse(callback.release("sensors/#"));
+    assertTrue(callback.release("sensors/#"));
+    assertTrue(callback.acquire("sensors/#"));
+    assertTrue(callback.release("alarms/+"));
+  }
+
+  @Test
+  public void testMetrics() throws Exception {
+    MqttConnectionMetrics metrics = new MqttConnectionMetrics(() -> 0);
+    MqttClientCallback callback = new MqttClientCallback(metrics);
+    callback.connectionLost(new Exception());
+    callback.connectComplete(false, "tcp://localhost:1883");
+    callback.connectComplete(true, "tcp://localhost:1883");
+    assertEquals(1, metrics.getConnectionsLost());
+    assertEquals(1, metrics.getReconnects());
+  }
+
+  @Test
+  public void testReconnectPolicy() throws Exception {
+    MqttConnectionMetrics metrics = new MqttConnectionMetrics(() -> 0);
+    List<String> reconnects = new ArrayList<>();
+    MqttClientCallback callback = new MqttClientCallback(metrics, () -> reconnects.add("reconnect"));
+    RecordingCallback consumer = new RecordingCallback();
+    callback.register(consumer, "sensors/#");
+    callback.connectComplete(false, "tcp://localhost:1883");
+    callback.connectionLost(new Exception());
+    assertEquals(1, reconnects.size());
+    // Connected by the reconnect policy, so it's passed on as a reconnect.
+    callback.connectComplete(false, "tcp://localhost:1883");
+    assertEquals(1, metrics.getReconnects());
+    assertEquals(2, consumer.connects.size());
+    assertFalse(consumer.connects.get(0));
+    assertTrue(consumer.connects.get(1));
+  }
+
+  private static class RecordingCallback implements MqttCallbackExtended {
+    private final List<String> topics = new ArrayList<>();
+    private final List<Boolean> connects = new ArrayList<>();
+
+    @Override
+    public void connectionLost(Throwable cause) {
+    }
+
+    @Override
+    public void messageArrived(String topic, MqttMessage message) throws Exception {
+      topics.add(topic);
+    }
+
+    @Override
+    public void deliveryComplete(IMqttDeliveryToken token) {
+    }
+
+    @Override
+    public void connectComplete(boolean reconnect, String serverURI) {
+      connects.add(reconnect);
+    }
+  }
+}
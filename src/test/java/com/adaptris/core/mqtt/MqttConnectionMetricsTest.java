@@ -0,0 +1,128 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.adaptris.interlok.junit.scaffolding.BaseCase;
+
+public class MqttConnectionMetricsTest extends BaseCase {
+
+  @Test
+  public void testHistogramBuckets() throws Exception {
+    for (long value : new long[] {0, 1, 15, 16, 17, 31, 32, 1000, 123456, 1L << 30}) {
+      int bucket = LatencyHistogram.bucket(value);
+      assertTrue(value <= LatencyHistogram.upperBound(bucket));
+      // Within ~6%
+      assertTrue(LatencyHistogram.upperBound(bucket) - value <= Math.max(1, value / 16));
+    }
+    assertEquals(LatencyHistogram.bucket(Long.MAX_VALUE), LatencyHistogram.bucket(Long.MAX_VALUE - 1));
+  }
+
+  @Test
+  public void testHistogramPercentiles() throws Exception {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.percentile(50.0));
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i);
+    }
+    assertEquals(1000, histogram.count());
+    assertEquals(1000, histogram.max());
+    assertEquals(500, histogram.mean());
+    assertEquals(500, histogram.percentile(50.0), 500 / 16);
+    assertEquals(990, histogram.percentile(99.0), 990 / 16);
+    assertEquals(1000, histogram.percentile(100.0));
+
+    histogram.reset();
+    assertEquals(0, histogram.count());
+    assertEquals(0, histogram.max());
+  }
+
+  @Test
+  public void testRateMeter() throws Exception {
+    RateMeter meter = new RateMeter();
+    for (int i = 0; i < 120; i++) {
+      meter.mark();
+    }
+    assertEquals(2.0, meter.perSecond(), 0.001);
+    meter.reset();
+    assertEquals(0.0, meter.perSecond(), 0.001);
+  }
+
+  @Test
+  public void testRateMeterConcurrent() throws Exception {
+    RateMeter meter = new RateMeter();
+    // Every thread's first mark finds the slot out of date.
+    CountDownLatch start = new CountDownLatch(1);
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        for (int i = 0; i < 1500; i++) {
+          meter.mark();
+        }
+      });
+      threads[t].start();
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(200.0, meter.perSecond(), 0.001);
+  }
+
+  @Test
+  public void testMetrics() throws Exception {
+    MqttConnectionMetrics metrics = new MqttConnectionMetrics(() -> 3);
+    long start = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(10);
+    metrics.published(start);
+    metrics.delivered(start);
+    metrics.publishFailed();
+    metrics.received();
+    metrics.processed(start);
+    metrics.connected(start);
+    metrics.connectionLost();
+    metrics.reconnected(start);
+
+    assertEquals(1, metrics.getMessagesPublished());
+    assertEquals(1, metrics.getPublishFailures());
+    assertEquals(1, metrics.getMessagesReceived());
+    assertEquals(1, metrics.getConnectionsLost());
+    assertEquals(1, metrics.getReconnects());
+    assertEquals(3, metrics.getInFlightMessages());
+    assertTrue(metrics.getPublishLatencyMaxMicros() >= 10000);
+    assertTrue(metrics.getDeliveryLatencyMedianMicros() >= 10000);
+    assertTrue(metrics.getProcessingLatency99thPercentileMicros() >= 10000);
+    assertTrue(metrics.getConnectLatencyMaxMicros() >= 10000);
+    assertTrue(metrics.getReconnectTimeMedianMicros() >= 10000);
+
+    metrics.reset();
+    assertEquals(0, metrics.getMessagesPublished());
+    assertEquals(0, metrics.getPublishLatencyMaxMicros());
+    assertEquals(0, metrics.getConnectLatencyMaxMicros());
+  }
+}
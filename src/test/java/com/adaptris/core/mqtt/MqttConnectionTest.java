@@ -18,15 +18,32 @@ package com.adaptris.core.mqtt;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.eclipse.paho.client.mqttv3.DisconnectedBufferOptions;
 import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.junit.Ignore;
 import org.junit.Test;
+
+import com.adaptris.core.CoreException;
 import com.adaptris.interlok.junit.scaffolding.BaseCase;
 import com.adaptris.util.KeyValuePair;
 import com.adaptris.util.KeyValuePairSet;
+import com.adaptris.util.TimeInterval;
 
 public class MqttConnectionTest extends BaseCase {
 
@@ -41,6 +58,25 @@ public class MqttConnectionTest extends BaseCase {
     assertArrayEquals("password".toCharArray(), retrieveOptions.getPassword());
   }
 
+  @Test
+  public void testInitMaxInFlight() throws Exception {
+    MqttConnection mqttConnection = initMqttConnectionOptions();
+    mqttConnection.init();
+    assertEquals(MqttConnectOptions.MAX_INFLIGHT_DEFAULT, mqttConnection.retrieveOptions().getMaxInflight());
+
+    mqttConnection = initMqttConnectionOptions();
+    mqttConnection.setMaxInFlight(500);
+    mqttConnection.init();
+    assertEquals(500, mqttConnection.retrieveOptions().getMaxInflight());
+
+    MqttAsyncProducer producer = new MqttAsyncProducer();
+    assertEquals(500, producer.maxInFlight(mqttConnection.maxInFlight()));
+    producer.setMaxInFlight(50);
+    assertEquals(50, producer.maxInFlight(mqttConnection.maxInFlight()));
+    producer.setMaxInFlight(1000);
+    assertEquals(500, producer.maxInFlight(mqttConnection.maxInFlight()));
+  }
+
   @Test
   public void testInitWithSsl() throws Exception {
     MqttConnection mqttConnection = new MqttConnection();
@@ -57,6 +93,43 @@ public class MqttConnectionTest extends BaseCase {
     assertEquals("password", retrieveOptions.getSSLProperties().get("com.ibm.ssl.trustStorePassword"));
   }
 
+  @Test
+  public void testInitWithSslSharesSocketFactory() throws Exception {
+    MqttConnection mqttConnection = new MqttConnection();
+    mqttConnection.setServerUri("ssl://127.0.0.1:8883");
+    KeyValuePairSet sslProperties = new KeyValuePairSet();
+    sslProperties.add(new KeyValuePair("protocol", "TLS"));
+    sslProperties.add(new KeyValuePair("enabledCipherSuites", "TLS_AES_128_GCM_SHA256"));
+    mqttConnection.setSslProperties(sslProperties);
+
+    mqttConnection.init();
+
+    MqttConnectOptions retrieveOptions = mqttConnection.retrieveOptions();
+    assertNull(retrieveOptions.getSSLProperties());
+    assertTrue(retrieveOptions.getSocketFactory() instanceof SharedSslSocketFactory);
+    assertArrayEquals(new String[] {"TLS_AES_128_GCM_SHA256"},
+        ((SharedSslSocketFactory) retrieveOptions.getSocketFactory()).getDefaultCipherSuites());
+    assertFalse(SharedSslSocketFactory.isSecure("tcp://127.0.0.1:1883"));
+    assertTrue(SharedSslSocketFactory.isSecure("WSS://127.0.0.1:443"));
+  }
+
+  @Test
+  public void testInitWithMissingKeyStore() throws Exception {
+    MqttConnection mqttConnection = new MqttConnection();
+    mqttConnection.setServerUri("ssl://127.0.0.1:8883");
+    KeyValuePairSet sslProperties = new KeyValuePairSet();
+    sslProperties.add(new KeyValuePair("keyStore", "/does/not/exist.p12"));
+    sslProperties.add(new KeyValuePair("keyStorePassword", "password"));
+    mqttConnection.setSslProperties(sslProperties);
+    try {
+      mqttConnection.init();
+      fail();
+    } catch (CoreException expected) {
+    } finally {
+      mqttConnection.close();
+    }
+  }
+
   // We're not really testing anything here
   @Ignore
   @Test
@@ -97,6 +170,232 @@ public class MqttConnectionTest extends BaseCase {
     assertEquals(asyncClient, sameAsyncClient);
   }
 
+  @Test
+  public void testSharedSyncClientPool() throws Exception {
+    MqttConnection mqttConnection = initMqttConnectionOptions();
+    mqttConnection.setClientPoolSize(2);
+
+    MqttClient first = mqttConnection.getSharedSyncClient(null);
+    MqttClient second = mqttConnection.getSharedSyncClient(null);
+    assertNotSame(first, second);
+    // Pool is full so one of the (equally used) clients is shared.
+    MqttClient third = mqttConnection.getSharedSyncClient(null);
+    assertTrue(third == first || third == second);
+    MqttClient other = third == first ? second : first;
+
+    mqttConnection.closeSyncClientConnection(third);
+    assertSame(third, mqttConnection.getSyncClient(third.getClientId()));
+    mqttConnection.closeSyncClientConnection(third);
+    assertNull(mqttConnection.getSyncClient(third.getClientId()));
+    mqttConnection.closeSyncClientConnection(other);
+    assertNull(mqttConnection.getSyncClient(other.getClientId()));
+  }
+
+  @Test
+  public void testClosedSharedSyncClientLeavesPool() throws Exception {
+    MqttConnection mqttConnection = initMqttConnectionOptions();
+    mqttConnection.setClientPoolSize(1);
+    MqttClient first = mqttConnection.getSharedSyncClient(null);
+    mqttConnection.closeSyncClientConnection(first);
+    MqttClient second = mqttConnection.getSharedSyncClient(null);
+    try {
+      assertNotSame(first, second);
+      assertNull(mqttConnection.getSyncClient(first.getClientId()));
+    } finally {
+      mqttConnection.closeSyncClientConnection(second);
+    }
+  }
+
+  @Test
+  public void testSharedSyncClientTimeToWait() throws Exception {
+    MqttConnection mqttConnection = initMqttConnectionOptions();
+    mqttConnection.setClientPoolSize(1);
+    MqttClient first = mqttConnection.getSharedSyncClient(null);
+    MqttClient second = mqttConnection.getSharedSyncClient(null);
+    assertSame(first, second);
+    try {
+      mqttConnection.setTimeToWait(first, new TimeInterval(5L, TimeUnit.SECONDS));
+      assertEquals(5000L, first.getTimeToWait());
+      // Not specified, so uses the agreed time.
+      mqttConnection.setTimeToWait(second, null);
+      mqttConnection.setTimeToWait(second, new TimeInterval(5000L, TimeUnit.MILLISECONDS));
+      try {
+        mqttConnection.setTimeToWait(second, new TimeInterval(1L, TimeUnit.SECONDS));
+        fail();
+      } catch (CoreException expected) {
+      }
+      assertEquals(5000L, first.getTimeToWait());
+    } finally {
+      mqttConnection.closeSyncClientConnection(first);
+      mqttConnection.closeSyncClientConnection(second);
+    }
+    // Once closed the next client may use another time.
+    MqttClient third = mqttConnection.getSharedSyncClient(null);
+    try {
+      mqttConnection.setTimeToWait(third, new TimeInterval(1L, TimeUnit.SECONDS));
+      assertEquals(1000L, third.getTimeToWait());
+    } finally {
+      mqttConnection.closeSyncClientConnection(third);
+    }
+  }
+
+  @Test
+  public void testSharedSyncClientWithoutPool() throws Exception {
+    MqttConnection mqttConnection = initMqttConnectionOptions();
+
+    MqttClient first = mqttConnection.getSharedSyncClient(null);
+    MqttClient second = mqttConnection.getSharedSyncClient(null);
+    assertNotSame(first, second);
+    mqttConnection.closeSyncClientConnection(first);
+    mqttConnection.closeSyncClientConnection(second);
+  }
+
+  @Test
+  public void testClientIdTemplate() throws Exception {
+    MqttConnection mqttConnection = initMqttConnectionOptions();
+    mqttConnection.setUniqueId("adapter-conn");
+    assertNull(mqttConnection.clientId(null, "producer"));
+
+    mqttConnection.setClientIdTemplate("{connection}-{component}");
+    assertEquals("adapter-conn-producer", mqttConnection.clientId(null, "producer"));
+    assertEquals("fixed-producer", mqttConnection.clientId("fixed-{component}", "producer"));
+    try {
+      mqttConnection.clientId(null, null);
+      fail();
+    } catch (CoreException expected) {
+    }
+    try {
+      mqttConnection.clientId("{workflow}", "producer");
+      fail();
+    } catch (CoreException expected) {
+    }
+
+    mqttConnection.setClientPoolSize(2);
+    MqttClient first = mqttConnection.getSharedSyncClient(null);
+    MqttClient second = mqttConnection.getSharedSyncClient(null);
+    assertEquals("adapter-conn-shared-0", first.getClientId());
+    assertEquals("adapter-conn-shared-1", second.getClientId());
+    mqttConnection.closeSyncClientConnection(first);
+    mqttConnection.closeSyncClientConnection(second);
+  }
+
+  @Test
+  public void testClientIdCollision() throws Exception {
+    MqttConnection mqttConnection = initMqttConnectionOptions();
+    MqttConnection other = initMqttConnectionOptions();
+    MqttClient client = mqttConnection.newSyncClient("testClientIdCollision");
+    try {
+      other.newAsyncClient("testClientIdCollision");
+      fail();
+    } catch (CoreException expected) {
+    }
+    mqttConnection.closeSyncClientConnection(client);
+    MqttAsyncClient asyncClient = other.newAsyncClient("testClientIdCollision");
+    assertEquals("testClientIdCollision", asyncClient.getClientId());
+    other.closeAsyncClientConnection(asyncClient);
+  }
+
+  @Test
+  public void testDisconnectedBufferOptions() throws Exception {
+    MqttDisconnectedBuffer buffer = new MqttDisconnectedBuffer();
+    DisconnectedBufferOptions options = buffer.createOptions();
+    assertTrue(options.isBufferEnabled());
+    assertEquals(DisconnectedBufferOptions.DISCONNECTED_BUFFER_SIZE_DEFAULT, options.getBufferSize());
+    assertFalse(options.isPersistBuffer());
+    assertFalse(options.isDeleteOldestMessages());
+
+    buffer.setBufferSize(10);
+    buffer.setPersistBuffer(true);
+    buffer.setDeleteOldestMessages(true);
+    options = buffer.createOptions();
+    assertEquals(10, options.getBufferSize());
+    assertTrue(options.isPersistBuffer());
+    assertTrue(options.isDeleteOldestMessages());
+
+    MqttConnection mqttConnection = initMqttConnectionOptions();
+    mqttConnection.setDisconnectedBuffer(buffer);
+    assertTrue(mqttConnection.buffersWhileDisconnected());
+    assertNotNull(mqttConnection.getOrCreateAsyncClient(null));
+  }
+
+  @Test
+  public void testDeleteOldestMessagesRejected() throws Exception {
+    MqttDisconnectedBuffer buffer = new MqttDisconnectedBuffer();
+    buffer.setDeleteOldestMessages(true);
+    MqttConnection mqttConnection = initMqttConnectionOptions();
+    mqttConnection.setDisconnectedBuffer(buffer);
+    try {
+      mqttConnection.init();
+      fail();
+    } catch (CoreException expected) {
+    } finally {
+      mqttConnection.close();
+    }
+  }
+
+  @Test
+  public void testMetricsRegisteredWithJmx() throws Exception {
+    MqttConnection mqttConnection = initMqttConnectionOptions();
+    mqttConnection.setUniqueId("testMetricsRegisteredWithJmx");
+    mqttConnection.setJmxMetrics(true);
+    ObjectName name = new ObjectName(MqttConnectionMetrics.OBJECT_NAME_PREFIX + "testMetricsRegisteredWithJmx");
+    MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    try {
+      mqttConnection.init();
+      assertTrue(mbeanServer.isRegistered(name));
+      mqttConnection.metrics().published(System.nanoTime());
+      assertEquals(1L, mbeanServer.getAttribute(name, "MessagesPublished"));
+      assertEquals(0, mbeanServer.getAttribute(name, "InFlightMessages"));
+    } finally {
+      mqttConnection.close();
+    }
+    assertFalse(mbeanServer.isRegistered(name));
+  }
+
+  @Test
+  public void testMetricsWithDuplicateUniqueId() throws Exception {
+    MqttConnection first = initMqttConnectionOptions();
+    first.setUniqueId("testMetricsWithDuplicateUniqueId");
+    first.setJmxMetrics(true);
+    MqttConnection second = initMqttConnectionOptions();
+    second.setUniqueId("testMetricsWithDuplicateUniqueId");
+    second.setJmxMetrics(true);
+    try {
+      first.init();
+      try {
+        second.init();
+        fail();
+      } catch (CoreException expected) {
+      }
+    } finally {
+      second.close();
+      first.close();
+    }
+  }
+
+  @Test
+  public void testMetricsObjectName() throws Exception {
+    assertEquals(new ObjectName(MqttConnectionMetrics.OBJECT_NAME_PREFIX + "my-connection"),
+        MqttConnectionMetrics.objectName("my-connection"));
+    assertEquals(new ObjectName(MqttConnectionMetrics.OBJECT_NAME_PREFIX + ObjectName.quote("a,b=c")),
+        MqttConnectionMetrics.objectName("a,b=c"));
+    assertEquals(new ObjectName(MqttConnectionMetrics.OBJECT_NAME_PREFIX + ObjectName.quote("a*")),
+        MqttConnectionMetrics.objectName("a*"));
+  }
+
+  @Test
+  public void testMetricsNotRegisteredByDefault() throws Exception {
+    MqttConnection mqttConnection = initMqttConnectionOptions();
+    mqttConnection.setUniqueId("testMetricsNotRegisteredByDefault");
+    ObjectName name = new ObjectName(MqttConnectionMetrics.OBJECT_NAME_PREFIX + "testMetricsNotRegisteredByDefault");
+    try {
+      mqttConnection.init();
+      assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    } finally {
+      mqttConnection.close();
+    }
+  }
+
   private MqttConnection initMqttConnectionOptions() {
     MqttConnection mqttConnection = new MqttConnection();
     mqttConnection.setUsername("username");
@@ -17,11 +17,21 @@
 package com.adaptris.core.mqtt;
 
 import static com.adaptris.interlok.junit.scaffolding.jms.JmsProducerCase.assertMessages;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import org.junit.Test;
 import com.adaptris.interlok.junit.scaffolding.ExampleConsumerCase;
+import com.adaptris.core.AdaptrisMessage;
+import com.adaptris.core.AdaptrisMessageFactory;
+import com.adaptris.core.CoreException;
 import com.adaptris.core.StandaloneConsumer;
 import com.adaptris.core.StandaloneProducer;
 import com.adaptris.core.stubs.MockMessageListener;
+import com.adaptris.core.util.LifecycleHelper;
 
 public class MqttConsumerTest extends ExampleConsumerCase {
 
@@ -51,6 +61,260 @@ public class MqttConsumerTest extends ExampleConsumerCase {
     }
   }
 
+  @Test
+  public void testMultipleConsumeWithWorkerThreads() throws Exception {
+    EmbeddedActiveMqMqtt activeMqBroker = new EmbeddedActiveMqMqtt();
+    String topicName = getTopicName();
+
+    try {
+      activeMqBroker.start();
+
+      MqttConsumer mqttConsumer = new MqttConsumer().withTopic(topicName).withWorkerThreads(4);
+      StandaloneConsumer standaloneConsumer = new StandaloneConsumer(activeMqBroker.getMqttConnection(), mqttConsumer);
+
+      MockMessageListener messageListener = new MockMessageListener();
+      standaloneConsumer.registerAdaptrisMessageListener(messageListener);
+
+      StandaloneProducer standaloneProducer = buildStandaloneMqttProducer(activeMqBroker, topicName, false);
+
+      try {
+        start(standaloneConsumer);
+        start(standaloneProducer);
+        for (int i = 0; i < 10; i++) {
+          standaloneProducer.produce(EmbeddedActiveMqMqtt.createMessage(null));
+        }
+        waitForMessages(messageListener, 10);
+      } finally {
+        stop(standaloneProducer);
+        stop(standaloneConsumer);
+      }
+      assertMessages(messageListener, 10);
+    } finally {
+      activeMqBroker.destroy();
+    }
+  }
+
+  @Test
+  public void testMultipleConsumeWithManualAcks() throws Exception {
+    EmbeddedActiveMqMqtt activeMqBroker = new EmbeddedActiveMqMqtt();
+    String topicName = getTopicName();
+
+    try {
+      activeMqBroker.start();
+
+      MqttConsumer mqttConsumer = new MqttConsumer().withTopic(topicName).withWorkerThreads(4)
+          .withManualAcks(true);
+      StandaloneConsumer standaloneConsumer = new StandaloneConsumer(activeMqBroker.getMqttConnection(), mqttConsumer);
+
+      MockMessageListener messageListener = new MockMessageListener();
+      standaloneConsumer.registerAdaptrisMessageListener(messageListener);
+
+      StandaloneProducer standaloneProducer = buildStandaloneMqttProducer(activeMqBroker, topicName, false);
+
+      try {
+        start(standaloneConsumer);
+        start(standaloneProducer);
+        for (int i = 0; i < 10; i++) {
+          standaloneProducer.produce(EmbeddedActiveMqMqtt.createMessage(null));
+        }
+        waitForMessages(messageListener, 10);
+      } finally {
+        stop(standaloneProducer);
+        stop(standaloneConsumer);
+      }
+      assertMessages(messageListener, 10);
+    } finally {
+      activeMqBroker.destroy();
+    }
+  }
+
+  @Test
+  public void testFailedMessageRedeliveredWithWorkerThreads() throws Exception {
+    EmbeddedActiveMqMqtt activeMqBroker = new EmbeddedActiveMqMqtt();
+    String topicName = getTopicName();
+
+    try {
+      activeMqBroker.start();
+
+      MqttConnection connection = activeMqBroker.getMqttConnection();
+      connection.setCleanSession(false);
+      MqttConsumer mqttConsumer = new MqttConsumer().withTopic(topicName).withWorkerThreads(2)
+          .withManualAcks(true);
+      StandaloneConsumer standaloneConsumer = new StandaloneConsumer(connection, mqttConsumer);
+
+      FailOnceMessageListener messageListener = new FailOnceMessageListener();
+      standaloneConsumer.registerAdaptrisMessageListener(messageListener);
+
+      StandaloneProducer standaloneProducer = buildStandaloneMqttProducer(activeMqBroker, topicName, false);
+
+      execute(standaloneConsumer, standaloneProducer, EmbeddedActiveMqMqtt.createMessage(null), messageListener);
+      assertTrue(messageListener.failed.get());
+      assertMessages(messageListener, 1);
+    } finally {
+      activeMqBroker.destroy();
+    }
+  }
+
+  @Test
+  public void testStopOneOfTwoPooledConsumers() throws Exception {
+    EmbeddedActiveMqMqtt activeMqBroker = new EmbeddedActiveMqMqtt();
+    String topicName = getTopicName();
+
+    try {
+      activeMqBroker.start();
+
+      MqttConnection connection = activeMqBroker.getMqttConnection();
+      connection.setClientPoolSize(1);
+      MqttConsumer first = pooledConsumer(connection, topicName);
+      MockMessageListener firstListener = new MockMessageListener();
+      first.registerAdaptrisMessageListener(firstListener);
+      MqttConsumer second = pooledConsumer(connection, topicName);
+      MockMessageListener secondListener = new MockMessageListener();
+      second.registerAdaptrisMessageListener(secondListener);
+
+      StandaloneProducer standaloneProducer = buildStandaloneMqttProducer(activeMqBroker, topicName, false);
+
+      try {
+        LifecycleHelper.initAndStart(connection);
+        LifecycleHelper.prepare(first);
+        LifecycleHelper.initAndStart(first);
+        LifecycleHelper.prepare(second);
+        LifecycleHelper.initAndStart(second);
+        start(standaloneProducer);
+        standaloneProducer.produce(EmbeddedActiveMqMqtt.createMessage(null));
+        waitForMessages(firstListener, 1);
+        waitForMessages(secondListener, 1);
+
+        LifecycleHelper.stop(first);
+        standaloneProducer.produce(EmbeddedActiveMqMqtt.createMessage(null));
+        waitForMessages(secondListener, 2);
+      } finally {
+        stop(standaloneProducer);
+        LifecycleHelper.stopAndClose(first);
+        LifecycleHelper.stopAndClose(second);
+        LifecycleHelper.stopAndClose(connection);
+      }
+      assertMessages(firstListener, 1);
+      assertMessages(secondListener, 2);
+    } finally {
+      activeMqBroker.destroy();
+    }
+  }
+
+  @Test
+  public void testConsumeWildcardTopicFilters() throws Exception {
+    EmbeddedActiveMqMqtt activeMqBroker = new EmbeddedActiveMqMqtt();
+    String topicName = getTopicName();
+
+    try {
+      activeMqBroker.start();
+
+      MqttConsumer mqttConsumer = new MqttConsumer().withTopicFilters(new MqttTopicFilter(topicName + "/+/a", 1),
+          new MqttTopicFilter(topicName + "/other/#", 0));
+      StandaloneConsumer standaloneConsumer = new StandaloneConsumer(activeMqBroker.getMqttConnection(), mqttConsumer);
+
+      MockMessageListener messageListener = new MockMessageListener();
+      standaloneConsumer.registerAdaptrisMessageListener(messageListener);
+
+      StandaloneProducer producerOne = buildStandaloneMqttProducer(activeMqBroker, topicName + "/one/a", false);
+      StandaloneProducer producerTwo = buildStandaloneMqttProducer(activeMqBroker, topicName + "/other/x/y", false);
+
+      try {
+        start(standaloneConsumer);
+        start(producerOne);
+        start(producerTwo);
+        producerOne.produce(EmbeddedActiveMqMqtt.createMessage(null));
+        producerTwo.produce(EmbeddedActiveMqMqtt.createMessage(null));
+        waitForMessages(messageListener, 2);
+      } finally {
+        stop(producerOne);
+        stop(producerTwo);
+        stop(standaloneConsumer);
+      }
+      assertMessages(messageListener, 2);
+    } finally {
+      activeMqBroker.destroy();
+    }
+  }
+
+  @Test
+  public void testConsumeLargePayload() throws Exception {
+    EmbeddedActiveMqMqtt activeMqBroker = new EmbeddedActiveMqMqtt();
+    String topicName = getTopicName();
+
+    try {
+      activeMqBroker.start();
+
+      StandaloneConsumer standaloneConsumer = buildStandaloneMqttConsumer(activeMqBroker, topicName);
+
+      MockMessageListener messageListener = new MockMessageListener();
+      standaloneConsumer.registerAdaptrisMessageListener(messageListener);
+
+      StandaloneProducer standaloneProducer = buildStandaloneMqttProducer(activeMqBroker, topicName, false);
+
+      byte[] payload = new byte[512 * 1024];
+      new Random().nextBytes(payload);
+      execute(standaloneConsumer, standaloneProducer, AdaptrisMessageFactory.getDefaultInstance().newMessage(payload),
+          messageListener);
+      assertMessages(messageListener, 1);
+      assertArrayEquals(payload, messageListener.getMessages().get(0).getPayload());
+    } finally {
+      activeMqBroker.destroy();
+    }
+  }
+
+  @Test
+  public void testConsumeChunkedMessage() throws Exception {
+    EmbeddedActiveMqMqtt activeMqBroker = new EmbeddedActiveMqMqtt();
+    String topicName = getTopicName();
+
+    try {
+      activeMqBroker.start();
+
+      MqttConsumer mqttConsumer = new MqttConsumer().withTopic(topicName).withReassembleChunks(true);
+      StandaloneConsumer standaloneConsumer = new StandaloneConsumer(activeMqBroker.getMqttConnection(), mqttConsumer);
+
+      MockMessageListener messageListener = new MockMessageListener();
+      standaloneConsumer.registerAdaptrisMessageListener(messageListener);
+
+      MqttProducer mqttProducer = new MqttProducer().withTopic(topicName).withChunkSize(64 * 1024);
+      StandaloneProducer standaloneProducer = new StandaloneProducer(activeMqBroker.getMqttConnection(), mqttProducer);
+
+      byte[] payload = new byte[300 * 1024];
+      new Random().nextBytes(payload);
+      execute(standaloneConsumer, standaloneProducer, AdaptrisMessageFactory.getDefaultInstance().newMessage(payload),
+          messageListener);
+      assertMessages(messageListener, 1);
+      assertArrayEquals(payload, messageListener.getMessages().get(0).getPayload());
+    } finally {
+      activeMqBroker.destroy();
+    }
+  }
+
+  @Test
+  public void testReassembleChunksWithShareGroup() throws Exception {
+    EmbeddedActiveMqMqtt activeMqBroker = new EmbeddedActiveMqMqtt();
+    String topicName = getTopicName();
+
+    try {
+      activeMqBroker.start();
+
+      MqttConsumer mqttConsumer = new MqttConsumer().withTopic(topicName).withShareGroup("group")
+          .withReassembleChunks(true);
+      StandaloneConsumer standaloneConsumer = new StandaloneConsumer(activeMqBroker.getMqttConnection(), mqttConsumer);
+      try {
+        LifecycleHelper.initAndStart(standaloneConsumer);
+        fail();
+      } catch (CoreException expected) {
+
+      } finally {
+        LifecycleHelper.stopAndClose(standaloneConsumer);
+      }
+    } finally {
+      activeMqBroker.destroy();
+    }
+  }
+
   @Test
   public void testSingleConsumeRetainedMessage() throws Exception {
     EmbeddedActiveMqMqtt activeMqBroker = new EmbeddedActiveMqMqtt();
@@ -121,6 +385,26 @@ public class MqttConsumerTest extends ExampleConsumerCase {
     }
   }
 
+  private static class FailOnceMessageListener extends MockMessageListener {
+    private final AtomicBoolean failed = new AtomicBoolean();
+
+    @Override
+    public void onAdaptrisMessage(AdaptrisMessage msg, Consumer<AdaptrisMessage> success,
+        Consumer<AdaptrisMessage> failure) {
+      if (failed.compareAndSet(false, true)) {
+        throw new RuntimeException("Failing the first message");
+      }
+      super.onAdaptrisMessage(msg, success, failure);
+    }
+  }
+
+  private MqttConsumer pooledConsumer(MqttConnection connection, String topicName) {
+    MqttConsumer mqttConsumer = new MqttConsumer().withTopic(topicName);
+    mqttConsumer.setUseSharedClient(true);
+    mqttConsumer.registerConnection(connection);
+    return mqttConsumer;
+  }
+
   private String getTopicName() {
     return "mqtt/topic/" + getName();
   }
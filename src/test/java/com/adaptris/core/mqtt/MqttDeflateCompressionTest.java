@@ -0,0 +1,175 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.adaptris.core.CoreException;
+import com.adaptris.interlok.junit.scaffolding.BaseCase;
+
+public class MqttDeflateCompressionTest extends BaseCase {
+
+  private static final String READING = "{\"device\":\"sensor-42\",\"temperature\":21.5,\"humidity\":40,\"unit\":\"celsius\"}";
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    MqttDeflateCompression compression = new MqttDeflateCompression();
+    byte[] payload = repetitive(5000);
+    byte[] compressed = MqttCompressed.compress(compression, payload);
+    assertTrue(MqttCompressed.isCompressed(compressed));
+    assertTrue(compressed.length < payload.length);
+    assertArrayEquals(payload, MqttCompressed.decompress(compression, compressed));
+    // And again on the same thread, reusing the deflater and inflater.
+    assertArrayEquals(payload, MqttCompressed.decompress(compression, MqttCompressed.compress(compression, payload)));
+  }
+
+  @Test
+  public void testIncompressible() throws Exception {
+    MqttDeflateCompression compression = new MqttDeflateCompression();
+    byte[] payload = new byte[1000];
+    new Random(1).nextBytes(payload);
+    assertSame(payload, MqttCompressed.compress(compression, payload));
+    byte[] empty = new byte[0];
+    assertSame(empty, MqttCompressed.compress(compression, empty));
+  }
+
+  @Test
+  public void testNotCompressed() throws Exception {
+    byte[] payload = READING.getBytes(StandardCharsets.UTF_8);
+    assertFalse(MqttCompressed.isCompressed(payload));
+    assertSame(payload, MqttCompressed.decompress(new MqttDeflateCompression(), payload));
+  }
+
+  @Test
+  public void testDictionary() throws Exception {
+    File dictionary = dictionary(READING + READING);
+    try {
+      MqttDeflateCompression compression = new MqttDeflateCompression(dictionary.getCanonicalPath());
+      byte[] payload = READING.getBytes(StandardCharsets.UTF_8);
+      // Too small to compress on its own.
+      assertSame(payload, MqttCompressed.compress(new MqttDeflateCompression(), payload));
+      byte[] compressed = MqttCompressed.compress(compression, payload);
+      assertTrue(compressed.length < payload.length / 2);
+      assertArrayEquals(payload, MqttCompressed.decompress(compression, compressed));
+      try {
+        MqttCompressed.decompress(new MqttDeflateCompression(), compressed);
+        fail();
+      } catch (CoreException expected) {
+      }
+    } finally {
+      dictionary.delete();
+    }
+  }
+
+  @Test
+  public void testWrongDictionary() throws Exception {
+    File dictionary = dictionary(READING);
+    File other = dictionary("something else entirely");
+    try {
+      byte[] compressed = MqttCompressed.compress(new MqttDeflateCompression(dictionary.getCanonicalPath()),
+          repetitive(5000));
+      MqttCompressed.decompress(new MqttDeflateCompression(other.getCanonicalPath()), compressed);
+      fail();
+    } catch (CoreException expected) {
+    } finally {
+      dictionary.delete();
+      other.delete();
+    }
+  }
+
+  @Test
+  public void testCorrupt() throws Exception {
+    MqttDeflateCompression compression = new MqttDeflateCompression();
+    byte[] compressed = MqttCompressed.compress(compression, repetitive(5000));
+    assertCorrupt(compression, Arrays.copyOf(compressed, compressed.length - 4));
+    byte[] longer = compressed.clone();
+    longer[MqttCompressed.HEADER_LENGTH - 1]++;
+    assertCorrupt(compression, longer);
+    byte[] shorter = compressed.clone();
+    shorter[MqttCompressed.HEADER_LENGTH - 1]--;
+    assertCorrupt(compression, shorter);
+  }
+
+  @Test
+  public void testForgedLength() throws Exception {
+    MqttDeflateCompression compression = new MqttDeflateCompression();
+    byte[] compressed = MqttCompressed.compress(compression, repetitive(5000));
+    assertCorrupt(compression, withLength(compressed, -1));
+    // More than the compressed payload could possibly decompress to.
+    assertCorrupt(compression, withLength(compressed, Integer.MAX_VALUE));
+    assertCorrupt(compression, withLength(compressed, (compressed.length - MqttCompressed.HEADER_LENGTH) * 1032 + 1));
+    // More than the configured maximum.
+    compression.setMaxPayloadSize(4999);
+    assertCorrupt(compression, compressed);
+    compression.setMaxPayloadSize(5000);
+    assertArrayEquals(repetitive(5000), MqttCompressed.decompress(compression, compressed));
+  }
+
+  @Test
+  public void testLevel() throws Exception {
+    MqttDeflateCompression compression = new MqttDeflateCompression();
+    assertEquals(6, compression.level());
+    compression.setLevel(9);
+    assertEquals(9, compression.level());
+    byte[] payload = repetitive(5000);
+    assertArrayEquals(payload, MqttCompressed.decompress(compression, MqttCompressed.compress(compression, payload)));
+  }
+
+  private static void assertCorrupt(MqttCompression compression, byte[] compressed) {
+    try {
+      MqttCompressed.decompress(compression, compressed);
+      fail();
+    } catch (CoreException expected) {
+    }
+  }
+
+  private static byte[] withLength(byte[] compressed, int length) {
+    byte[] forged = compressed.clone();
+    ByteBuffer.wrap(forged).putInt(MqttCompressed.HEADER_LENGTH - Integer.BYTES, length);
+    return forged;
+  }
+
+  private static byte[] repetitive(int length) {
+    Random random = new Random(1);
+    byte[] payload = new byte[length];
+    for (int i = 0; i < length; i++) {
+      payload[i] = (byte) ('a' + random.nextInt(4));
+    }
+    return payload;
+  }
+
+  private static File dictionary(String content) throws IOException {
+    File file = File.createTempFile("mqtt-dictionary", ".txt");
+    Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    return file;
+  }
+}
@@ -0,0 +1,94 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.adaptris.interlok.junit.scaffolding.BaseCase;
+import com.adaptris.util.TimeInterval;
+
+public class MqttExponentialBackoffTest extends BaseCase {
+
+  @Test
+  public void testDelays() throws Exception {
+    MqttExponentialBackoff backoff = new MqttExponentialBackoff(new TimeInterval(100L, TimeUnit.MILLISECONDS),
+        new TimeInterval(1L, TimeUnit.SECONDS));
+    backoff.setJitter(0.0);
+    assertEquals(100, backoff.delayMillis(1));
+    assertEquals(200, backoff.delayMillis(2));
+    assertEquals(800, backoff.delayMillis(4));
+    assertEquals(1000, backoff.delayMillis(5));
+    assertEquals(1000, backoff.delayMillis(100));
+    assertEquals(1000, backoff.delayMillis(Integer.MAX_VALUE));
+    assertEquals(10, backoff.maxConcurrentReconnects());
+  }
+
+  @Test
+  public void testJitter() throws Exception {
+    MqttExponentialBackoff backoff = new MqttExponentialBackoff(new TimeInterval(1L, TimeUnit.SECONDS),
+        new TimeInterval(1L, TimeUnit.SECONDS));
+    backoff.setJitter(0.5);
+    boolean varies = false;
+    long first = backoff.delayMillis(1);
+    for (int i = 0; i < 100; i++) {
+      long delay = backoff.delayMillis(1);
+      assertTrue(delay >= 500 && delay <= 1000);
+      varies |= delay != first;
+    }
+    assertTrue(varies);
+  }
+
+  @Test
+  public void testReconnectorRetriesWithBoundedConcurrency() throws Exception {
+    MqttExponentialBackoff backoff = new MqttExponentialBackoff(new TimeInterval(1L, TimeUnit.MILLISECONDS),
+        new TimeInterval(10L, TimeUnit.MILLISECONDS));
+    backoff.setMaxConcurrentReconnects(2);
+    ClientReconnector reconnector = new ClientReconnector(getName(), backoff);
+    try {
+      AtomicInteger active = new AtomicInteger();
+      AtomicInteger maxActive = new AtomicInteger();
+      CountDownLatch reconnected = new CountDownLatch(10);
+      for (int i = 0; i < 10; i++) {
+        AtomicInteger attempts = new AtomicInteger();
+        reconnector.reconnect("client-" + i, () -> {
+          maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+          try {
+            Thread.sleep(5);
+            // Fails the first time.
+            if (attempts.incrementAndGet() == 1) {
+              throw new IllegalStateException("broker unavailable");
+            }
+            reconnected.countDown();
+          } finally {
+            active.decrementAndGet();
+          }
+        });
+      }
+      assertTrue(reconnected.await(10, TimeUnit.SECONDS));
+      assertTrue(maxActive.get() <= 2);
+    } finally {
+      reconnector.shutdown();
+    }
+  }
+}
@@ -0,0 +1,275 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+
+package com.adaptris.core.mqtt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.adaptris.interlok.junit.scaffolding.BaseCase;
+
+public class MqttMappedLogPersistenceTest extends BaseCase {
+
+  private static final String CLIENT_ID = "client";
+  private static final String SERVER_URI = "tcp://localhost:1883";
+
+  private File directory;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = Files.createTempDirectory("mqtt-log").toFile();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    FileUtils.deleteQuietly(directory);
+  }
+
+  @Test
+  public void testPutGetRemove() throws Exception {
+    MqttClientPersistence persistence = create(1024);
+    persistence.open(CLIENT_ID, SERVER_URI);
+    try {
+      persistence.put("s-1", new Persistable("header", "payload"));
+      assertTrue(persistence.containsKey("s-1"));
+      assertPersistable(persistence.get("s-1"), "header", "payload");
+      persistence.remove("s-1");
+      assertFalse(persistence.containsKey("s-1"));
+      assertNull(persistence.get("s-1"));
+    } finally {
+      persistence.close();
+    }
+  }
+
+  @Test
+  public void testReopenRecoversRecords() throws Exception {
+    MqttClientPersistence persistence = create(1024);
+    persistence.open(CLIENT_ID, SERVER_URI);
+    persistence.put("s-1", new Persistable("header1", "payload1"));
+    persistence.put("s-2", new Persistable("header2", "payload2"));
+    persistence.put("s-3", new Persistable("header3", "payload3"));
+    persistence.remove("s-2");
+    persistence.close();
+
+    persistence = create(1024);
+    persistence.open(CLIENT_ID, SERVER_URI);
+    try {
+      assertEquals(2, Collections.list(persistence.keys()).size());
+      assertPersistable(persistence.get("s-1"), "header1", "payload1");
+      assertPersistable(persistence.get("s-3"), "header3", "payload3");
+      assertFalse(persistence.containsKey("s-2"));
+    } finally {
+      persistence.close();
+    }
+  }
+
+  @Test
+  public void testReplayStopsAtCorruptLength() throws Exception {
+    MqttClientPersistence persistence = create(1024);
+    persistence.open(CLIENT_ID, SERVER_URI);
+    persistence.put("s-1", new Persistable("header1", "payload1"));
+    persistence.close();
+
+    // A PUT whose key length is far bigger than the log, straight after the first record.
+    File log = directory.listFiles()[0];
+    try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+      file.seek(1 + 4 + 3 + 4 + 7 + 4 + 8);
+      file.writeByte(1);
+      file.writeInt(Integer.MAX_VALUE);
+    }
+
+    persistence = create(1024);
+    persistence.open(CLIENT_ID, SERVER_URI);
+    try {
+      assertEquals(Collections.singletonList("s-1"), Collections.list(persistence.keys()));
+      assertPersistable(persistence.get("s-1"), "header1", "payload1");
+      persistence.put("s-2", new Persistable("header2", "payload2"));
+    } finally {
+      persistence.close();
+    }
+
+    persistence = create(1024);
+    persistence.open(CLIENT_ID, SERVER_URI);
+    try {
+      assertEquals(2, Collections.list(persistence.keys()).size());
+      assertPersistable(persistence.get("s-2"), "header2", "payload2");
+    } finally {
+      persistence.close();
+    }
+  }
+
+  @Test
+  public void testRewindWhenEmpty() throws Exception {
+    MqttClientPersistence persistence = create(1024);
+    persistence.open(CLIENT_ID, SERVER_URI);
+    persistence.put("s-1", new Persistable("header1", "payload1"));
+    persistence.remove("s-1");
+    persistence.close();
+
+    persistence = create(1024);
+    persistence.open(CLIENT_ID, SERVER_URI);
+    try {
+      assertFalse(persistence.keys().hasMoreElements());
+    } finally {
+      persistence.close();
+    }
+  }
+
+  @Test
+  public void testCompactAndGrow() throws Exception {
+    MqttClientPersistence persistence = create(1024);
+    persistence.open(CLIENT_ID, SERVER_URI);
+    String payload = new String(new char[100]).replace('\0', 'x');
+    for (int i = 0; i < 200; i++) {
+      persistence.put("s-" + i, new Persistable("header" + i, payload));
+      if (i % 2 == 0) {
+        persistence.remove("s-" + i);
+      }
+    }
+    persistence.close();
+
+    persistence = create(1024);
+    persistence.open(CLIENT_ID, SERVER_URI);
+    try {
+      assertEquals(100, Collections.list(persistence.keys()).size());
+      assertPersistable(persistence.get("s-199"), "header199", payload);
+      assertFalse(persistence.containsKey("s-198"));
+    } finally {
+      persistence.close();
+    }
+  }
+
+  @Test
+  public void testEmptyLogDeletedOnClose() throws Exception {
+    MqttClientPersistence persistence = create(1024);
+    persistence.open(CLIENT_ID, SERVER_URI);
+    persistence.put("s-1", new Persistable("header1", "payload1"));
+    persistence.close();
+    assertEquals(1, directory.list().length);
+
+    persistence = create(1024);
+    persistence.open(CLIENT_ID, SERVER_URI);
+    persistence.remove("s-1");
+    persistence.close();
+    assertEquals(0, directory.list().length);
+
+    persistence = create(1024);
+    persistence.open(CLIENT_ID, SERVER_URI);
+    persistence.close();
+    assertEquals(0, directory.list().length);
+  }
+
+  @Test
+  public void testCompactLeavesOneLog() throws Exception {
+    MqttClientPersistence persistence = create(1024);
+    persistence.open(CLIENT_ID, SERVER_URI);
+    try {
+      String payload = new String(new char[100]).replace('\0', 'x');
+      for (int i = 0; i < 50; i++) {
+        persistence.put("s-" + i, new Persistable("header" + i, payload));
+      }
+      assertEquals(1, directory.list().length);
+      assertPersistable(persistence.get("s-0"), "header0", payload);
+    } finally {
+      persistence.close();
+    }
+    assertEquals(1, directory.list().length);
+  }
+
+  @Test
+  public void testClear() throws Exception {
+    MqttClientPersistence persistence = create(1024);
+    persistence.open(CLIENT_ID, SERVER_URI);
+    try {
+      persistence.put("s-1", new Persistable("header1", "payload1"));
+      persistence.clear();
+      assertFalse(persistence.keys().hasMoreElements());
+    } finally {
+      persistence.close();
+    }
+  }
+
+  private MqttClientPersistence create(int initialSize) {
+    MqttMappedLogPersistence persistence = new MqttMappedLogPersistence();
+    persistence.setDirectory(directory.getAbsolutePath());
+    persistence.setInitialSize(initialSize);
+    persistence.setSyncEvery(0);
+    return persistence.create();
+  }
+
+  private static void assertPersistable(MqttPersistable p, String header, String payload)
+      throws MqttPersistenceException {
+    assertArrayEquals(header.getBytes(StandardCharsets.UTF_8), p.getHeaderBytes());
+    assertArrayEquals(payload.getBytes(StandardCharsets.UTF_8), p.getPayloadBytes());
+  }
+
+  private static class Persistable implements MqttPersistable {
+    private final byte[] header;
+    private final byte[] payload;
+
+    Persistable(String header, String payload) {
+      this.header = ("xx" + header).getBytes(StandardCharsets.UTF_8);
+      this.payload = payload.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public byte[] getHeaderBytes() {
+      return header;
+    }
+
+    @Override
+    public int getHeaderLength() {
+      return header.length - 2;
+    }
+
+    @Override
+    public int getHeaderOffset() {
+      return 2;
+    }
+
+    @Override
+    public byte[] getPayloadBytes() {
+      return payload;
+    }
+
+    @Override
+    public int getPayloadLength() {
+      return payload.length;
+    }
+
+    @Override
+    public int getPayloadOffset() {
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,63 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.nio.charset.StandardCharsets;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+import org.junit.Test;
+
+import com.adaptris.core.AdaptrisMessage;
+import com.adaptris.core.AdaptrisMessageFactory;
+import com.adaptris.interlok.junit.scaffolding.BaseCase;
+
+public class MqttMetadataTest extends BaseCase {
+
+  @Test
+  public void testMqttMessage() throws Exception {
+    MqttMessage message = new MqttMessage("hello".getBytes(StandardCharsets.UTF_8));
+    message.setQos(2);
+    message.setRetained(true);
+    message.setId(42);
+    AdaptrisMessage msg = AdaptrisMessageFactory.getDefaultInstance().newMessage(message.getPayload());
+    MqttMetadata.addTo(msg, "sensors/london/1", message);
+    assertEquals("sensors/london/1", msg.getMetadataValue(MqttConstants.TOPIC_METADATA));
+    assertEquals("2", msg.getMetadataValue(MqttConstants.QOS_METADATA));
+    assertEquals("true", msg.getMetadataValue(MqttConstants.RETAINED_METADATA));
+    assertEquals("false", msg.getMetadataValue(MqttConstants.DUPLICATE_METADATA));
+    assertEquals("42", msg.getMetadataValue(MqttConstants.MESSAGE_ID_METADATA));
+    assertFalse(msg.headersContainsKey(MqttConstants.CONTENT_TYPE_METADATA));
+  }
+
+  @Test
+  public void testMqtt5Message() throws Exception {
+    MqttProperties properties = new MqttProperties();
+    properties.setContentType("application/json");
+    org.eclipse.paho.mqttv5.common.MqttMessage message =
+        new org.eclipse.paho.mqttv5.common.MqttMessage("{}".getBytes(StandardCharsets.UTF_8), 1, false, properties);
+    AdaptrisMessage msg = AdaptrisMessageFactory.getDefaultInstance().newMessage(message.getPayload());
+    MqttMetadata.addTo(msg, "sensors/london/1", message);
+    assertEquals("sensors/london/1", msg.getMetadataValue(MqttConstants.TOPIC_METADATA));
+    assertEquals("1", msg.getMetadataValue(MqttConstants.QOS_METADATA));
+    assertEquals("false", msg.getMetadataValue(MqttConstants.RETAINED_METADATA));
+    assertEquals("application/json", msg.getMetadataValue(MqttConstants.CONTENT_TYPE_METADATA));
+  }
+}
@@ -0,0 +1,99 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.KeyStore;
+import java.util.Properties;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.adaptris.interlok.junit.scaffolding.BaseCase;
+
+public class SharedSslSocketFactoryTest extends BaseCase {
+
+  private static final String PASSWORD = "password";
+  // "password", as obfuscated by Paho's SSLSocketFactoryFactory.obfuscate().
+  private static final String OBFUSCATED_PASSWORD = "{xor}sSOvsO5Uendy.OvdhXvRQ0";
+
+  private File keyStore;
+
+  @Before
+  public void setUp() throws Exception {
+    keyStore = Files.createTempFile("keystore", ".p12").toFile();
+    KeyStore store = KeyStore.getInstance("PKCS12");
+    store.load(null, null);
+    try (OutputStream out = Files.newOutputStream(keyStore.toPath())) {
+      store.store(out, PASSWORD.toCharArray());
+    }
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    FileUtils.deleteQuietly(keyStore);
+  }
+
+  @Test
+  public void testPassword() {
+    assertNull(SharedSslSocketFactory.password(null));
+    assertArrayEquals(PASSWORD.toCharArray(), SharedSslSocketFactory.password(PASSWORD));
+    assertArrayEquals(PASSWORD.toCharArray(), SharedSslSocketFactory.password(OBFUSCATED_PASSWORD));
+    assertArrayEquals(new char[0], SharedSslSocketFactory.password("{xor}"));
+  }
+
+  @Test
+  public void testCreate_PlainPassword() throws Exception {
+    assertNotNull(SharedSslSocketFactory.create(properties(PASSWORD)));
+  }
+
+  @Test
+  public void testCreate_ObfuscatedPassword() throws Exception {
+    assertNotNull(SharedSslSocketFactory.create(properties(OBFUSCATED_PASSWORD)));
+  }
+
+  @Test
+  public void testCreate_WrongPassword() throws Exception {
+    try {
+      SharedSslSocketFactory.create(properties("wrong"));
+      fail();
+    } catch (IOException expected) {
+
+    }
+  }
+
+  private Properties properties(String password) {
+    Properties p = new Properties();
+    p.setProperty("com.ibm.ssl.keyStore", keyStore.getAbsolutePath());
+    p.setProperty("com.ibm.ssl.keyStoreType", "PKCS12");
+    p.setProperty("com.ibm.ssl.keyStorePassword", password);
+    p.setProperty("com.ibm.ssl.trustStore", keyStore.getAbsolutePath());
+    p.setProperty("com.ibm.ssl.trustStoreType", "PKCS12");
+    p.setProperty("com.ibm.ssl.trustStorePassword", password);
+    return p;
+  }
+}
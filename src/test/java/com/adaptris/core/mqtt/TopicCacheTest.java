@@ -0,0 +1,135 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.adaptris.core.CoreException;
+import com.adaptris.interlok.junit.scaffolding.BaseCase;
+
+public class TopicCacheTest extends BaseCase {
+
+  @Test
+  public void testHitsAndMisses() throws Exception {
+    MqttConnectionMetrics metrics = new MqttConnectionMetrics(() -> 0);
+    TopicCache cache = new TopicCache(10, -1L, metrics);
+    AtomicInteger resolved = new AtomicInteger();
+    TopicCache.Resolver resolver = t -> {
+      resolved.incrementAndGet();
+      return t;
+    };
+    assertEquals("a/b", cache.get("a/b", resolver));
+    assertEquals("a/b", cache.get("a/b", resolver));
+    assertEquals("a/c", cache.get("a/c", resolver));
+    assertEquals(2, resolved.get());
+    assertEquals(1, cache.hits());
+    assertEquals(2, cache.misses());
+    assertEquals(1.0 / 3, cache.hitRate(), 0.001);
+    assertEquals(2, cache.size());
+    assertEquals(1.0 / 3, metrics.getTopicCacheHitRate(), 0.001);
+    assertEquals(2, metrics.getTopicCacheSize());
+
+    cache.clear();
+    assertEquals(0, cache.size());
+    assertEquals(0, metrics.getTopicCacheSize());
+  }
+
+  @Test
+  public void testLeastRecentlyUsedEvicted() throws Exception {
+    MqttConnectionMetrics metrics = new MqttConnectionMetrics(() -> 0);
+    TopicCache cache = new TopicCache(2, -1L, metrics);
+    cache.get("a", t -> t);
+    cache.get("b", t -> t);
+    // "a" is now more recently used than "b"
+    cache.get("a", t -> t);
+    cache.get("c", t -> t);
+    assertEquals(2, cache.size());
+    assertEquals(1, cache.evictions());
+    assertEquals(1, metrics.getTopicCacheEvictions());
+    assertEquals(2, metrics.getTopicCacheSize());
+
+    long hits = cache.hits();
+    cache.get("a", t -> t);
+    assertEquals(hits + 1, cache.hits());
+    cache.get("b", t -> t);
+    assertEquals(hits + 1, cache.hits());
+  }
+
+  @Test
+  public void testExpiry() throws Exception {
+    TopicCache cache = new TopicCache(10, TimeUnit.MILLISECONDS.toNanos(10), null);
+    cache.get("a", t -> t);
+    Thread.sleep(50);
+    AtomicInteger resolved = new AtomicInteger();
+    cache.get("a", t -> {
+      resolved.incrementAndGet();
+      return t;
+    });
+    assertEquals(1, resolved.get());
+    assertEquals(1, cache.evictions());
+    assertEquals(1, cache.size());
+  }
+
+  @Test(expected = CoreException.class)
+  public void testResolveFails() throws Exception {
+    TopicCache cache = new TopicCache(10, -1L, null);
+    try {
+      cache.get("a/#", t -> {
+        throw new CoreException(t);
+      });
+    } finally {
+      assertEquals(0, cache.size());
+    }
+  }
+
+  @Test
+  public void testProducerStaticTopic() throws Exception {
+    MqttProducer producer = new MqttProducer().withTopic("mqtt/topic/static");
+    producer.prepare();
+    assertNull(producer.topicCache());
+    assertEquals("mqtt/topic/static", producer.resolveTopic("mqtt/topic/static"));
+  }
+
+  @Test
+  public void testProducerExpressionTopic() throws Exception {
+    MqttProducer producer = new MqttProducer().withTopic("mqtt/topic/%message{site}");
+    producer.prepare();
+    assertNotNull(producer.topicCache());
+    assertEquals("mqtt/topic/london", producer.resolveTopic("mqtt/topic/london"));
+    assertEquals("mqtt/topic/london", producer.resolveTopic("mqtt/topic/london"));
+    assertEquals(1, producer.topicCache().hits());
+
+    producer.setTopicCacheSize(0);
+    producer.prepare();
+    assertNull(producer.topicCache());
+    assertEquals("mqtt/topic/london", producer.resolveTopic("mqtt/topic/london"));
+  }
+
+  @Test(expected = CoreException.class)
+  public void testProducerInvalidTopic() throws Exception {
+    MqttProducer producer = new MqttProducer().withTopic("mqtt/topic/%message{site}");
+    producer.prepare();
+    producer.resolveTopic("mqtt/topic/#");
+  }
+}
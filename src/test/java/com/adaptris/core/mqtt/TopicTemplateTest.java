@@ -0,0 +1,80 @@
+/*
+    Copyright Adaptris
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.mqtt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.adaptris.core.AdaptrisMessage;
+import com.adaptris.core.AdaptrisMessageFactory;
+import com.adaptris.interlok.junit.scaffolding.BaseCase;
+
+public class TopicTemplateTest extends BaseCase {
+
+  @Test
+  public void testLiteral() throws Exception {
+    TopicTemplate template = TopicTemplate.compile("mqtt/topic/static");
+    assertNotNull(template);
+    assertTrue(template.isLiteral());
+    assertEquals("mqtt/topic/static", template.render(newMessage()));
+  }
+
+  @Test
+  public void testMetadata() throws Exception {
+    String expression = "%message{site}/devices/%message{device}/telemetry";
+    TopicTemplate template = TopicTemplate.compile(expression);
+    assertNotNull(template);
+    assertFalse(template.isLiteral());
+    AdaptrisMessage msg = newMessage();
+    assertEquals("london/devices/d1/telemetry", template.render(msg));
+    assertEquals(msg.resolve(expression), template.render(msg));
+    // Rendering reuses the builder, so make sure nothing is left over.
+    msg.addMetadata("device", "d2");
+    assertEquals("london/devices/d2/telemetry", template.render(msg));
+  }
+
+  @Test
+  public void testMissingMetadata() throws Exception {
+    TopicTemplate template = TopicTemplate.compile("mqtt/%message{region}");
+    assertNull(template.render(newMessage()));
+  }
+
+  @Test
+  public void testNotCompiled() throws Exception {
+    assertNull(TopicTemplate.compile("mqtt/%message{%uniqueId}"));
+    assertNull(TopicTemplate.compile("mqtt/%env{HOSTNAME}/%message{site}"));
+  }
+
+  @Test
+  public void testProducerEndpoint() throws Exception {
+    MqttProducer producer = new MqttProducer().withTopic("mqtt/%message{site}/%message{device}");
+    producer.prepare();
+    assertEquals("mqtt/london/d1", producer.endpoint(newMessage()));
+  }
+
+  private static AdaptrisMessage newMessage() {
+    AdaptrisMessage msg = AdaptrisMessageFactory.getDefaultInstance().newMessage();
+    msg.addMetadata("site", "london");
+    msg.addMetadata("device", "d1");
+    return msg;
+  }
+}